@@ -0,0 +1,177 @@
+package com.acloudysky.ec2.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acloudysky.ec2.FakeFleet;
+import com.acloudysky.ec2.InstanceInventory;
+import com.acloudysky.ec2.InstancePager;
+import com.acloudysky.ec2.InstanceQuery;
+import com.acloudysky.ec2.InstanceReportRenderer;
+import com.acloudysky.ec2.InstanceSummary;
+import com.acloudysky.ec2.InstanceTerminator;
+import com.acloudysky.ec2.TagWriter;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Measures the describe, filter, render, tag and terminate paths of the application against
+ * an in-process {@link FakeFleet}, so that the numbers reflect this code and the SDK model
+ * objects, not the network. Run it with the GC profiler to get allocation rates:
+ * <pre>
+ * mvn -P benchmark package
+ * java -jar target/benchmarks.jar -prof gc
+ * java -jar target/benchmarks.jar EC2OperationsBenchmark.render -p fleetSize=100000
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EC2OperationsBenchmark {
+
+	@Param({ "100", "1000", "10000", "100000" })
+	public int fleetSize;
+
+	@Param({ "2", "8" })
+	public int tagsPerInstance;
+
+	@Param({ "1", "20" })
+	public int instancesPerReservation;
+
+	// Instances sent in a single tag or terminate batch.
+	private static final int BATCH_SIZE = 1000;
+
+	private FakeFleet fleet;
+	private AmazonEC2 client;
+	private List<InstanceSummary> instances;
+	private List<String> batchIds;
+
+	/*
+	 * Writer that discards its output, to measure rendering alone.
+	 */
+	private static class NullWriter extends Writer {
+		long count = 0;
+
+		@Override
+		public void write(int c) {
+			count++;
+		}
+
+		@Override
+		public void write(String str) {
+			count += str.length();
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fleet = new FakeFleet("us-west-2", fleetSize, tagsPerInstance, instancesPerReservation, 0, 42);
+		client = FakeAmazonEC2.create(fleet);
+		instances = new InstancePager(client, new DescribeInstancesRequest(), InstancePager.DEFAULT_PAGE_SIZE)
+				.summaries().collect(Collectors.toList());
+		batchIds = fleet.getInstanceIds().subList(0, Math.min(BATCH_SIZE, fleetSize));
+	}
+
+	@Benchmark
+	public long describeAllPages() {
+		return InstancePager.stream(client, new DescribeInstancesRequest()).count();
+	}
+
+	@Benchmark
+	public long describeAllPagesAsSummaries() {
+		return new InstancePager(client, new DescribeInstancesRequest(), InstancePager.DEFAULT_PAGE_SIZE)
+				.summaries().count();
+	}
+
+	@Benchmark
+	public long describeByKeyName() {
+		return new InstanceQuery().withKeyName("key-3").stream(client).count();
+	}
+
+	@Benchmark
+	public long describeByTagAndState() {
+		return new InstanceQuery().withTag("owner", "owner-7").withState("running").stream(client).count();
+	}
+
+	@Benchmark
+	public int inventoryReload() {
+		InstanceInventory inventory = new InstanceInventory(client, InstanceInventory.DEFAULT_TTL_MILLIS);
+		inventory.reload();
+		return inventory.size();
+	}
+
+	@Benchmark
+	public long renderText() throws IOException {
+		return render(InstanceReportRenderer.Format.TEXT);
+	}
+
+	@Benchmark
+	public long renderCsv() throws IOException {
+		return render(InstanceReportRenderer.Format.CSV);
+	}
+
+	@Benchmark
+	public long renderJson() throws IOException {
+		return render(InstanceReportRenderer.Format.JSON);
+	}
+
+	@Benchmark
+	public int tagBatch() {
+		TagWriter writer = new TagWriter(client);
+		writer.addTags(batchIds, new Tag("owner", "benchmark"), new Tag("env", "test"));
+		writer.flush();
+		return writer.getCallCount();
+	}
+
+	/*
+	 * After the first invocation the instances are already terminated; EC2 terminations are
+	 * idempotent, so the same request and response path is measured.
+	 */
+	@Benchmark
+	public int terminateBatch() {
+		return new InstanceTerminator(client, InstanceTerminator.DEFAULT_PARALLELISM).terminate(batchIds).size();
+	}
+
+	private long render(InstanceReportRenderer.Format format) throws IOException {
+		InstanceReportRenderer renderer = InstanceReportRenderer.forFormat(format);
+		NullWriter writer = new NullWriter();
+		renderer.begin(writer);
+		for (InstanceSummary instance : instances)
+			renderer.render(instance, writer);
+		renderer.end(writer);
+		return writer.count;
+	}
+}
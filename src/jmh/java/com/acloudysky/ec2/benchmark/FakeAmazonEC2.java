@@ -0,0 +1,63 @@
+package com.acloudysky.ec2.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.acloudysky.ec2.FakeFleet;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Creates an in-process AmazonEC2 client backed by a {@link FakeFleet}. Only the operations
+ * used by this application are implemented; the others throw UnsupportedOperationException.
+ * The client is a dynamic proxy, so it does not depend on the exact set of methods of the
+ * AmazonEC2 interface of the SDK version in use.
+ */
+public class FakeAmazonEC2 {
+
+	private FakeAmazonEC2() {
+	}
+
+	/**
+	 * Creates a client.
+	 * @param fleet The fleet answering the calls.
+	 * @return The client.
+	 */
+	public static AmazonEC2 create(FakeFleet fleet) {
+		InvocationHandler handler = (Object proxy, Method method, Object[] args) -> {
+			Object request = args == null || args.length == 0 ? null : args[0];
+			switch (method.getName()) {
+				case "describeInstances":
+					return fleet.describeInstances(request == null
+							? new DescribeInstancesRequest() : (DescribeInstancesRequest) request);
+				case "runInstances":
+					return fleet.runInstances((RunInstancesRequest) request);
+				case "createTags":
+					fleet.createTags((CreateTagsRequest) request);
+					return null;
+				case "terminateInstances":
+					return fleet.terminateInstances((TerminateInstancesRequest) request);
+				case "describeAvailabilityZones":
+					return fleet.describeAvailabilityZones();
+				case "setEndpoint":
+				case "setRegion":
+				case "shutdown":
+					return null;
+				case "toString":
+					return "FakeAmazonEC2 " + fleet.getRegion();
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == request;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		};
+		return (AmazonEC2) Proxy.newProxyInstance(
+				AmazonEC2.class.getClassLoader(), new Class<?>[] { AmazonEC2.class }, handler);
+	}
+}
@@ -0,0 +1,625 @@
+package com.acloudysky.ec2;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Runs a script of menu commands without prompting, for example:
+ * <pre>
+ * # Launch, tag, then wait.
+ * ci DocLabKeys_OR 2
+ * ia i-0123abcd web-1 Michael
+ * ia i-4567ef01 web-2 Michael
+ * ti i-89ab2345 i-cdef6789
+ * wi terminated i-89ab2345 i-cdef6789
+ * </pre>
+ * The whole script is parsed before anything runs, so a typo fails the script instead of
+ * stopping it half way. The commands then run concurrently, except that a command waits for
+ * the earlier commands it conflicts with: two commands conflict when one changes instances
+ * the other reads or changes. In the example, the two ia commands and the ti command run
+ * together, and wi waits for ti. A command creating instances (ci), whose ids are not known
+ * in advance, conflicts with all the commands on instances. A command whose dependency
+ * failed is skipped.
+ * <p>
+ * The output of each command is collected and displayed in one block when it completes, so
+ * that concurrent commands do not mix their output. The changes seen by wa are therefore
+ * displayed when the watch ends.
+ * </p>
+ * Commands and arguments:
+ * <ul>
+ * <li>ci key-name [count [image-id [instance-type [subnet-id [availability-zone|* [wait-seconds]]]]]]</li>
+ * <li>ia instance-id name owner</li>
+ * <li>az</li>
+ * <li>ra</li>
+ * <li>ik key-name</li>
+ * <li>ii instance-id</li>
+ * <li>ti instance-id...</li>
+ * <li>wi state instance-id...</li>
+ * <li>rf text|csv|json</li>
+ * <li>wa key-name|* [interval-seconds [duration-seconds]]</li>
+ * <li>fa [top]</li>
+ * <li>st</li>
+ * <li>lp</li>
+ * <li>cp profile-name [count [wait-seconds [key-name]]]</li>
+ * <li>tq tag-expression</li>
+ * <li>ta [--yes] key=value tag-expression</li>
+ * <li>tt [--yes] tag-expression</li>
+ * </ul>
+ * The tag expressions, such as env=prod AND owner!=ci, are the rest of the line, quotes
+ * included (see {@link TagQuery}). ta and tt list the matching instances; without --yes,
+ * they change nothing and fail, so that a script can be tried first.
+ * The defaults of ci are those of the default launch profile.
+ * Arguments are separated by blanks; use double quotes for arguments containing blanks.
+ * Lines starting with # are comments. The st command waits for all the earlier commands,
+ * failed or not, and is never skipped.
+ */
+public class BatchUI extends UserInterface {
+
+	/**
+	 * Default number of commands running at the same time.
+	 */
+	public static final int DEFAULT_PARALLELISM = 8;
+
+	// Resource key standing for all the instances, including those not created yet.
+	private static final String ALL_INSTANCES = "*";
+
+	// Resource key of the report format.
+	private static final String REPORT_FORMAT = "report-format";
+
+	// Default duration of a watch, in milliseconds.
+	private static final long DEFAULT_WATCH_MILLIS = 60000;
+
+	// Default number of values displayed for each attribute by fa.
+	private static final int DEFAULT_TOP = 10;
+
+	/*
+	 * A parsed script command.
+	 */
+	private static class Command {
+		final int lineNumber;
+		final String line;
+		final String name;
+		final List<String> args;
+		final Set<String> reads = new HashSet<String>();
+		final Set<String> writes = new HashSet<String>();
+		final List<CompletableFuture<Void>> dependencies = new ArrayList<CompletableFuture<Void>>();
+		// Runs after all the earlier commands, whatever their outcome.
+		boolean afterAll = false;
+		CompletableFuture<Void> done;
+
+		Command(int lineNumber, String line, List<String> tokens) {
+			this.lineNumber = lineNumber;
+			this.line = line.trim();
+			this.name = tokens.get(0).toLowerCase();
+			this.args = tokens.subList(1, tokens.size());
+		}
+
+		boolean conflictsWith(Command earlier) {
+			return intersects(earlier.writes, reads) || intersects(earlier.writes, writes)
+					|| intersects(earlier.reads, writes);
+		}
+
+		private static boolean intersects(Set<String> a, Set<String> b) {
+			for (String key : a)
+				if (b.contains(key) || (ALL_INSTANCES.equals(key) && hasInstance(b)))
+					return true;
+			for (String key : b)
+				if (ALL_INSTANCES.equals(key) && hasInstance(a))
+					return true;
+			return false;
+		}
+
+		// All the instances include any instance, but not the report format.
+		private static boolean hasInstance(Set<String> keys) {
+			for (String key : keys)
+				if (!REPORT_FORMAT.equals(key))
+					return true;
+			return false;
+		}
+	}
+
+	// Authenticated EC2 client.
+	private final AmazonEC2 ec2Client;
+
+	// Script path, or - for the standard input.
+	private final String script;
+
+	private final int parallelism;
+
+	/**
+	 * Initializes the batch UI.
+	 * @param client Authenticated EC2 client.
+	 * @param script The script file path, or - to read the standard input.
+	 * @param parallelism Maximum number of commands running at the same time.
+	 */
+	public BatchUI(AmazonEC2 client, String script, int parallelism) {
+		super();
+		ec2Client = client;
+		this.script = script;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Parses and runs the script.
+	 */
+	@Override
+	public void processUserInput() {
+		List<Command> commands = new ArrayList<Command>();
+		List<String> errors = new ArrayList<String>();
+		try (InputStream in = "-".equals(script) ? System.in : new FileInputStream(script)) {
+			parse(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), commands, errors);
+		}
+		catch (IOException e) {
+			System.out.println(String.format("Cannot read the script %s: %s", script, e.getMessage()));
+			return;
+		}
+		if (!errors.isEmpty()) {
+			for (String error : errors)
+				System.out.println(error);
+			System.out.println(String.format("%d error(s), no command was run", errors.size()));
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		int[] counts = run(commands);
+		System.out.println(String.format("%n%d command(s) in %d ms: %d succeeded, %d failed, %d skipped",
+				commands.size(), System.currentTimeMillis() - start, counts[0], counts[1], counts[2]));
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private static void parse(BufferedReader reader, List<Command> commands, List<String> errors) throws IOException {
+		int lineNumber = 0;
+		for (String line; (line = reader.readLine()) != null;) {
+			lineNumber++;
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#"))
+				continue;
+			try {
+				Command command = new Command(lineNumber, line, tokenize(trimmed));
+				declareResources(command);
+				commands.add(command);
+			}
+			catch (IllegalArgumentException e) {
+				errors.add(String.format("Line %d: %s: %s", lineNumber, e.getMessage(), trimmed));
+			}
+		}
+	}
+
+	/*
+	 * Checks the arguments of a command and records what it reads and writes.
+	 */
+	private static void declareResources(Command command) {
+		List<String> args = command.args;
+		switch (command.name) {
+			case "ci":
+				expect(args.size() >= 1 && args.size() <= 7,
+						"usage: ci key-name [count [image-id [instance-type [subnet-id [availability-zone|* [wait-seconds]]]]]]");
+				if (args.size() > 1)
+					parseCount(args.get(1));
+				if (args.size() > 6)
+					parseSeconds(args.get(6));
+				command.writes.add(ALL_INSTANCES);
+				command.reads.add(REPORT_FORMAT);
+				break;
+			case "ia":
+				expect(args.size() == 3, "usage: ia instance-id name owner");
+				command.writes.add(args.get(0));
+				command.reads.add(REPORT_FORMAT);
+				break;
+			case "az":
+			case "ra":
+				expect(args.isEmpty(), "usage: " + command.name);
+				command.reads.add(ALL_INSTANCES);
+				break;
+			case "ik":
+				expect(args.size() == 1, "usage: ik key-name");
+				command.reads.add(ALL_INSTANCES);
+				command.reads.add(REPORT_FORMAT);
+				break;
+			case "ii":
+				expect(args.size() == 1, "usage: ii instance-id");
+				command.reads.add(args.get(0));
+				command.reads.add(REPORT_FORMAT);
+				break;
+			case "ti":
+				expect(args.size() >= 1, "usage: ti instance-id...");
+				command.writes.addAll(args);
+				break;
+			case "wi":
+				expect(args.size() >= 2, "usage: wi state instance-id...");
+				command.reads.addAll(args.subList(1, args.size()));
+				break;
+			case "rf":
+				expect(args.size() == 1, "usage: rf text|csv|json");
+				try {
+					InstanceReportRenderer.Format.valueOf(args.get(0).toUpperCase());
+				}
+				catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Allowed formats: "
+							+ Arrays.toString(InstanceReportRenderer.Format.values()));
+				}
+				command.writes.add(REPORT_FORMAT);
+				break;
+			case "wa":
+				expect(args.size() >= 1 && args.size() <= 3,
+						"usage: wa key-name|* [interval-seconds [duration-seconds]]");
+				for (String seconds : args.subList(1, args.size()))
+					parseSeconds(seconds);
+				command.reads.add(ALL_INSTANCES);
+				break;
+			case "fa":
+				expect(args.size() <= 1, "usage: fa [top]");
+				if (args.size() == 1)
+					parsePositive(args.get(0), "The number of values");
+				command.reads.add(ALL_INSTANCES);
+				break;
+			case "st":
+				expect(args.isEmpty(), "usage: st");
+				command.afterAll = true;
+				break;
+			case "lp":
+				expect(args.isEmpty(), "usage: lp");
+				break;
+			case "cp":
+				expect(args.size() >= 1 && args.size() <= 4,
+						"usage: cp profile-name [count [wait-seconds [key-name]]]");
+				if (args.size() > 1)
+					parseCount(args.get(1));
+				if (args.size() > 2)
+					parseSeconds(args.get(2));
+				command.writes.add(ALL_INSTANCES);
+				command.reads.add(REPORT_FORMAT);
+				break;
+			case "tq":
+				expect(args.size() >= 1, "usage: tq tag-expression");
+				TagQuery.parse(rest(command, 0));
+				command.reads.add(ALL_INSTANCES);
+				command.reads.add(REPORT_FORMAT);
+				break;
+			case "ta": {
+				int flags = confirmed(args) ? 1 : 0;
+				expect(args.size() >= flags + 2 && args.get(flags).indexOf('=') > 0,
+						"usage: ta [--yes] key=value tag-expression");
+				TagQuery.parse(rest(command, flags + 1));
+				command.writes.add(ALL_INSTANCES);
+				break;
+			}
+			case "tt": {
+				int flags = confirmed(args) ? 1 : 0;
+				expect(args.size() >= flags + 1, "usage: tt [--yes] tag-expression");
+				TagQuery.parse(rest(command, flags));
+				command.writes.add(ALL_INSTANCES);
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown command " + command.name);
+		}
+	}
+
+	private static void expect(boolean condition, String message) {
+		if (!condition)
+			throw new IllegalArgumentException(message);
+	}
+
+	private static int parseCount(String value) {
+		return (int) parsePositive(value, "The instance count");
+	}
+
+	private static long parseSeconds(String value) {
+		return parsePositive(value, "The interval and the duration");
+	}
+
+	private static long parsePositive(String value, String what) {
+		try {
+			long number = Integer.parseInt(value);
+			expect(number > 0, what + " must be positive");
+			return number;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException(what + " must be a number");
+		}
+	}
+
+	/*
+	 * Splits a line in blank separated tokens. Double quotes group blanks into a token.
+	 */
+	private static List<String> tokenize(String line) {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = null;
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+				if (token == null)
+					token = new StringBuilder();
+			}
+			else if (Character.isWhitespace(c) && !quoted) {
+				if (token != null)
+					tokens.add(token.toString());
+				token = null;
+			}
+			else {
+				if (token == null)
+					token = new StringBuilder();
+				token.append(c);
+			}
+		}
+		expect(!quoted, "Unbalanced quotes");
+		if (token != null)
+			tokens.add(token.toString());
+		return tokens;
+	}
+
+	/*
+	 * Schedules each command after the earlier commands it conflicts with.
+	 * @return The number of succeeded, failed and skipped commands.
+	 */
+	private int[] run(List<Command> commands) {
+		AtomicInteger succeeded = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		AtomicInteger skipped = new AtomicInteger();
+
+		PrintStream console = System.out;
+		CommandOutput output = new CommandOutput(console);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		System.setOut(new PrintStream(output, true));
+		try {
+			for (int i = 0; i < commands.size(); i++) {
+				Command command = commands.get(i);
+				for (int j = 0; j < i; j++) {
+					if (command.afterAll)
+						command.dependencies.add(commands.get(j).done.handle((ignored, error) -> null));
+					else if (command.conflictsWith(commands.get(j)))
+						command.dependencies.add(commands.get(j).done);
+				}
+
+				command.done = CompletableFuture
+						.allOf(command.dependencies.toArray(new CompletableFuture<?>[command.dependencies.size()]))
+						.handleAsync((ignored, dependencyError) -> {
+							if (dependencyError != null) {
+								skipped.incrementAndGet();
+								output.print(command, "skipped: a command it depends on failed" + System.lineSeparator());
+								throw new IllegalStateException("skipped");
+							}
+							output.start();
+							try {
+								execute(command);
+								succeeded.incrementAndGet();
+								return null;
+							}
+							catch (RuntimeException e) {
+								failed.incrementAndGet();
+								System.out.println(String.format("%s", e.getMessage()));
+								throw e;
+							}
+							finally {
+								output.print(command, output.stop());
+							}
+						}, executor);
+			}
+			for (Command command : commands)
+				command.done.handle((ignored, error) -> null).join();
+		}
+		finally {
+			System.setOut(console);
+			executor.shutdown();
+		}
+		return new int[] { succeeded.get(), failed.get(), skipped.get() };
+	}
+
+	private void execute(Command command) {
+		List<String> args = command.args;
+		switch (command.name) {
+			case "ci": {
+				LaunchProfiles.Profile defaults = EC2Operations.getLaunchProfile(LaunchProfiles.DEFAULT_PROFILE);
+				EC2Operations.createInstances(ec2Client,
+						arg(args, 2, defaults.getImageId()),
+						arg(args, 3, defaults.getInstanceType()),
+						args.size() > 1 ? parseCount(args.get(1)) : 1,
+						args.get(0),
+						arg(args, 4, defaults.getSubnetId()),
+						arg(args, 5, defaults.getZone()),
+						args.size() > 6 ? parseSeconds(args.get(6)) * 1000 : 0);
+				break;
+			}
+			case "ia":
+				EC2Operations.setInstanceAttributes(args.get(0), args.get(1), args.get(2));
+				break;
+			case "az":
+				EC2Operations.getAvailabilityZones();
+				break;
+			case "ra":
+				EC2Operations.getAllRegionsAvailabilityZones();
+				break;
+			case "ik":
+				EC2Operations.getInstancesInformation(args.get(0));
+				break;
+			case "ii":
+				EC2Operations.getInstanceInformation(args.get(0));
+				break;
+			case "ti":
+				displayTerminations(EC2Operations.terminateInstances(args));
+				break;
+			case "tt": {
+				int flags = confirmed(args) ? 1 : 0;
+				TagQuery query = TagQuery.parse(rest(command, flags));
+				List<String> ids = EC2Operations.previewInstancesByTags(query);
+				if (flags == 0)
+					throw new IllegalStateException("Nothing terminated: add --yes to confirm");
+				displayTerminations(EC2Operations.terminateInstances(query, ids));
+				break;
+			}
+			case "wi": {
+				List<String> ids = args.subList(1, args.size());
+				int reached = EC2Operations.waitForInstances(ids, args.get(0), SimpleUI.WAIT_TIMEOUT_MILLIS);
+				System.out.println(String.format("%d of %d instances are %s", reached, ids.size(), args.get(0)));
+				if (reached < ids.size())
+					throw new IllegalStateException("Some instances did not reach the state " + args.get(0));
+				break;
+			}
+			case "rf":
+				EC2Operations.setReportFormat(InstanceReportRenderer.Format.valueOf(args.get(0).toUpperCase()));
+				break;
+			case "wa":
+				EC2Operations.watchInstances(ALL_INSTANCES.equals(args.get(0)) ? null : args.get(0),
+						args.size() > 1 ? parseSeconds(args.get(1)) * 1000 : InstanceWatcher.DEFAULT_INTERVAL_MILLIS,
+						args.size() > 2 ? parseSeconds(args.get(2)) * 1000 : DEFAULT_WATCH_MILLIS);
+				break;
+			case "fa":
+				EC2Operations.getFleetAggregation(args.isEmpty() ? DEFAULT_TOP
+						: (int) parsePositive(args.get(0), "The number of values"));
+				break;
+			case "st":
+				EC2Operations.getCallStatistics();
+				break;
+			case "lp":
+				EC2Operations.getLaunchProfiles();
+				break;
+			case "cp":
+				EC2Operations.createInstances(args.get(0), arg(args, 3, null),
+						args.size() > 1 ? parseCount(args.get(1)) : null,
+						args.size() > 2 ? parseSeconds(args.get(2)) * 1000 : 0);
+				break;
+			case "tq":
+				EC2Operations.getInstancesByTags(rest(command, 0));
+				break;
+			case "ta": {
+				int flags = confirmed(args) ? 1 : 0;
+				String tag = args.get(flags);
+				TagQuery query = TagQuery.parse(rest(command, flags + 1));
+				List<String> ids = EC2Operations.previewInstancesByTags(query);
+				if (flags == 0)
+					throw new IllegalStateException("Nothing tagged: add --yes to confirm");
+				int tagged = EC2Operations.setInstanceTags(query, ids,
+						new Tag(tag.substring(0, tag.indexOf('=')), tag.substring(tag.indexOf('=') + 1)));
+				System.out.println(String.format("%d instance(s) tagged %s", tagged, tag));
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Displays the result of each termination. Fails if some instances were not terminated.
+	 */
+	private static void displayTerminations(Map<String, InstanceTerminator.Result> results) {
+		int terminated = 0;
+		for (InstanceTerminator.Result result : results.values()) {
+			System.out.println(result.toString());
+			if (result.isTerminated())
+				terminated++;
+		}
+		System.out.println(String.format("%d of %d instances terminated", terminated, results.size()));
+		if (terminated < results.size())
+			throw new IllegalStateException("Some instances were not terminated");
+	}
+
+	/*
+	 * Checks whether a command changing the instances of a tag expression is confirmed.
+	 */
+	private static boolean confirmed(List<String> args) {
+		return !args.isEmpty() && "--yes".equals(args.get(0));
+	}
+
+	/*
+	 * Gets the text of a command after its name and the specified number of arguments, 
+	 * quotes included, for the arguments with their own syntax.
+	 */
+	private static String rest(Command command, int skipped) {
+		String line = command.line;
+		int i = 0;
+		for (int token = 0; token <= skipped; token++) {
+			while (i < line.length() && Character.isWhitespace(line.charAt(i)))
+				i++;
+			boolean quoted = false;
+			while (i < line.length() && (quoted || !Character.isWhitespace(line.charAt(i)))) {
+				if (line.charAt(i) == '"')
+					quoted = !quoted;
+				i++;
+			}
+		}
+		return line.substring(i).trim();
+	}
+
+	private static String arg(List<String> args, int index, String defaultValue) {
+		return args.size() > index ? args.get(index) : defaultValue;
+	}
+
+	/*
+	 * Standard output which collects what each command thread prints, and displays it in one
+	 * block when the command completes. Other threads print straight to the console.
+	 */
+	private static class CommandOutput extends OutputStream {
+		private final PrintStream console;
+		private final ThreadLocal<ByteArrayOutputStream> buffer = new ThreadLocal<ByteArrayOutputStream>();
+
+		CommandOutput(PrintStream console) {
+			this.console = console;
+		}
+
+		void start() {
+			buffer.set(new ByteArrayOutputStream());
+		}
+
+		String stop() {
+			ByteArrayOutputStream collected = buffer.get();
+			buffer.remove();
+			return collected == null ? "" : new String(collected.toByteArray());
+		}
+
+		void print(Command command, String text) {
+			synchronized (console) {
+				console.println(String.format("%n[line %d] %s", command.lineNumber, command.line));
+				console.print(text);
+				console.flush();
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			ByteArrayOutputStream collected = buffer.get();
+			if (collected != null)
+				collected.write(b);
+			else
+				console.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ByteArrayOutputStream collected = buffer.get();
+			if (collected != null)
+				collected.write(b, off, len);
+			else
+				console.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			if (buffer.get() == null)
+				console.flush();
+		}
+	}
+}
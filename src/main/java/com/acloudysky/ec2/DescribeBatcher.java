@@ -0,0 +1,176 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * Merges the single instance lookups made at about the same time into one DescribeInstances
+ * call. The first lookup opens a batch and waits for a short window; the lookups arriving
+ * meanwhile join the batch, then the first one describes all their instances at once and
+ * hands each lookup its instance. A full batch is described right away. A lookup for an
+ * instance already being described waits for that call instead of adding the id again.
+ * <pre>
+ * DescribeBatcher batcher = new DescribeBatcher(client, DescribeBatcher.DEFAULT_WINDOW_MILLIS);
+ * InstanceSummary instance = batcher.get("i-1a2b3c4d");
+ * </pre>
+ * The window is added to the latency of a lookup, in exchange for fewer calls when many
+ * scripts or threads look instances up together. The batch uses the instance-id filter,
+ * which unlike instance ids does not fail the whole call for one unknown id.
+ */
+public class DescribeBatcher {
+
+	/**
+	 * Default time a batch waits for other lookups, in milliseconds.
+	 */
+	public static final long DEFAULT_WINDOW_MILLIS = 10;
+
+	/**
+	 * Maximum number of instances described by one call.
+	 */
+	public static final int MAX_BATCH_SIZE = 200;
+
+	/*
+	 * Ids waiting to be described together.
+	 */
+	private static class Batch {
+		final List<String> ids = new ArrayList<String>();
+		boolean taken = false;
+	}
+
+	private final AmazonEC2 ec2Client;
+	private final long windowMillis;
+
+	// Lookups waiting for their instance, by instance id.
+	private final ConcurrentMap<String, CompletableFuture<InstanceSummary>> inFlight =
+			new ConcurrentHashMap<String, CompletableFuture<InstanceSummary>>();
+
+	// Batch open to new ids, or null. Guarded by this.
+	private Batch open = null;
+
+	// Number of calls made.
+	private long callCount = 0;
+
+	/**
+	 * Initializes the batcher.
+	 * @param client Authenticated EC2 client.
+	 * @param windowMillis Time a batch waits for other lookups, in milliseconds. 0 merges
+	 * 		only the lookups of the same instance.
+	 */
+	public DescribeBatcher(AmazonEC2 client, long windowMillis) {
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+		ec2Client = client;
+		this.windowMillis = Math.max(0, windowMillis);
+	}
+
+	/**
+	 * Describes an instance, together with the instances looked up at the same time.
+	 * @param instanceId The instance id.
+	 * @return The instance, or null if it does not exist.
+	 */
+	public InstanceSummary get(String instanceId) {
+		CompletableFuture<InstanceSummary> future = new CompletableFuture<InstanceSummary>();
+		CompletableFuture<InstanceSummary> existing = inFlight.putIfAbsent(instanceId, future);
+		if (existing != null)
+			return SingleFlight.join(existing);
+
+		Batch batch;
+		boolean first;
+		Batch full = null;
+		synchronized (this) {
+			if (open == null)
+				open = new Batch();
+			batch = open;
+			first = batch.ids.isEmpty();
+			batch.ids.add(instanceId);
+			if (batch.ids.size() >= MAX_BATCH_SIZE)
+				full = take(batch);
+		}
+
+		if (full != null)
+			describe(full.ids);
+		else if (first) {
+			// Let the other lookups join, then describe the batch unless it filled up meanwhile.
+			try {
+				Thread.sleep(windowMillis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				full = take(batch);
+			}
+			if (full != null)
+				describe(full.ids);
+		}
+		return SingleFlight.join(future);
+	}
+
+	/**
+	 * Gets the number of DescribeInstances calls made.
+	 * @return The number of calls.
+	 */
+	public synchronized long getCallCount() {
+		return callCount;
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	/*
+	 * Closes a batch to new ids. Returns null if it was taken already. Called with the lock held.
+	 */
+	private Batch take(Batch batch) {
+		if (batch.taken)
+			return null;
+		batch.taken = true;
+		if (open == batch)
+			open = null;
+		return batch;
+	}
+
+	/*
+	 * Describes the ids of a batch, and hands each lookup its instance or the error. Errors
+	 * are handed over too: the other lookups of the batch would otherwise wait forever.
+	 */
+	private void describe(List<String> ids) {
+		synchronized (this) {
+			callCount++;
+		}
+		if (Main.DEBUG)
+			System.out.println(String.format("DescribeBatcher: describing %d instance(s)", ids.size()));
+
+		Map<String, InstanceSummary> found = new HashMap<String, InstanceSummary>();
+		try {
+			new InstanceQuery()
+					.withFilter("instance-id", ids.toArray(new String[ids.size()]))
+					.summaries(ec2Client)
+					.forEach(instance -> found.put(instance.getInstanceId(), instance));
+			for (String id : ids)
+				complete(id, found.get(id), null);
+		}
+		catch (RuntimeException | Error e) {
+			for (String id : ids)
+				complete(id, null, e);
+		}
+	}
+
+	private void complete(String instanceId, InstanceSummary instance, Throwable error) {
+		CompletableFuture<InstanceSummary> future = inFlight.remove(instanceId);
+		if (future == null)
+			return;
+		if (error != null)
+			future.completeExceptionally(error);
+		else
+			future.complete(instance);
+	}
+}
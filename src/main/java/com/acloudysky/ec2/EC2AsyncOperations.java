@@ -0,0 +1,292 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Non blocking counterpart of {@link EC2Operations}. Each method runs its calls on an executor
+ * and returns a CompletableFuture of the typed result, so that operations can be composed
+ * without blocking the caller. For example:
+ * <pre>
+ * asyncOperations.runInstances(request)
+ *     .thenCompose(instances -&gt; asyncOperations.createTags(getInstanceIds(instances), new Tag("owner", "Michael")))
+ *     .thenCompose(ids -&gt; asyncOperations.waitFor(ids, "running", 300000));
+ * </pre>
+ * The calls go through the client given, normally the decorated client of the application,
+ * so that they are rate limited, retried and counted like the synchronous operations. Errors
+ * complete the futures exceptionally with the AmazonServiceException or AmazonClientException
+ * thrown by the client.
+ * @see EC2Operations#getAsyncOperations()
+ */
+public class EC2AsyncOperations {
+
+	// Authenticated EC2 client.
+	private final AmazonEC2 ec2Client;
+
+	// Poller of the wait stages.
+	private final InstanceStateWaiter stateWaiter;
+
+	// Runs the calls.
+	private final Executor executor;
+
+	/**
+	 * Initializes the operations.
+	 * @param client Authenticated EC2 client, with its retry and rate limiting decorators.
+	 * @param waiter The instance state poller of the wait stages.
+	 * @param executor Runs the calls. Its size bounds the calls made at the same time.
+	 */
+	public EC2AsyncOperations(AmazonEC2 client, InstanceStateWaiter waiter, Executor executor) {
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+		ec2Client = client;
+		stateWaiter = waiter;
+		this.executor = executor;
+	}
+
+	/**
+	 * Launches instances.
+	 * @param request The launch request.
+	 * @return The future of the launched instances.
+	 */
+	public CompletableFuture<List<Instance>> runInstances(RunInstancesRequest request) {
+		return runReservation(request).thenApply(reservation -> reservation.getInstances());
+	}
+
+	/**
+	 * Describes the instances selected by the query. The pages are requested one after
+	 * the other, without blocking.
+	 * @param query The query selecting the instances.
+	 * @return The future of the matching instances.
+	 */
+	public CompletableFuture<List<Instance>> describeInstances(InstanceQuery query) {
+		DescribeInstancesRequest request = query.toRequest();
+		if (request.getInstanceIds() == null || request.getInstanceIds().isEmpty())
+			request.setMaxResults(InstancePager.DEFAULT_PAGE_SIZE);
+		return describePages(request, new ArrayList<Reservation>())
+				.thenApply(reservations -> {
+					List<Instance> instances = new ArrayList<Instance>();
+					for (Reservation reservation : reservations)
+						instances.addAll(reservation.getInstances());
+					return instances;
+				});
+	}
+
+	/**
+	 * Describes instances by id, with the instance-id filter: unlike a list of ids, it does
+	 * not fail the whole call when an instance is not visible yet. Chunks of ids are
+	 * described concurrently.
+	 * @param instanceIds The instance ids.
+	 * @return The future of the instances found.
+	 */
+	public CompletableFuture<List<Instance>> describeInstances(Collection<String> instanceIds) {
+		List<String> ids = new ArrayList<String>(instanceIds);
+		List<CompletableFuture<List<Instance>>> calls = new ArrayList<CompletableFuture<List<Instance>>>();
+		for (int from = 0; from < ids.size(); from += DescribeBatcher.MAX_BATCH_SIZE) {
+			List<String> chunk = ids.subList(from, Math.min(ids.size(), from + DescribeBatcher.MAX_BATCH_SIZE));
+			calls.add(describeInstances(new InstanceQuery().withFilter("instance-id", chunk.toArray(new String[chunk.size()]))));
+		}
+		return concat(calls);
+	}
+
+	/**
+	 * Assigns the same tags to the resources. Chunks of resources are tagged concurrently.
+	 * @param resourceIds The ids of the resources to tag.
+	 * @param tags The tags.
+	 * @return The future of the tagged resource ids.
+	 */
+	public CompletableFuture<List<String>> createTags(Collection<String> resourceIds, Tag... tags) {
+		List<String> ids = new ArrayList<String>(resourceIds);
+		List<CompletableFuture<?>> calls = new ArrayList<CompletableFuture<?>>();
+		for (int from = 0; from < ids.size(); from += TagWriter.MAX_RESOURCES_PER_CALL) {
+			List<String> chunk = ids.subList(from, Math.min(ids.size(), from + TagWriter.MAX_RESOURCES_PER_CALL));
+			CreateTagsRequest request = new CreateTagsRequest()
+					.withResources(new ArrayList<String>(chunk))
+					.withTags(Arrays.asList(tags));
+			calls.add(CompletableFuture.runAsync(() -> ec2Client.createTags(request), executor));
+		}
+		return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[calls.size()]))
+				.thenApply(done -> ids);
+	}
+
+	/**
+	 * Waits for the instances to reach a state, through the shared state poller.
+	 * @param instanceIds The instance ids.
+	 * @param targetState The state name, for example running.
+	 * @param timeoutMillis Maximum time to wait, in milliseconds.
+	 * @return The future of the instances which reached the state, in their state at that
+	 * 		time. The instances which timed out or ended in another state are left out.
+	 */
+	public CompletableFuture<List<Instance>> waitFor(Collection<String> instanceIds, String targetState, long timeoutMillis) {
+		if (stateWaiter == null)
+			throw new RuntimeException("No instance state waiter");
+		List<CompletableFuture<Instance>> waits = new ArrayList<CompletableFuture<Instance>>(
+				stateWaiter.waitFor(instanceIds, targetState, timeoutMillis).values());
+		return CompletableFuture.allOf(waits.stream()
+						.map(wait -> wait.handle((instance, error) -> instance))
+						.toArray(CompletableFuture<?>[]::new))
+				.thenApply(done -> {
+					List<Instance> instances = new ArrayList<Instance>();
+					for (CompletableFuture<Instance> wait : waits)
+						if (!wait.isCompletedExceptionally())
+							instances.add(wait.join());
+					return instances;
+				});
+	}
+
+	/**
+	 * Terminates the instances. Chunks of ids are sent concurrently.
+	 * @param instanceIds The ids of the instances to terminate.
+	 * @return The future of the state changes returned by EC2.
+	 */
+	public CompletableFuture<List<InstanceStateChange>> terminateInstances(Collection<String> instanceIds) {
+		List<String> ids = new ArrayList<String>(instanceIds);
+		List<CompletableFuture<List<InstanceStateChange>>> calls = new ArrayList<CompletableFuture<List<InstanceStateChange>>>();
+		for (int from = 0; from < ids.size(); from += InstanceTerminator.MAX_IDS_PER_CALL) {
+			List<String> chunk = ids.subList(from, Math.min(ids.size(), from + InstanceTerminator.MAX_IDS_PER_CALL));
+			TerminateInstancesRequest request = new TerminateInstancesRequest()
+					.withInstanceIds(new ArrayList<String>(chunk));
+			calls.add(CompletableFuture.supplyAsync(
+					() -> ec2Client.terminateInstances(request).getTerminatingInstances(), executor));
+		}
+		return concat(calls);
+	}
+
+	/**
+	 * Lists the availability zones of the client's region.
+	 * @return The future of the availability zones.
+	 */
+	public CompletableFuture<List<AvailabilityZone>> getAvailabilityZones() {
+		return CompletableFuture.supplyAsync(
+				() -> ec2Client.describeAvailabilityZones().getAvailabilityZones(), executor);
+	}
+
+	/**
+	 * Launches instances, tags them, then waits for them to be running, or only describes
+	 * them once tagged.
+	 * @param request The launch request.
+	 * @param waitMillis Maximum time to wait for the instances to be running, in milliseconds.
+	 * 		0 does not wait.
+	 * @param tags The tags to assign to all the launched instances.
+	 * @return The future of the instances, with their reservation id. When waiting, the
+	 * 		instances not running in time are left out.
+	 */
+	public CompletableFuture<List<InstanceSummary>> launch(RunInstancesRequest request, long waitMillis, Tag... tags) {
+		return runReservation(request).thenCompose(reservation -> {
+			Map<String, String> reservationIds = new HashMap<String, String>();
+			for (Instance instance : reservation.getInstances())
+				reservationIds.put(instance.getInstanceId(), reservation.getReservationId());
+			List<String> ids = getInstanceIds(reservation.getInstances());
+
+			CompletableFuture<List<String>> tagged = tags.length > 0 
+					? createTags(ids, tags) : CompletableFuture.completedFuture(ids);
+			return tagged
+					.thenCompose(done -> waitMillis > 0 ? waitFor(ids, "running", waitMillis) : describeInstances(ids))
+					.thenApply(instances -> {
+						List<InstanceSummary> summaries = new ArrayList<InstanceSummary>();
+						for (Instance instance : instances)
+							summaries.add(InstanceSummary.from(instance, reservationIds.get(instance.getInstanceId())));
+						return summaries;
+					});
+		});
+	}
+
+	/**
+	 * Launches instances, tags them and describes them once tagged.
+	 * @param request The launch request.
+	 * @param tags The tags to assign to all the launched instances.
+	 * @return The future of the tagged instances.
+	 */
+	public CompletableFuture<List<Instance>> launchAndTag(RunInstancesRequest request, Tag... tags) {
+		return runInstances(request)
+				.thenCompose(instances -> createTags(getInstanceIds(instances), tags))
+				.thenCompose(ids -> describeInstances(ids));
+	}
+
+	/**
+	 * Gets the ids of the instances.
+	 * @param instances The instances.
+	 * @return The instance ids.
+	 */
+	public static List<String> getInstanceIds(Collection<Instance> instances) {
+		List<String> ids = new ArrayList<String>(instances.size());
+		for (Instance instance : instances)
+			ids.add(instance.getInstanceId());
+		return ids;
+	}
+
+	/**
+	 * Gets the result of a future, waiting for it, with the client's exception rather than
+	 * the CompletionException wrapping it.
+	 * @param future The future.
+	 * @return The result.
+	 */
+	public static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private CompletableFuture<Reservation> runReservation(RunInstancesRequest request) {
+		return CompletableFuture.supplyAsync(() -> ec2Client.runInstances(request).getReservation(), executor);
+	}
+
+	/*
+	 * Requests the next page and, when it arrives, the following one.
+	 */
+	private CompletableFuture<List<Reservation>> describePages(DescribeInstancesRequest request, List<Reservation> reservations) {
+		return CompletableFuture.supplyAsync(() -> ec2Client.describeInstances(request), executor)
+				.thenCompose((DescribeInstancesResult result) -> {
+					reservations.addAll(result.getReservations());
+
+					String nextToken = result.getNextToken();
+					if (nextToken == null || nextToken.isEmpty())
+						return CompletableFuture.completedFuture(reservations);
+
+					DescribeInstancesRequest next = request.clone();
+					next.setNextToken(nextToken);
+					return describePages(next, reservations);
+				});
+	}
+
+	/*
+	 * Concatenates the results of concurrent calls, in the order of the calls.
+	 */
+	private static <T> CompletableFuture<List<T>> concat(List<CompletableFuture<List<T>>> calls) {
+		return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[calls.size()]))
+				.thenApply(done -> {
+					List<T> results = new ArrayList<T>();
+					for (CompletableFuture<List<T>> call : calls)
+						results.addAll(call.join());
+					return results;
+				});
+	}
+}
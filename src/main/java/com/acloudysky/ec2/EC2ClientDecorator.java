@@ -0,0 +1,100 @@
+package com.acloudysky.ec2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * Base of the AmazonEC2 wrappers, such as the rate limiter and the retry layer. The wrapper
+ * is a dynamic proxy: {@link #call(Method, Object[])} sees every call made to EC2, whatever
+ * the SDK version, while the Object methods and the client methods that do not call EC2
+ * (setEndpoint, setRegion, shutdown, ...) go straight to the wrapped client.
+ */
+abstract class EC2ClientDecorator implements InvocationHandler {
+
+	// Client methods that do not call EC2.
+	private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList(
+			"setEndpoint", "setRegion", "shutdown", "getCachedResponseMetadata"));
+
+	// Wrapped client.
+	protected final AmazonEC2 ec2Client;
+
+	/**
+	 * Initializes the decorator.
+	 * @param client The client to wrap.
+	 */
+	protected EC2ClientDecorator(AmazonEC2 client) {
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+		ec2Client = client;
+	}
+
+	/**
+	 * Creates the proxy sending the calls to this decorator.
+	 * @return The wrapped client.
+	 */
+	protected AmazonEC2 newProxy() {
+		return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(),
+				new Class<?>[] { AmazonEC2.class }, this);
+	}
+
+	/**
+	 * Handles a call to EC2.
+	 * @param method The client method, for example describeInstances.
+	 * @param args The arguments of the call.
+	 * @return The result of the call.
+	 * @throws Throwable The exception thrown by the call.
+	 */
+	protected abstract Object call(Method method, Object[] args) throws Throwable;
+
+	/**
+	 * Calls the wrapped client.
+	 * @param method The client method.
+	 * @param args The arguments of the call.
+	 * @return The result of the call.
+	 * @throws Throwable The exception thrown by the client, not wrapped.
+	 */
+	protected Object invokeClient(Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(ec2Client, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Checks whether an action is non mutating, that is whether it only reads.
+	 * @param methodName The client method, for example describeInstances.
+	 * @return True for the Describe* and Get* actions.
+	 */
+	public static boolean isNonMutating(String methodName) {
+		return methodName.startsWith("describe") || methodName.startsWith("get");
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return getClass().getSimpleName() + " " + ec2Client;
+				default:
+					return invokeClient(method, args);
+			}
+		}
+		if (LOCAL_METHODS.contains(method.getName()))
+			return invokeClient(method, args);
+		return call(method, args);
+	}
+}
@@ -0,0 +1,55 @@
+package com.acloudysky.ec2;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+
+/**
+ * Creates the authenticated EC2 clients of the application. The credentials are those of
+ * the default profile of the ~/.aws/credentials file, as set up for the aws-client-auth
+ * project. The client configuration is given at creation, so that the SDK retries can be
+ * turned off before the client sends any request:
+ * <pre>
+ * AmazonEC2 client = EC2ClientFactory.create(Regions.US_WEST_2, RetryingEC2Client.newClientConfiguration());
+ * </pre>
+ */
+public class EC2ClientFactory {
+
+	/**
+	 * Creates a client of a region, with the credentials of the default profile.
+	 * @param region The EC2 region.
+	 * @param configuration The client configuration, for example without SDK retries.
+	 * @return The authenticated client.
+	 */
+	public static AmazonEC2 create(Regions region, ClientConfiguration configuration) {
+		return create(new ProfileCredentialsProvider(), region, configuration);
+	}
+
+	/**
+	 * Creates a client of a region.
+	 * @param credentials Provides the credentials signing the requests.
+	 * @param region The EC2 region.
+	 * @param configuration The client configuration, for example without SDK retries.
+	 * @return The authenticated client.
+	 */
+	public static AmazonEC2 create(AWSCredentialsProvider credentials, Regions region, ClientConfiguration configuration) {
+		AmazonEC2Client client = new AmazonEC2Client(credentials, configuration);
+		client.setRegion(Region.getRegion(region));
+		return client;
+	}
+
+	/**
+	 * Creates a client for the local EC2 endpoint, which does not check the signatures.
+	 * @param configuration The client configuration, for example without SDK retries.
+	 * @return The client. Its endpoint must be set.
+	 */
+	public static AmazonEC2 createLocal(ClientConfiguration configuration) {
+		return new AmazonEC2Client(new StaticCredentialsProvider(new BasicAWSCredentials("local", "local")), configuration);
+	}
+}
@@ -0,0 +1,593 @@
+package com.acloudysky.ec2;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps the application running and serves the EC2 operations over a local HTTP/JSON API,
+ * so that scripts do not pay the JVM start, the credentials lookup and the TLS handshakes on
+ * every call: the authenticated client, its connection pool and the instance inventory stay
+ * warm between requests. The server listens on the loopback interface only.
+ * <p>
+ * Every request must carry the token of the run, Authorization: Bearer &lt;token&gt;. The token
+ * is written at start to a file only the user can read, by default daemon-&lt;port&gt;.token in
+ * the .aws-ec2-client directory of the user's home (system property ec2.daemon.token.file),
+ * and deleted at stop. Requests whose Host header is not the loopback address are rejected,
+ * against DNS rebinding, and so are POST bodies which are not application/json, which a web 
+ * page cannot send without a CORS preflight.
+ * </p>
+ * <ul>
+ * <li>GET /health: {"status":"ok"}.</li>
+ * <li>GET /zones: the availability zones of the region.</li>
+ * <li>GET /fleet?top=10&amp;oldest=5: the number of instances by availability zone, instance
+ * type, state, key pair and owner, with at most top values each, and the oldest instances.</li>
+ * <li>GET /instances?id=i-1,i-2 or ?key=name or ?tag=key:value or ?state=running: the
+ * matching instances, one JSON object per line, as the json report format. The parameters
+ * can be combined. Lookups by id or key pair are answered from the inventory when it is
+ * enabled.</li>
+ * <li>POST /instances {"keyName":"...", "count":1, "imageId":"...", "instanceType":"...",
+ * "subnetId":"...", "availabilityZone":"...", "clientToken":"...", "tags":{"owner":"..."},
+ * "waitSeconds":0}: launches and tags instances, and returns them, or, with waitSeconds, the
+ * ones running within that time. Only keyName is required. Send the same clientToken again
+ * to retry a launch without launching twice.</li>
+ * <li>POST /tags {"instanceIds":["i-1"], "tags":{"Name":"web"}}: tags instances.</li>
+ * <li>POST /terminate {"instanceIds":["i-1"]}: terminates instances and returns the result
+ * of each one.</li>
+ * </ul>
+ * Errors are returned as {"error":"...", "message":"..."} with status 400, 401, 403, 404, 415
+ * or 500, or the status returned by EC2.
+ * <p>
+ * Requests are served on virtual threads when the Java runtime has them (Java 21 and later),
+ * otherwise on a cached thread pool.
+ * </p>
+ */
+public class EC2Daemon {
+
+	/**
+	 * Default port.
+	 */
+	public static final int DEFAULT_PORT = 8080;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	// Host names of the loopback interface accepted in the Host header.
+	private static final List<String> LOOPBACK_HOSTS = Arrays.asList("127.0.0.1", "localhost", "[::1]");
+
+	// Authenticated EC2 client.
+	private final AmazonEC2 ec2Client;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	// Token of the run, and the file it is written to.
+	private final String token = newToken();
+	private final Path tokenFile;
+
+	// Released by stop.
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * Creates the daemon. EC2Operations must be initialized with the same client.
+	 * @param client Authenticated EC2 client.
+	 * @param port The port, or 0 to use any free port.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public EC2Daemon(AmazonEC2 client, int port) throws IOException {
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+		ec2Client = client;
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		executor = newRequestExecutor();
+		server.setExecutor(executor);
+		server.createContext("/health", exchange -> handle(exchange, "GET", this::health));
+		server.createContext("/zones", exchange -> handle(exchange, "GET", this::zones));
+		server.createContext("/fleet", exchange -> handle(exchange, "GET", this::fleet));
+		server.createContext("/instances", exchange -> handle(exchange, null, this::instances));
+		server.createContext("/tags", exchange -> handle(exchange, "POST", this::tags));
+		server.createContext("/terminate", exchange -> handle(exchange, "POST", this::terminate));
+
+		String file = System.getProperty("ec2.daemon.token.file");
+		tokenFile = file != null ? Paths.get(file)
+				: Paths.get(System.getProperty("user.home"), ".aws-ec2-client", 
+						String.format("daemon-%d.token", server.getAddress().getPort()));
+	}
+
+	/**
+	 * Writes the token file, loads the inventory and starts serving requests.
+	 * @throws IOException If the token file cannot be written.
+	 */
+	public void start() throws IOException {
+		writeTokenFile();
+		InstanceInventory inventory = EC2Operations.getInventory();
+		if (inventory != null)
+			inventory.reload();
+		server.start();
+	}
+
+	/**
+	 * Stops serving requests and deletes the token file.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+		try {
+			Files.deleteIfExists(tokenFile);
+		}
+		catch (IOException e) {
+			if (Main.DEBUG)
+				System.out.println("EC2Daemon: " + e.getMessage());
+		}
+		stopped.countDown();
+	}
+
+	/**
+	 * Waits until the daemon is stopped.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public void await() throws InterruptedException {
+		stopped.await();
+	}
+
+	/**
+	 * Gets the base URL of the API.
+	 * @return The URL, for example http://127.0.0.1:8080.
+	 */
+	public String getUrl() {
+		InetSocketAddress address = server.getAddress();
+		return String.format("http://%s:%d", address.getAddress().getHostAddress(), address.getPort());
+	}
+
+	/**
+	 * Gets the file the token of the run is written to.
+	 * @return The file.
+	 */
+	public Path getTokenFile() {
+		return tokenFile;
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	/*
+	 * Handles the request of one endpoint.
+	 */
+	private interface Endpoint {
+		void serve(HttpExchange exchange, Map<String, String> params) throws IOException;
+	}
+
+	/*
+	 * Error returned to the client with an HTTP status.
+	 */
+	private static class ApiException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final int status;
+		final String error;
+
+		ApiException(int status, String error, String message) {
+			super(message);
+			this.status = status;
+			this.error = error;
+		}
+	}
+
+	private void handle(HttpExchange exchange, String method, Endpoint endpoint) throws IOException {
+		try {
+			authorize(exchange);
+			if (method != null && !method.equals(exchange.getRequestMethod()))
+				throw new ApiException(405, "MethodNotAllowed", "Use " + method);
+			endpoint.serve(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+		}
+		catch (ApiException e) {
+			sendError(exchange, e.status, e.error, e.getMessage());
+		}
+		catch (AmazonServiceException e) {
+			sendError(exchange, e.getStatusCode() > 0 ? e.getStatusCode() : 500, e.getErrorCode(), e.getErrorMessage());
+		}
+		catch (AmazonClientException | IOException | IllegalArgumentException e) {
+			sendError(exchange, e instanceof IllegalArgumentException ? 400 : 500,
+					e.getClass().getSimpleName(), e.getMessage());
+		}
+		catch (RuntimeException e) {
+			// For example the client not initialized: still answer, rather than drop the connection.
+			sendError(exchange, 500, e.getClass().getSimpleName(), e.getMessage());
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/*
+	 * Checks the Host header, the token and, for a POST, the content type.
+	 */
+	private void authorize(HttpExchange exchange) {
+		String host = exchange.getRequestHeaders().getFirst("Host");
+		if (host == null || !isLoopbackHost(host, server.getAddress().getPort()))
+			throw new ApiException(403, "InvalidHost", "The Host header must be the loopback address");
+
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		String expected = "Bearer " + token;
+		if (authorization == null || !MessageDigest.isEqual(
+				authorization.trim().getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8))) {
+			exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+			throw new ApiException(401, "Unauthorized", "Send Authorization: Bearer <token>, the token is in " + tokenFile);
+		}
+
+		if ("POST".equals(exchange.getRequestMethod())) {
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			String mediaType = contentType == null ? "" : contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+			if (!mediaType.equals("application/json"))
+				throw new ApiException(415, "UnsupportedMediaType", "The body must be application/json");
+		}
+	}
+
+	private static boolean isLoopbackHost(String host, int port) {
+		host = host.trim().toLowerCase(Locale.ROOT);
+		for (String loopback : LOOPBACK_HOSTS)
+			if (host.equals(loopback) || host.equals(loopback + ":" + port))
+				return true;
+		return false;
+	}
+
+	/*
+	 * Writes the token to a file readable by the user only.
+	 */
+	private void writeTokenFile() throws IOException {
+		if (tokenFile.getParent() != null)
+			Files.createDirectories(tokenFile.getParent());
+		Files.deleteIfExists(tokenFile);
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+			Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		else
+			Files.createFile(tokenFile);
+		Files.write(tokenFile, token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String newToken() {
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes)
+			token.append(String.format("%02x", b));
+		return token.toString();
+	}
+
+	private void health(HttpExchange exchange, Map<String, String> params) throws IOException {
+		ObjectNode body = MAPPER.createObjectNode().put("status", "ok");
+		InstanceInventory inventory = EC2Operations.getInventory();
+		if (inventory != null)
+			body.put("inventorySize", inventory.size());
+		sendJson(exchange, 200, body);
+	}
+
+	private void zones(HttpExchange exchange, Map<String, String> params) throws IOException {
+		ArrayNode zones = MAPPER.createArrayNode();
+		for (AvailabilityZone zone : ec2Client.describeAvailabilityZones().getAvailabilityZones())
+			zones.addObject()
+					.put("name", zone.getZoneName())
+					.put("region", zone.getRegionName())
+					.put("state", zone.getState());
+		sendJson(exchange, 200, MAPPER.createObjectNode().set("zones", zones));
+	}
+
+	private void fleet(HttpExchange exchange, Map<String, String> params) throws IOException {
+		int top = Integer.parseInt(params.getOrDefault("top", String.valueOf(Integer.MAX_VALUE)));
+		FleetAggregation fleet = EC2Operations.aggregateInstances(
+				Integer.parseInt(params.getOrDefault("oldest", String.valueOf(FleetAggregation.DEFAULT_OLDEST))));
+
+		ObjectNode body = MAPPER.createObjectNode().put("total", fleet.getTotal());
+		for (FleetAggregation.Dimension dimension : FleetAggregation.Dimension.values()) {
+			ObjectNode counts = body.putObject(fieldName(dimension));
+			for (Map.Entry<String, Long> count : fleet.getTop(dimension, top).entrySet())
+				counts.put(count.getKey(), count.getValue());
+		}
+		ArrayNode oldest = body.putArray("oldest");
+		for (InstanceSummary instance : fleet.getOldest())
+			oldest.addObject()
+					.put("instanceId", instance.getInstanceId())
+					.put("launchTime", Instant.ofEpochMilli(instance.getLaunchTime()).toString())
+					.put("instanceType", instance.getInstanceType())
+					.put("state", instance.getState().getStateName());
+		sendJson(exchange, 200, body);
+	}
+
+	private void instances(HttpExchange exchange, Map<String, String> params) throws IOException {
+		switch (exchange.getRequestMethod()) {
+			case "GET":
+				sendInstances(exchange, 200, describe(params));
+				break;
+			case "POST":
+				sendInstances(exchange, 201, launch(readBody(exchange)).iterator());
+				break;
+			default:
+				throw new ApiException(405, "MethodNotAllowed", "Use GET or POST");
+		}
+	}
+
+	/*
+	 * Selects the instances. Answers from the inventory when possible.
+	 */
+	private Iterator<InstanceSummary> describe(Map<String, String> params) {
+		List<String> ids = split(params.get("id"));
+		String keyName = params.get("key");
+		String tag = params.get("tag");
+		String state = params.get("state");
+
+		InstanceInventory inventory = EC2Operations.getInventory();
+		if (inventory != null && tag == null && state == null && (ids.isEmpty() != (keyName == null))) {
+			if (keyName != null)
+				return inventory.getByKeyName(keyName).iterator();
+			List<InstanceSummary> instances = new ArrayList<InstanceSummary>();
+			List<String> missing = new ArrayList<String>();
+			for (String id : ids) {
+				InstanceSummary instance = inventory.getById(id);
+				if (instance == null)
+					missing.add(id);
+				else
+					instances.add(instance);
+			}
+			if (missing.isEmpty())
+				return instances.iterator();
+		}
+
+		InstanceQuery query = new InstanceQuery();
+		if (!ids.isEmpty())
+			query.withInstanceIds(ids);
+		if (keyName != null)
+			query.withKeyName(keyName);
+		if (state != null)
+			query.withState(state);
+		if (tag != null) {
+			int colon = tag.indexOf(':');
+			if (colon < 0)
+				query.withTagKey(tag);
+			else
+				query.withTag(tag.substring(0, colon), tag.substring(colon + 1));
+		}
+		return query.summaries(ec2Client).iterator();
+	}
+
+	/*
+	 * Launches and tags instances, and waits for them if requested, as one pipeline of the
+	 * asynchronous operations. The launch is idempotent on the client token.
+	 */
+	private List<InstanceSummary> launch(JsonNode body) {
+		String keyName = text(body, "keyName", null);
+		if (keyName == null)
+			throw new ApiException(400, "MissingParameter", "keyName is required");
+		int count = body.path("count").asInt(1);
+		if (count < 1)
+			throw new ApiException(400, "InvalidParameterValue", "count must be positive");
+		long waitSeconds = body.path("waitSeconds").asLong(0);
+		if (waitSeconds < 0)
+			throw new ApiException(400, "InvalidParameterValue", "waitSeconds must not be negative");
+
+		LaunchProfiles.Profile defaults = EC2Operations.getLaunchProfile(LaunchProfiles.DEFAULT_PROFILE);
+		RunInstancesRequest request = new RunInstancesRequest()
+				.withImageId(text(body, "imageId", defaults.getImageId()))
+				.withInstanceType(text(body, "instanceType", defaults.getInstanceType()))
+				.withMinCount(count)
+				.withMaxCount(count)
+				.withKeyName(keyName)
+				.withSubnetId(text(body, "subnetId", defaults.getSubnetId()))
+				.withPlacement(new Placement(text(body, "availabilityZone", defaults.getZone())))
+				.withClientToken(text(body, "clientToken", UUID.randomUUID().toString()));
+		List<InstanceSummary> instances = EC2AsyncOperations.join(
+				EC2Operations.getAsyncOperations().launch(request, waitSeconds * 1000, tags(body)));
+
+		List<String> ids = new ArrayList<String>();
+		for (InstanceSummary instance : instances)
+			ids.add(instance.getInstanceId());
+		InstanceInventory inventory = EC2Operations.getInventory();
+		if (inventory != null) {
+			inventory.refresh(ids);
+			List<InstanceSummary> refreshed = new ArrayList<InstanceSummary>();
+			for (InstanceSummary instance : instances) {
+				InstanceSummary cached = inventory.getById(instance.getInstanceId());
+				refreshed.add(cached != null ? cached : instance);
+			}
+			return refreshed;
+		}
+		return instances;
+	}
+
+	private void tags(HttpExchange exchange, Map<String, String> params) throws IOException {
+		JsonNode body = readBody(exchange);
+		List<String> ids = instanceIds(body);
+		Tag[] tags = tags(body);
+		if (tags.length == 0)
+			throw new ApiException(400, "MissingParameter", "tags is required");
+
+		List<String> tagged = new TagWriter(ec2Client).addTags(ids, tags).flush();
+		InstanceInventory inventory = EC2Operations.getInventory();
+		if (inventory != null)
+			inventory.refresh(tagged);
+
+		ArrayNode array = MAPPER.createArrayNode();
+		for (String id : tagged)
+			array.add(id);
+		sendJson(exchange, 200, MAPPER.createObjectNode().set("tagged", array));
+	}
+
+	private void terminate(HttpExchange exchange, Map<String, String> params) throws IOException {
+		Map<String, InstanceTerminator.Result> results = EC2Operations.terminateInstances(instanceIds(readBody(exchange)));
+
+		ArrayNode array = MAPPER.createArrayNode();
+		for (InstanceTerminator.Result result : results.values()) {
+			ObjectNode item = array.addObject()
+					.put("instanceId", result.getInstanceId())
+					.put("status", result.getStatus().name())
+					.put("terminated", result.isTerminated());
+			if (result.getStateCode() != null)
+				item.put("stateCode", result.getStateCode());
+			if (result.getMessage() != null)
+				item.put("message", result.getMessage());
+		}
+		sendJson(exchange, 200, MAPPER.createObjectNode().set("results", array));
+	}
+
+	/*
+	 * Streams the instances, one JSON object per line.
+	 */
+	private static void sendInstances(HttpExchange exchange, int status, Iterator<InstanceSummary> instances) throws IOException {
+		// Fetch the first page before the status is sent, so that errors such as unknown ids
+		// are still reported with their status.
+		instances.hasNext();
+
+		exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=UTF-8");
+		exchange.sendResponseHeaders(status, 0);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+		InstanceReportRenderer renderer = InstanceReportRenderer.forFormat(InstanceReportRenderer.Format.JSON);
+		renderer.begin(writer);
+		while (instances.hasNext())
+			renderer.render(instances.next(), writer);
+		renderer.end(writer);
+		writer.flush();
+	}
+
+	private static void sendJson(HttpExchange exchange, int status, JsonNode body) throws IOException {
+		byte[] bytes = MAPPER.writeValueAsBytes(body);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String error, String message) throws IOException {
+		ObjectNode body = MAPPER.createObjectNode().put("error", error).put("message", message);
+		try {
+			sendJson(exchange, status, body);
+		}
+		catch (IOException e) {
+			// The response was already started, for example by a failed stream: give up.
+			if (Main.DEBUG)
+				System.out.println("EC2Daemon: " + e.getMessage());
+		}
+	}
+
+	private static JsonNode readBody(HttpExchange exchange) throws IOException {
+		try {
+			JsonNode body = MAPPER.readTree(exchange.getRequestBody());
+			if (body == null || !body.isObject())
+				throw new ApiException(400, "InvalidRequest", "The body must be a JSON object");
+			return body;
+		}
+		catch (com.fasterxml.jackson.core.JsonProcessingException e) {
+			throw new ApiException(400, "InvalidRequest", e.getOriginalMessage());
+		}
+	}
+
+	private static List<String> instanceIds(JsonNode body) {
+		List<String> ids = new ArrayList<String>();
+		for (JsonNode id : body.path("instanceIds"))
+			ids.add(id.asText());
+		if (ids.isEmpty())
+			throw new ApiException(400, "MissingParameter", "instanceIds is required");
+		return ids;
+	}
+
+	private static Tag[] tags(JsonNode body) {
+		List<Tag> tags = new ArrayList<Tag>();
+		Iterator<Map.Entry<String, JsonNode>> fields = body.path("tags").fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			tags.add(new Tag(field.getKey(), field.getValue().asText()));
+		}
+		return tags.toArray(new Tag[tags.size()]);
+	}
+
+	private static String text(JsonNode body, String field, String defaultValue) {
+		JsonNode value = body.get(field);
+		return value == null || value.isNull() ? defaultValue : value.asText();
+	}
+
+	/*
+	 * Field name of an aggregation dimension, for example availabilityZone.
+	 */
+	private static String fieldName(FleetAggregation.Dimension dimension) {
+		StringBuilder name = new StringBuilder();
+		for (String word : dimension.name().toLowerCase().split("_"))
+			name.append(name.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+		return name.toString();
+	}
+
+	private static List<String> split(String value) {
+		if (value == null || value.trim().isEmpty())
+			return Collections.emptyList();
+		return Arrays.asList(value.trim().split("[\\s,]+"));
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null || query.isEmpty())
+			return params;
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+			String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+			params.put(name, value);
+		}
+		return params;
+	}
+
+	/*
+	 * Uses a virtual thread per request when the runtime supports it. Looked up by reflection,
+	 * so that the application still builds and runs on Java 8.
+	 */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "ec2-daemon");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package com.acloudysky.ec2;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.AwsSdkMetrics;
+import com.amazonaws.metrics.MetricCollector;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.metrics.ServiceMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+
+/**
+ * Latency, throughput and error statistics of the EC2 calls, by action. Two probes feed it:
+ * <ul>
+ * <li>{@link MeteredEC2Client}, the outermost client wrapper, records each call as the
+ * operations see it: count, errors and latency, rate limiting and retries included.</li>
+ * <li>The SDK metric collector, once {@link #install()}ed, records the HTTP requests sent to
+ * EC2: count, throttling errors and bytes received. The requests beyond the calls are the
+ * retries of the retry layer; the clients are created without SDK retries.</li>
+ * </ul>
+ * <pre>
+ * EC2Metrics metrics = new EC2Metrics();
+ * metrics.install();
+ * AmazonEC2 client = MeteredEC2Client.wrap(RetryingEC2Client.wrap(authenticatedClient), metrics);
+ * ...
+ * System.out.print(metrics.report());
+ * </pre>
+ * All the recording is lock free, and the statistics can be written to a file periodically
+ * with {@link #startExport(Path, long)}.
+ */
+public class EC2Metrics {
+
+	/**
+	 * Default interval between two exports, in milliseconds.
+	 */
+	public static final long DEFAULT_EXPORT_PERIOD_MILLIS = 60000;
+
+	// Logger of the SDK request metrics. Kept, so that its level is not lost.
+	private static final Logger LATENCY_LOGGER = Logger.getLogger("com.amazonaws.latency");
+
+	/**
+	 * Statistics of one EC2 action.
+	 */
+	public static class ActionMetrics {
+		private final String action;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder throttled = new LongAdder();
+		private final LongAdder bytesReceived = new LongAdder();
+
+		ActionMetrics(String action) {
+			this.action = action;
+		}
+
+		/**
+		 * Gets the action name.
+		 * @return The action, for example DescribeInstances.
+		 */
+		public String getAction() {
+			return action;
+		}
+
+		/**
+		 * Gets the latency of the calls, retries included.
+		 * @return The histogram, in microseconds.
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		/**
+		 * Gets the number of completed calls.
+		 * @return The number of calls, failed or not.
+		 */
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		/**
+		 * Gets the number of calls which failed, after their retries.
+		 * @return The number of failed calls.
+		 */
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		/**
+		 * Gets the number of HTTP requests sent to EC2.
+		 * @return The number of requests, 0 if the collector is not installed.
+		 */
+		public long getRequests() {
+			return requests.sum();
+		}
+
+		/**
+		 * Gets the number of requests sent again after a failure.
+		 * @return The requests beyond the calls, 0 if the collector is not installed.
+		 */
+		public long getRetries() {
+			long requestCount = requests.sum();
+			return requestCount == 0 ? 0 : Math.max(0, requestCount - calls.sum());
+		}
+
+		/**
+		 * Gets the number of requests rejected by EC2 because of its rate limits.
+		 * @return The number of throttled requests.
+		 */
+		public long getThrottled() {
+			return throttled.sum();
+		}
+
+		/**
+		 * Gets the size of the successful responses.
+		 * @return The number of bytes received, from the Content-Length headers.
+		 */
+		public long getBytesReceived() {
+			return bytesReceived.sum();
+		}
+	}
+
+	// Statistics by action.
+	private final Map<String, ActionMetrics> actions = new ConcurrentHashMap<String, ActionMetrics>();
+
+	// Time the statistics start from.
+	private final long startMillis = System.currentTimeMillis();
+
+	private final MetricCollector collector = new SdkCollector();
+
+	// Periodic export. Null unless started.
+	private ScheduledExecutorService exporter = null;
+	private Path exportFile = null;
+
+	/**
+	 * Records the statistics of the HTTP requests sent by the SDK clients: requests, throttling
+	 * errors and bytes received. The SDK has one collector for the whole JVM; this replaces it.
+	 * Once a collector is installed, the SDK also logs the metrics of each request at the INFO
+	 * level on com.amazonaws.latency: unless that logger has a level already, it is set to
+	 * WARNING.
+	 */
+	public void install() {
+		if (LATENCY_LOGGER.getLevel() == null)
+			LATENCY_LOGGER.setLevel(Level.WARNING);
+		AwsSdkMetrics.setMetricCollector(collector);
+	}
+
+	/**
+	 * Records a completed call.
+	 * @param methodName The client method, for example describeInstances.
+	 * @param nanos The duration of the call, in nanoseconds.
+	 * @param failed True if the call threw an exception.
+	 */
+	public void recordCall(String methodName, long nanos, boolean failed) {
+		ActionMetrics metrics = get(actionName(methodName));
+		metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		if (failed)
+			metrics.errors.increment();
+		metrics.calls.increment();
+	}
+
+	/**
+	 * Gets the statistics of the actions called so far, most called first.
+	 * @return The statistics by action.
+	 */
+	public List<ActionMetrics> getActions() {
+		List<ActionMetrics> list = new ArrayList<ActionMetrics>(actions.values());
+		list.sort((a, b) -> a.getCalls() != b.getCalls()
+				? Long.compare(b.getCalls(), a.getCalls()) : a.action.compareTo(b.action));
+		return list;
+	}
+
+	/**
+	 * Formats the statistics as a table: one line per action, latencies in milliseconds.
+	 * @return The report.
+	 */
+	public String report() {
+		double seconds = Math.max(1, System.currentTimeMillis() - startMillis) / 1000.0;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("EC2 calls since %s (%.0f s)%n", new Date(startMillis), seconds));
+		report.append(String.format("%-30s %8s %8s %7s %7s %7s %10s %8s %8s %8s %8s %8s%n", "Action", "Calls",
+				"Calls/s", "Errors", "Retries", "Thrott.", "KB recv.", "Mean", "p50", "p90", "p99", "Max"));
+
+		long calls = 0, errors = 0, retries = 0, throttled = 0, bytes = 0;
+		for (ActionMetrics metrics : getActions()) {
+			LatencyHistogram latency = metrics.latency;
+			report.append(String.format("%-30s %8d %8.2f %7d %7d %7d %10.1f %8.1f %8.1f %8.1f %8.1f %8.1f%n",
+					metrics.action, metrics.getCalls(), metrics.getCalls() / seconds, metrics.getErrors(),
+					metrics.getRetries(), metrics.getThrottled(), metrics.getBytesReceived() / 1024.0,
+					latency.getMean() / 1000, latency.getValueAtPercentile(50) / 1000.0,
+					latency.getValueAtPercentile(90) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+					latency.getMax() / 1000.0));
+			calls += metrics.getCalls();
+			errors += metrics.getErrors();
+			retries += metrics.getRetries();
+			throttled += metrics.getThrottled();
+			bytes += metrics.getBytesReceived();
+		}
+		report.append(String.format("%-30s %8d %8.2f %7d %7d %7d %10.1f%n", "Total", calls, calls / seconds,
+				errors, retries, throttled, bytes / 1024.0));
+		return report.toString();
+	}
+
+	/**
+	 * Writes the report to a file now and then periodically, replacing the previous report.
+	 * @param file The report file.
+	 * @param periodMillis Interval between two writes, in milliseconds.
+	 */
+	public synchronized void startExport(Path file, long periodMillis) {
+		stopExport();
+		exportFile = file;
+		exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ec2-metrics-export");
+			thread.setDaemon(true);
+			return thread;
+		});
+		exporter.scheduleAtFixedRate(this::export, 0, Math.max(1000, periodMillis), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the periodic export, after a last write of the report.
+	 */
+	public synchronized void stopExport() {
+		if (exporter == null)
+			return;
+		exporter.shutdownNow();
+		exporter = null;
+		export();
+		exportFile = null;
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private ActionMetrics get(String action) {
+		ActionMetrics metrics = actions.get(action);
+		return metrics != null ? metrics : actions.computeIfAbsent(action, ActionMetrics::new);
+	}
+
+	/*
+	 * Converts a client method name to its action name: describeInstances to DescribeInstances.
+	 */
+	private static String actionName(String methodName) {
+		return Character.toUpperCase(methodName.charAt(0)) + methodName.substring(1);
+	}
+
+	/*
+	 * Writes the report next to the export file, then moves it over the file, so that a
+	 * reader never sees half a report.
+	 */
+	private void export() {
+		Path file = exportFile;
+		if (file == null)
+			return;
+		try {
+			Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+				writer.write(report());
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			if (Main.DEBUG)
+				System.out.println(String.format("EC2Metrics: cannot write %s: %s", file, e.getMessage()));
+		}
+	}
+
+	/*
+	 * Records the HTTP requests of each SDK call, SDK retries included. The action is the name
+	 * of the request class: DescribeInstancesRequest is DescribeInstances.
+	 */
+	private class SdkCollector extends MetricCollector {
+
+		private final RequestMetricCollector requestCollector = new RequestMetricCollector() {
+			@Override
+			public void collectMetrics(Request<?> request, Response<?> response) {
+				AmazonWebServiceRequest original = request.getOriginalRequest();
+				if (original == null)
+					return;
+				String name = original.getClass().getSimpleName();
+				ActionMetrics metrics = get(name.endsWith("Request") ? name.substring(0, name.length() - 7) : name);
+
+				// One error code per failed attempt.
+				AWSRequestMetrics requestMetrics = request.getAWSRequestMetrics();
+				Number requestCount = requestMetrics.getTimingInfo().getCounter(AWSRequestMetrics.Field.RequestCount.name());
+				metrics.requests.add(requestCount == null ? 1 : Math.max(1, requestCount.longValue()));
+				List<Object> errorCodes = requestMetrics.getProperty(AWSRequestMetrics.Field.AWSErrorCode);
+				if (errorCodes != null)
+					for (Object code : errorCodes)
+						if (RateLimitedEC2Client.isThrottlingCode(String.valueOf(code)))
+							metrics.throttled.increment();
+				if (response != null && response.getHttpResponse() != null)
+					metrics.bytesReceived.add(contentLength(response.getHttpResponse().getHeaders()));
+			}
+		};
+
+		@Override
+		public boolean start() {
+			return true;
+		}
+
+		@Override
+		public boolean stop() {
+			return true;
+		}
+
+		@Override
+		public boolean isEnabled() {
+			return true;
+		}
+
+		@Override
+		public RequestMetricCollector getRequestMetricCollector() {
+			return requestCollector;
+		}
+
+		@Override
+		public ServiceMetricCollector getServiceMetricCollector() {
+			return ServiceMetricCollector.NONE;
+		}
+	}
+
+	private static long contentLength(Map<String, String> headers) {
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if ("Content-Length".equalsIgnoreCase(header.getKey())) {
+				try {
+					return Long.parseLong(header.getValue().trim());
+				}
+				catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+}
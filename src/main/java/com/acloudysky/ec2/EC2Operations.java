@@ -1,26 +1,43 @@
 package com.acloudysky.ec2;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.AvailabilityZone;
-import com.amazonaws.services.ec2.model.BlockDeviceMapping;
-import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
-import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
-import com.amazonaws.services.ec2.model.DescribeInstancesResult;
-import com.amazonaws.services.ec2.model.EbsBlockDevice;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceState;
 import com.amazonaws.services.ec2.model.InstanceStateChange;
-import com.amazonaws.services.ec2.model.Placement;
-import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
-import com.amazonaws.services.ec2.model.RunInstancesResult;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.amazonaws.services.ec2.model.TerminateInstancesResult;
@@ -36,46 +53,80 @@ public class EC2Operations {
 
 	private static AmazonEC2 ec2Client;
 
+	// Cached, indexed view of the instances. Null when caching is disabled.
+	private static InstanceInventory inventory;
+	
+	// Operations on all regions. Null unless the multi-region mode is enabled.
+	private static MultiRegionOperations multiRegion;
+	
+	// Shared instance state poller. Created on first use.
+	private static InstanceStateWaiter stateWaiter;
+	
+	// Non blocking operations on the same client. Created on first use.
+	private static EC2AsyncOperations asyncOperations;
+	private static ExecutorService asyncExecutor;
+	
+	// Statistics of the EC2 calls. Null unless enabled.
+	private static EC2Metrics metrics;
+	
+	// Merges the concurrent single instance lookups into one describe.
+	private static DescribeBatcher describeBatcher;
+	
+	// Concurrent identical lookups share one call.
+	private static final SingleFlight<InstanceQuery, List<InstanceSummary>> queries = 
+			new SingleFlight<InstanceQuery, List<InstanceSummary>>();
+	private static final SingleFlight<String, InstanceSummary> refreshes = new SingleFlight<String, InstanceSummary>();
+	
+	// Launch profiles. Only the default profile until initialized.
+	private static LaunchProfiles launchProfiles = new LaunchProfiles(new Properties());
+	
+	// Format of the instance reports.
+	private static InstanceReportRenderer.Format reportFormat = InstanceReportRenderer.Format.TEXT;
+	
+	// Size of the instance report output buffer.
+	private static final int REPORT_BUFFER_SIZE = 64 * 1024;
+	
+	// Availability zone value spreading a launch over all the zones.
+	static final String ALL_ZONES = "*";
+	
+	// Inventory size from which the aggregation runs in parallel.
+	private static final int PARALLEL_AGGREGATION_SIZE = 10000;
+
 	
 	/*
 	 * Utilities *
 	 */
-	private static Object getInstanceName(Instance instance) { 
-        for (Tag tag : instance.getTags()) { 
-            if (tag.getKey().equalsIgnoreCase("name")) { 
-                return tag.getValue(); 
-            } 
-        } 
-        return null; 
-    } 
-	
-	private static Object getInstanceOwner(Instance instance) { 
-        for (Tag tag : instance.getTags()) { 
-            if (tag.getKey().equalsIgnoreCase("owner")) { 
-                return tag.getValue(); 
-            } 
-        } 
-        return null; 
-    } 
 	
 	/*
-	 * Gathers EC2 and format information for the passed instance
-	 * @param instance The instance whose info must be displayed.
+	 * Opens a buffered writer on the standard output. The caller flushes it; closing it
+	 * would close the standard output.
 	 */
-	private static void getInstanceInformation(Instance instance, StringBuffer buffer){
-		
-		buffer.append(String.format("%n"));
-    	buffer.append(String.format("%nInstance Name:         %s%n", getInstanceName(instance)));
-    	buffer.append(String.format("Key Name:              %s%n", instance.getKeyName()));
-    	buffer.append(String.format("Instance ID:           %s%n", instance.getInstanceId()));
-    	buffer.append(String.format("Image ID:              %s%n", instance.getImageId()));
-    	buffer.append(String.format("Kernel ID:             %s%n", instance.getKernelId()));
-    	buffer.append(String.format("Instance Type:         %s%n", instance.getInstanceType()));
-    	buffer.append(String.format("Instance Architecture: %s%n", instance.getArchitecture()));
-    	buffer.append(String.format("Instance State:        %s%n", instance.getState().getName()));
-    	// buffer.append(String.format("Public DNS Name:       %s%n", instance.getPublicDnsName()));
-    	buffer.append(String.format("Hypervisor:            %s%n", instance.getHypervisor()));
-    	buffer.append(String.format("Owner:                 %s%n", getInstanceOwner(instance)));
+	private static Writer openReportWriter() {
+		return new BufferedWriter(new OutputStreamWriter(System.out), REPORT_BUFFER_SIZE);
+	}
+	
+	/*
+	 * Reloads the specified instances in the inventory, if any.
+	 */
+	private static void refreshInventory(List<InstanceSummary> instances) {
+		List<String> ids = new ArrayList<String>();
+		for (InstanceSummary instance : instances)
+			ids.add(instance.getInstanceId());
+		refreshInventoryIds(ids);
+	}
+	
+	private static void refreshInventoryIds(List<String> instanceIds) {
+		if (inventory != null)
+			inventory.refresh(instanceIds);
+	}
+	
+	/*
+	 * Gets the shared instance state poller, created on first use.
+	 */
+	private static synchronized InstanceStateWaiter getStateWaiter() {
+		if (stateWaiter == null)
+			stateWaiter = new InstanceStateWaiter(ec2Client);
+		return stateWaiter;
 	}
 	
 	/*
@@ -87,25 +138,176 @@ public class EC2Operations {
 	 * @param client Authenticated EC2 client.
 	 */
 	public static void InitEC2Operations(AmazonEC2 client) {
+		InitEC2Operations(client, InstanceInventory.DEFAULT_TTL_MILLIS);
+	}
+	
+	/**
+	 * Initializes client and the instance inventory.
+	 * @param client Authenticated EC2 client.
+	 * @param inventoryTtl Time to live of the instance inventory, in milliseconds. 
+	 * 		Zero disables the inventory and every lookup calls EC2.
+	 */
+	public static void InitEC2Operations(AmazonEC2 client, long inventoryTtl) {
+		InitEC2Operations(client, inventoryTtl, null);
+	}
+	
+	/**
+	 * Initializes client and the instance inventory, restored from the snapshot store if 
+	 * a previous run saved it. The restored inventory answers the lookups right away and 
+	 * is reloaded in the background. The instance lookups made within the time set with 
+	 * -Dec2.describe.batch.millis (0 disables it) are described together.
+	 * @param client Authenticated EC2 client.
+	 * @param inventoryTtl Time to live of the instance inventory, in milliseconds. 
+	 * 		Zero disables the inventory and every lookup calls EC2.
+	 * @param store The inventory snapshot store, or null to neither restore nor save it.
+	 */
+	public static void InitEC2Operations(AmazonEC2 client, long inventoryTtl, InventorySnapshotStore store) {
 		
 		// Initialize authorized client.
 		ec2Client = client;
+		synchronized (EC2Operations.class) {
+			asyncOperations = null;
+		}
+		describeBatcher = new DescribeBatcher(client, 
+				Long.getLong("ec2.describe.batch.millis", DescribeBatcher.DEFAULT_WINDOW_MILLIS));
+		
+		// Initialize the inventory and keep it warm in the background.
+		if (inventory != null)
+			inventory.stopBackgroundRefresh();
+		inventory = null;
+		if (inventoryTtl > 0) {
+			inventory = new InstanceInventory(client, inventoryTtl, store);
+			inventory.restore();
+			inventory.startBackgroundRefresh(Math.max(1000, inventoryTtl / 4));
+		}
 		
 	}
 	
+	/**
+	 * Enables the multi-region mode.
+	 * @param regionClients Authenticated EC2 clients keyed by region name.
+	 */
+	public static void InitMultiRegionOperations(Map<String, AmazonEC2> regionClients) {
+		if (multiRegion != null)
+			multiRegion.shutdown();
+		multiRegion = new MultiRegionOperations(regionClients);
+	}
+	
+	/**
+	 * Enables the call statistics.
+	 * @param callMetrics The statistics recorded by the client.
+	 * @see MeteredEC2Client
+	 */
+	public static void InitMetrics(EC2Metrics callMetrics) {
+		metrics = callMetrics;
+	}
+	
+	/**
+	 * Sets the launch profiles, and validates them in the background. A launch from a 
+	 * profile waits for the validation.
+	 * @param profiles The profiles.
+	 * @see LaunchProfiles#fromSystemProperties()
+	 */
+	public static void InitLaunchProfiles(LaunchProfiles profiles) {
+		launchProfiles = profiles;
+		AmazonEC2 client = ec2Client;
+		Thread thread = new Thread(() -> {
+			try {
+				profiles.validate(client);
+			}
+			catch (RuntimeException e) {
+				// A call failed, or the client is not available: the first launch validates again.
+				if (Main.DEBUG)
+					System.out.println(String.format("EC2Operations: launch profiles not validated: %s", e.getMessage()));
+			}
+		}, "ec2-profile-validation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Gets a launch profile, validated or not.
+	 * @param name The profile name, for example {@link LaunchProfiles#DEFAULT_PROFILE}.
+	 * @return The profile, or null if not defined.
+	 */
+	public static LaunchProfiles.Profile getLaunchProfile(String name) {
+		return launchProfiles.get(name);
+	}
+	
+	/**
+	 * Gets the instance inventory.
+	 * @return The inventory, or null if caching is disabled.
+	 */
+	public static InstanceInventory getInventory() {
+		return inventory;
+	}
+	
+	/**
+	 * Gets the non blocking operations, created on first use. They use the client of the 
+	 * operations, with its decorators, and the shared instance state poller; their calls run 
+	 * on a pool of {@link LaunchPlanner#DEFAULT_PARALLELISM} daemon threads.
+	 * @return The asynchronous operations.
+	 */
+	public static synchronized EC2AsyncOperations getAsyncOperations() {
+		if (ec2Client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+		if (asyncExecutor == null)
+			asyncExecutor = Executors.newFixedThreadPool(LaunchPlanner.DEFAULT_PARALLELISM, runnable -> {
+				Thread thread = new Thread(runnable, "ec2-async");
+				thread.setDaemon(true);
+				return thread;
+			});
+		if (asyncOperations == null)
+			asyncOperations = new EC2AsyncOperations(ec2Client, getStateWaiter(), asyncExecutor);
+		return asyncOperations;
+	}
+	
+
+	/**
+	 * Sets the format of the instance reports.
+	 * @param format The report format.
+	 */
+	public static void setReportFormat(InstanceReportRenderer.Format format) {
+		reportFormat = format;
+	}
+	
+	/**
+	 * Gets the format of the instance reports.
+	 * @return The report format.
+	 */
+	public static InstanceReportRenderer.Format getReportFormat() {
+		return reportFormat;
+	}
 
 	/*
 	 * Displays information for those instances associated with the specified key pair.
-	 * @param instances A list of EC2 instances.
+	 * Each instance is rendered as soon as it is read, straight into the output buffer,
+	 * so that output starts with the first page and no report string is built.
+	 * @param instances The EC2 instances, usually backed by an InstancePager.
+	 * @return The number of instances displayed.
 	 */
-	private static void displayInstancesInformation(List<Instance> instances){
-		StringBuffer buffer = new StringBuffer();
-	   
-		for (Instance instance : instances)
-			getInstanceInformation(instance, buffer);   	
+	private static int displayInstancesInformation(Iterator<InstanceSummary> instances){
+		InstanceReportRenderer renderer = InstanceReportRenderer.forFormat(reportFormat);
+		Writer writer = openReportWriter();
+		int count = 0;
 		
-		// Display instance information.
-		System.out.println(buffer.toString());
+		try {
+			renderer.begin(writer);
+			while (instances.hasNext()) {
+				renderer.render(instances.next(), writer);
+				count++;
+			}
+			renderer.end(writer);
+			
+			// Display instance information.
+			writer.write(IUtility.newline);
+			writer.flush();
+		}
+		catch (IOException e) {
+			System.out.println(String.format("Error writing the instance report: %s", e.getMessage()));
+		}
+		return count;
 	}
 	
 	
@@ -126,77 +328,159 @@ public class EC2Operations {
 	  public static void createInstances(AmazonEC2 ec2Client, 
 			  String ami_id, String instanceType, Integer instanceNumber, 
 			  String keyname, String subnetId, String availZone) {
+		  createInstances(ec2Client, ami_id, instanceType, instanceNumber, keyname, subnetId, availZone, 0);
+	  }
+	  
+	/**
+	   * Creates new EC2 instances. Large launches are split in calls made in parallel; the 
+	   * instances of each call are tagged, and waited for, as soon as the call returns. Each 
+	   * call launches all its instances or none, unless ec2.launch.partial is true. When the 
+	   * zone runs out of capacity, the rest of the instances are launched in the other zones 
+	   * (in the same VPC for a subnet) only if ec2.launch.fallback is true.
+	   * @param ami_id The image Id (example, ami-e3106686)
+	   * @param instanceType The instance type (example, t1.micro)
+	   * @param instanceNumber The number of instances
+	   * @param keyname The name of the security key (example, Doc_Key)
+	   * @param subnetId The id of the subnet (example, subnet-827929e9). Ignored for all the zones.
+	   * @param availZone The availability zone (example, us-east-1d), or * to spread the instances 
+	   * 		over all the available zones of the region, in their default subnets.
+	   * @param waitMillis Maximum time to wait for the instances to be running, in milliseconds. 
+	   * 		0 does not wait.
+	   * @param ec2Client The authorized EC2 client
+	   * @see LaunchPlanner
+	   */
+	  public static void createInstances(AmazonEC2 ec2Client, 
+			  String ami_id, String instanceType, Integer instanceNumber, 
+			  String keyname, String subnetId, String availZone, long waitMillis) {
+	   
+		   	// Initialize the instance request. It is the template of each launch call: a copy 
+		   	// of the default launch profile's template, built once with its root volume (deleted 
+		   	// on termination) and security groups. Only the values entered replace its own.
+		   	RunInstancesRequest instanceRequest = launchProfiles.get(LaunchProfiles.DEFAULT_PROFILE).newRequest();
+		   	if (instanceType != null)
+		   		instanceRequest.setInstanceType(instanceType);
+		   	if (ami_id != null)
+		   		instanceRequest.setImageId(ami_id);
+		   	if (keyname != null)
+		   		instanceRequest.setKeyName(keyname);
+	
+		    // Launch the instances.
+		    launchInstances(ec2Client, instanceRequest, instanceNumber, subnetId, availZone, null, waitMillis);
+	  }
+	  
+	/**
+	   * Creates new EC2 instances from a launch profile. The request is a copy of the template 
+	   * of the profile, validated once: the image, the subnet and the zone are not checked again.
+	   * @param profileName The name of the profile (example, default)
+	   * @param keyname The name of the security key, or null for the key of the profile
+	   * @param instanceNumber The number of instances, or null for the count of the profile
+	   * @param waitMillis Maximum time to wait for the instances to be running, in milliseconds. 
+	   * 		0 does not wait.
+	   * @see LaunchProfiles
+	   */
+	  public static void createInstances(String profileName, String keyname, Integer instanceNumber, long waitMillis) {
+		  
+		  // Validate the profiles, unless done already.
+		  launchProfiles.validate(ec2Client);
+		  LaunchProfiles.Profile profile = launchProfiles.get(profileName);
+		  if (profile == null) {
+			  System.out.println(String.format("Unknown launch profile %s", profileName));
+			  return;
+		  }
+		  if (!profile.isValid()) {
+			  System.out.println(String.format("Launch profile %s rejected: %s", profileName, profile.getError()));
+			  return;
+		  }
+		  
+		  RunInstancesRequest instanceRequest = profile.newRequest();
+		  if (keyname != null)
+			  instanceRequest.setKeyName(keyname);
+		  if (instanceRequest.getKeyName() == null) {
+			  System.out.println(String.format("Launch profile %s has no key pair", profileName));
+			  return;
+		  }
+		  launchInstances(ec2Client, instanceRequest, instanceNumber != null ? instanceNumber : profile.getCount(), 
+				  profile.getSubnetId(), profile.getZone(), launchProfiles.getAvailableZones(), waitMillis);
+	  }
+	  
+	/*
+	 * Launches instances from a request template in the zone, or in all the zones, tags them,
+	 * waits for them if requested, then displays them. The available zones are described
+	 * unless given.
+	 */
+	private static void launchInstances(AmazonEC2 ec2Client, RunInstancesRequest template, int instanceNumber,
+			String subnetId, String availZone, List<LaunchPlanner.Target> availableZones, long waitMillis) {
 	   
 		  // The collection of instances.
-		  List<Instance> instances = new ArrayList<Instance>();
+		  List<InstanceSummary> instances = new ArrayList<InstanceSummary>();
 
 		   try {
-			   	// Initialize the instance request.	
-			   	RunInstancesRequest instanceRequest = new RunInstancesRequest();
-			    	
-			   	// Set the type of instance to create.
-			   	instanceRequest.setInstanceType(instanceType);
-			   	
-			   	// Set the image Id.
-			    instanceRequest.setImageId(ami_id);
-			    
-			    // Set max and min instances.
-			    instanceRequest.setMaxCount(instanceNumber);
-			    instanceRequest.setMinCount(instanceNumber);
-			    
-			    // Add the security group to the request.
-			    ArrayList<String> securityGroups = new ArrayList<String>();
-			    instanceRequest.setSecurityGroupIds(securityGroups);
-			    instanceRequest.setKeyName(keyname);
-			    
-			    // Set the subnet Id
-			    instanceRequest.setSubnetId(subnetId);
+			    //*************************** Select the availability zones ************************//
+			    // The planner sets the counts, the subnet, the placement and a client token for each 
+			    // call. The client token makes the call idempotent: if it is retried after a timeout, 
+			    // EC2 returns the instances launched by the first attempt instead of launching more.
+			    if (availableZones == null && ALL_ZONES.equals(availZone))
+			    	availableZones = LaunchPlanner.getAvailableZones(ec2Client);
+			    List<LaunchPlanner.Target> targets = ALL_ZONES.equals(availZone) 
+			    		? availableZones
+			    		: Collections.singletonList(new LaunchPlanner.Target(availZone, subnetId));
+			    // Partial launches and the fallback to other zones are opt-in. The other zones of 
+			    // a subnet are the subnets of its VPC, described by the planner when needed.
+			    LaunchPlanner planner = new LaunchPlanner(ec2Client, targets, Boolean.getBoolean("ec2.launch.fallback"));
+			    planner.setPartialLaunch(Boolean.getBoolean("ec2.launch.partial"));
+			    if (availableZones != null && (ALL_ZONES.equals(availZone) || subnetId == null))
+			    	planner.setFallbackZones(availableZones);
 			    
-			    //*************************** Add the block device mapping ************************//
-				
-			    // Goal: Setup block device mappings to ensure that we will not delete
-			    // the root partition on termination.
-	
-			    // Create the block device mapping to describe the root partition.
-			    BlockDeviceMapping blockDeviceMapping = new BlockDeviceMapping();
-			    blockDeviceMapping.setDeviceName("/dev/sda1");
-	
-			    // Set the delete on termination flag to true.
-			    EbsBlockDevice ebs = new EbsBlockDevice();
-			    ebs.setDeleteOnTermination(Boolean.TRUE);
-			    ebs.setVolumeSize(3);
-			    blockDeviceMapping.setEbs(ebs);
-	
-			    // Add the block device mapping to the block list.
-			    ArrayList<BlockDeviceMapping> blockList = new ArrayList<BlockDeviceMapping>();
-			    blockList.add(blockDeviceMapping);
-	
-			    // Set the block device mapping configuration in the launch specifications.
-			    instanceRequest.setBlockDeviceMappings(blockList);
-	
-			    //*************************** Add the availability zone ************************//
-			    // Setup the availability zone to use. Note we could retrieve the availability
-			    // zones using the ec2.describeAvailabilityZones() API. For this demo we will just use
-			    // us-east-1b.
-			    Placement placement = new Placement(availZone);
-			    instanceRequest.setPlacement(placement);
-			    
-			    
-	
-			    // Create the instance(s).
-			    RunInstancesResult result = ec2Client.runInstances(instanceRequest);
-			    
-			    // Store the created instance(s).
-			    instances.addAll(result.getReservation().getInstances());
-			
-			    // Name the instances and assign the owner.
-			    int idx = 0;
-		    	for (Instance instance : instances) {
-		    		CreateTagsRequest createTagsRequest = new CreateTagsRequest();
-		    		createTagsRequest.withResources(instance.getInstanceId()) 
-		    		.withTags(new Tag("Name", "DocLabLinux" + idx)) 
-		    		.withTags(new Tag("owner", "Michael"));
-		    		ec2Client.createTags(createTagsRequest); }	
+			    // Create the instance(s). As each call returns, name its instances and assign 
+			    // the owner, and start waiting for them. The instances of a call share their 
+			    // name, so that they are tagged in a single call; the names are reported below.
+			    long start = System.currentTimeMillis();
+			    AtomicInteger idx = new AtomicInteger();
+			    Map<String, Integer> names = Collections.synchronizedMap(new LinkedHashMap<String, Integer>());
+			    Map<String, CompletableFuture<Instance>> running = new ConcurrentHashMap<String, CompletableFuture<Instance>>();
+			    LaunchPlanner.Result result = planner.launch(template, instanceNumber, launched -> {
+			    	List<String> ids = new ArrayList<String>();
+			    	for (InstanceSummary instance : launched)
+			    		ids.add(instance.getInstanceId());
+			    	String name = "DocLabLinux" + idx.getAndIncrement();
+			    	names.put(name, ids.size());
+			    	new TagWriter(ec2Client)
+			    			.addTags(ids, new Tag("Name", name), new Tag("owner", "Michael"))
+			    			.flush();
+			    	if (waitMillis > 0)
+			    		running.putAll(getStateWaiter().waitFor(ids, "running", waitMillis));
+			    });
+			    instances.addAll(result.getInstances());
+		    	
+		    	// Add the new instances to the inventory.
+		    	refreshInventory(instances);
+		    	
+		    	StringBuffer buffer = new StringBuffer();
+		    	buffer.append(String.format("Launched %d of %d instance(s) in %d call(s), %d ms: %s%n", 
+		    			result.getLaunched(), result.getRequested(), result.getCallCount(), 
+		    			System.currentTimeMillis() - start, result.getLaunchedByZone()));
+		    	if (!names.isEmpty())
+		    		buffer.append(String.format(" Name tags, shared by the instances of each call: %s%n", names));
+		    	for (String error : result.getErrors())
+		    		buffer.append(String.format(" %s%n", error));
+		    	System.out.print(buffer.toString());
+		    	
+		    	// Wait for the instances still pending.
+		    	if (waitMillis > 0) {
+		    		int reached = 0;
+		    		for (CompletableFuture<Instance> future : running.values()) {
+		    			try {
+		    				future.join();
+		    				reached++;
+		    			}
+		    			catch (CompletionException e) {
+		    				// Timed out or failed.
+		    			}
+		    		}
+		    		System.out.println(String.format("%d of %d instance(s) running after %d ms", 
+		    				reached, running.size(), System.currentTimeMillis() - start));
+		    		refreshInventory(instances);
+		    	}
 		    }
 		   catch (AmazonServiceException e) {
 		        // Write out any exceptions that may have occurred.
@@ -207,14 +491,8 @@ public class EC2Operations {
 		        System.out.println("Request ID: " + e.getRequestId());
 		    }
 		    
-		    // Display instance information.
-		    StringBuffer buffer = new StringBuffer();
-		    
-		    for ( Instance instance : instances) 
-		    	getInstanceInformation(instance, buffer);
-		
 		    // Display instances information.
-		    System.out.println(buffer.toString());
+		    displayInstancesInformation(instances.iterator());
 	    
 	  }
 	
@@ -225,31 +503,43 @@ public class EC2Operations {
 	 */
 	public static void getInstanceInformation(String instanceId) {
    	  
-		DescribeInstancesRequest describeInstancesRequest=new DescribeInstancesRequest();
-   	  	List<String> list=new ArrayList<String>();
-   	  	list.add(instanceId);
-   	  	describeInstancesRequest.setInstanceIds(list);
-   	  	DescribeInstancesResult result =ec2Client.describeInstances(describeInstancesRequest);
-   	  
-   	  	List<Reservation> reservations=result.getReservations();
-   	  
-   	  	// System.out.println("Retrieved following reservations:");
-   	  	int runningInstanceGroups=0;
-   	  	int runningInstances=0;
-   	  	StringBuffer buffer = new StringBuffer();
-   	  	for (Reservation reservation : reservations) {
-   	  		List<Instance> instances=reservation.getInstances();
-   	  	runningInstanceGroups++;
-   	    runningInstances+=instances.size();
+		int runningInstanceGroups=0;
+   	  	List<InstanceSummary> instances = new ArrayList<InstanceSummary>();
+   	  	
+   	  	if (inventory != null) {
+   	  		// Read the instance from the inventory. Refresh it if the instance is newer; 
+   	  		// concurrent lookups of the same instance share the refresh.
+   	  		InstanceInventory current = inventory;
+   	  		InstanceSummary instance = current.getById(instanceId);
+   	  		if (instance == null) {
+   	  			instance = refreshes.execute(instanceId, () -> {
+   	  				current.refresh(Collections.singletonList(instanceId));
+   	  				return current.getById(instanceId);
+   	  			});
+   	  		}
+   	  		if (instance != null) {
+   	  			instances.add(instance);
+   	  			runningInstanceGroups = current.countReservations(instances);
+   	  		}
+   	  	}
+   	  	else {
+   	  		// Describe the instance together with the other instances looked up meanwhile.
+   	  		InstanceSummary instance = describeBatcher.get(instanceId);
+   	  		if (instance != null) {
+   	  			instances.add(instance);
+   	  			runningInstanceGroups = 1;
+   	  		}
+   	  	}
    	 
-   	    for ( Instance instance : instances) 
-   	    	getInstanceInformation(instance, buffer);
-   	    
-   	    buffer.append(String.format("Running Instance Groups:       %d%n", runningInstanceGroups));
-   	    buffer.append(String.format("Running Instances:             %d%n", runningInstances));
-   	  }
-   	  
-   	  System.out.println(buffer.toString());
+   	  	int runningInstances = displayInstancesInformation(instances.iterator());
+   	  	
+   	  	// Keep the CSV and JSON reports machine readable.
+   	  	if (reportFormat == InstanceReportRenderer.Format.TEXT) {
+   	  		StringBuffer buffer = new StringBuffer();
+   	  		buffer.append(String.format("Running Instance Groups:       %d%n", runningInstanceGroups));
+   	  		buffer.append(String.format("Running Instances:             %d%n", runningInstances));
+   	  		System.out.println(buffer.toString());
+   	  	}
 	}
 	
 	
@@ -260,17 +550,19 @@ public class EC2Operations {
 	 * @param keyName The key pair name associated with the instances.
 	 */
 	public static void getInstancesInformation(String keyName) {
-		List<Instance> resultList = new ArrayList<Instance>();
-		DescribeInstancesResult describeInstancesResult = ec2Client.describeInstances();
-		List<Reservation> reservations = describeInstancesResult.getReservations();
-		for (Iterator<Reservation> iterator = reservations.iterator(); iterator.hasNext();) {
-			Reservation reservation = iterator.next();
-			for (Instance instance : reservation.getInstances()) {
-				if (instance.getKeyName().equals(keyName))
-					resultList.add(instance);
-			}
+		
+		if (inventory != null) {
+			// Read the instances from the key pair index.
+			displayInstancesInformation(inventory.getByKeyName(keyName).iterator());
+			return;
 		}
-		displayInstancesInformation(resultList);
+		
+		// Let the service select the instances by key pair. Concurrent lookups of the same 
+		// key pair share one describe.
+		InstanceQuery query = new InstanceQuery().withKeyName(keyName);
+		List<InstanceSummary> matching = queries.execute(query, 
+				() -> query.summaries(ec2Client).collect(Collectors.toList()));
+		displayInstancesInformation(matching.iterator());
 		
 	}	
 	
@@ -289,19 +581,118 @@ public class EC2Operations {
         	buffer.append(String.format(" - %s (%s) %n",  zone.getZoneName(), zone.getRegionName()));
            
      
-        // Get information about running instances.
-        DescribeInstancesResult describeInstancesResult = ec2Client.describeInstances();
-        Set<Instance> instances = new HashSet<Instance>();
-        for (Reservation reservation : describeInstancesResult.getReservations()) {
-             instances.addAll(reservation.getInstances());
-        }
-        buffer.append(String.format("%nYou have %d Amazon EC2 instance(s) running.", instances.size()));
+        // Get information about running instances. Count them page by page, unless cached.
+        FleetAggregation fleet = aggregateInstances(0);
+        buffer.append(String.format("%nYou have %d Amazon EC2 instance(s), %d running.", fleet.getTotal(), 
+        		fleet.getCount(FleetAggregation.Dimension.STATE, InstanceSummary.State.RUNNING.getStateName())));
         
         System.out.println(buffer.toString());
         
 
     }
 	
+    /**
+     * Counts the instances by availability zone, instance type, state, key pair and owner 
+     * in a single pass. Reads the inventory, if enabled, otherwise describes all the instances
+     * page by page. Large fleets are aggregated in parallel.
+     * @param oldestLimit Number of oldest instances to keep.
+     * @return The aggregation.
+     * @see FleetAggregation
+     */
+    public static FleetAggregation aggregateInstances(int oldestLimit) {
+    	
+    	if(ec2Client == null){
+	        throw new RuntimeException("The Ec2 client is not initialized");
+	    }
+    	
+    	if (inventory != null) {
+    		Collection<InstanceSummary> instances = inventory.getAll();
+    		Stream<InstanceSummary> stream = instances.size() >= PARALLEL_AGGREGATION_SIZE 
+    				? instances.parallelStream() : instances.stream();
+    		return stream.collect(FleetAggregation.collector(oldestLimit));
+    	}
+    	
+    	// The pages are read in sequence; the instances read are aggregated in parallel batches.
+    	return new InstancePager(ec2Client).stream()
+    			.parallel()
+    			.map(InstanceSummary::from)
+    			.collect(FleetAggregation.collector(oldestLimit));
+    }
+    
+    /**
+     * Displays the instance counts by state, availability zone, instance type and key pair,
+     * the owners with the most instances and the oldest instances.
+     * @param top Maximum number of values displayed for each attribute.
+     * @see #aggregateInstances(int)
+     */
+    public static void getFleetAggregation(int top) {
+    	long start = System.currentTimeMillis();
+    	FleetAggregation fleet = aggregateInstances(FleetAggregation.DEFAULT_OLDEST);
+    	
+    	StringBuffer buffer = new StringBuffer();
+    	buffer.append(String.format("%d instance(s)%n", fleet.getTotal()));
+    	for (FleetAggregation.Dimension dimension : FleetAggregation.Dimension.values()) {
+    		Map<String, Long> counts = fleet.getCounts(dimension);
+    		buffer.append(String.format("%n%s (%d)%n", dimension.getLabel(), counts.size()));
+    		int shown = 0;
+    		for (Map.Entry<String, Long> count : counts.entrySet()) {
+    			if (shown++ == top) {
+    				buffer.append(String.format(" ... %d more%n", counts.size() - top));
+    				break;
+    			}
+    			buffer.append(String.format(" %-30s %8d%n", count.getKey(), count.getValue()));
+    		}
+    	}
+    	
+    	buffer.append(String.format("%nOldest instances%n"));
+    	SimpleDateFormat launched = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    	for (InstanceSummary instance : fleet.getOldest())
+    		buffer.append(String.format(" %-20s %s  %-12s %s%n", instance.getInstanceId(), 
+    				launched.format(new Date(instance.getLaunchTime())), instance.getInstanceType(), 
+    				instance.getState().getStateName()));
+    	
+    	buffer.append(String.format("%nAggregated in %d ms", System.currentTimeMillis() - start));
+    	System.out.println(buffer.toString());
+    }
+    
+    /**
+     * Displays the statistics of the EC2 calls made so far, by action: calls, throughput, 
+     * errors, retries, throttled requests, bytes received and latency percentiles.
+     * @see EC2Metrics#report()
+     */
+    public static void getCallStatistics() {
+    	if (metrics == null) {
+    		System.out.println("The call statistics are not enabled.");
+    		return;
+    	}
+    	System.out.print(metrics.report());
+    }
+    
+    /**
+     * Lists the launch profiles, once validated, with the reason of the rejected ones.
+     */
+    public static void getLaunchProfiles() {
+    	launchProfiles.validate(ec2Client);
+    	StringBuffer buffer = new StringBuffer();
+    	for (LaunchProfiles.Profile profile : launchProfiles.getProfiles())
+    		buffer.append(String.format("%s%n   %s%n", profile.toString(), 
+    				profile.isValid() ? "valid" : "rejected: " + profile.getError()));
+    	System.out.print(buffer.toString());
+    }
+	
+    /**
+     * Lists the availability zones and the number of instances of all the regions.
+     * The regions are queried concurrently.
+     * @see MultiRegionOperations#getAvailabilityZones()
+     */
+    public static void getAllRegionsAvailabilityZones() {
+    	if (multiRegion == null) {
+    		System.out.println("Multi-region mode is not enabled. Start the application with region \"all\".");
+    		return;
+    	}
+    	multiRegion.getAvailabilityZones();
+    }
+	
     /**
      * Sets the instance name and owner tag attributes.
      * @param instanceId The Id of the instance.
@@ -310,34 +701,41 @@ public class EC2Operations {
      */
 	public static void setInstanceAttributes(String instanceId, String name, String owner) {
 		
-		List<Instance> resultList = new ArrayList<Instance>();
-		DescribeInstancesResult describeInstancesResult = ec2Client.describeInstances();
-		List<Reservation> reservations = describeInstancesResult.getReservations();
+		List<InstanceSummary> resultList = new ArrayList<InstanceSummary>();
 		
-		// Obtain the instances with the specified Id
-		for (Iterator<Reservation> iterator = reservations.iterator(); iterator.hasNext();) {
-			Reservation reservation = iterator.next();
-			for (Instance instance : reservation.getInstances()) {
-				if (instance.getInstanceId().equals(instanceId))
-					resultList.add(instance);
-			}
+		// Obtain the instance with the specified Id. The service returns only that instance.
+		InstanceSummary cached = inventory != null ? inventory.getById(instanceId) : null;
+		if (cached != null)
+			resultList.add(cached);
+		else {
+			Optional<InstanceSummary> match = new InstanceQuery()
+					.withInstanceIds(instanceId)
+					.summaries(ec2Client)
+					.findFirst();
+			if (match.isPresent())
+				resultList.add(match.get());
 		}
 	
     	// Assign the names to the instances and the owner.
+    	TagWriter tagWriter = new TagWriter(ec2Client);
     	int idx = 0;
-    	for (Instance instance : resultList) {
+    	for (InstanceSummary instance : resultList) {
     		if (instance.getInstanceId().equals(instanceId)) {
-    			CreateTagsRequest createTagsRequest = new CreateTagsRequest();
-    			createTagsRequest.withResources(instance.getInstanceId()) 
-    			.withTags(new Tag("Name", name + idx)) 
-    			.withTags(new Tag("owner", owner));
-    			ec2Client.createTags(createTagsRequest);
+    			tagWriter.addTags(instance.getInstanceId(), 
+    					new Tag("Name", name + idx), 
+    					new Tag("owner", owner));
     		}	
     	  idx++;
     	}
+    	tagWriter.flush();
+    	
+    	// Reload the tagged instances so the inventory and the display show the new tags.
+    	refreshInventory(resultList);
+    	if (inventory != null && inventory.getById(instanceId) != null)
+    		resultList = Collections.singletonList(inventory.getById(instanceId));
     	
     	// Display instance information.
-    	displayInstancesInformation(resultList);
+    	displayInstancesInformation(resultList.iterator());
 	}
 	
 	
@@ -373,6 +771,7 @@ public class EC2Operations {
 	        throw new RuntimeException("The Ec2 client is not initialized");
 	    }
 	    TerminateInstancesResult result = ec2Client.terminateInstances(terminateRequest);
+	    refreshInventoryIds(Collections.singletonList(instanceId));
 	    List<InstanceStateChange> stateChanges = result.getTerminatingInstances();
 	    boolean terminatedInstance = false;
 	    for (InstanceStateChange stateChange : stateChanges) {
@@ -399,5 +798,239 @@ public class EC2Operations {
 	    return true;
 	}
 	
+	/**
+	 * Waits for instances to reach a state, for example running after they have been created
+	 * or terminated after they have been terminated. All the instances are polled together.
+	 * Each instance is displayed as soon as it reaches the state.
+	 * @param instanceIds The ids of the instances.
+	 * @param state The target state name.
+	 * @param timeoutMillis Maximum time to wait, in milliseconds.
+	 * @return The number of instances that reached the state.
+	 * @see InstanceStateWaiter
+	 */
+	public static int waitForInstances(Collection<String> instanceIds, String state, long timeoutMillis) {
+		
+		Map<String, CompletableFuture<Instance>> futures = getStateWaiter().waitFor(instanceIds, state, timeoutMillis);
+		
+		// Display each instance as soon as it reaches the state. The messages are printed by
+		// the calling thread, not by the poller, so that they go where the caller's output goes.
+		BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+		for (Map.Entry<String, CompletableFuture<Instance>> future : futures.entrySet()) {
+			future.getValue().whenComplete((instance, error) -> {
+				if (error != null)
+					messages.add(String.format("%s: %s", future.getKey(), error.getMessage()));
+				else
+					messages.add(String.format("%s: %s", instance.getInstanceId(), instance.getState().getName()));
+			});
+		}
+		try {
+			for (int i = 0; i < futures.size(); i++)
+				System.out.println(messages.take());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		refreshInventoryIds(new ArrayList<String>(instanceIds));
+		
+		int reached = 0;
+		for (CompletableFuture<Instance> future : futures.values())
+			if (!future.isCompletedExceptionally())
+				reached++;
+		return reached;
+	}
+	
+	/**
+	 * Watches the instances and displays only their changes: new and removed instances, 
+	 * state transitions and tag changes, each with the time it was seen. Reads the inventory, 
+	 * if enabled, otherwise describes the instances at each poll. While watched, the inventory 
+	 * is reloaded in full about once per TTL.
+	 * @param keyName The key pair of the instances to watch, or null for all the instances.
+	 * @param intervalMillis Interval between polls, in milliseconds.
+	 * @param durationMillis How long to watch, in milliseconds.
+	 * @return The number of changes displayed.
+	 * @see InstanceWatcher
+	 */
+	public static int watchInstances(String keyName, long intervalMillis, long durationMillis) {
+		
+		if(ec2Client == null){
+	        throw new RuntimeException("The Ec2 client is not initialized");
+	    }
+		
+		InstanceWatcher watcher;
+		if (inventory != null) {
+			InstanceInventory watched = inventory;
+			watcher = new InstanceWatcher(() -> keyName == null ? watched.getAll() : watched.getByKeyName(keyName));
+		}
+		else {
+			InstanceQuery query = keyName == null ? new InstanceQuery() : new InstanceQuery().withKeyName(keyName);
+			watcher = new InstanceWatcher(() -> query.summaries(ec2Client).collect(Collectors.toList()));
+		}
+		
+		watcher.poll();
+		System.out.println(String.format("Watching %d instance(s) every %d s for %d s", 
+				watcher.size(), intervalMillis / 1000, durationMillis / 1000));
+		
+		DateTimeFormatter time = DateTimeFormatter.ofPattern("HH:mm:ss");
+		long end = System.currentTimeMillis() + durationMillis;
+		int changes = 0;
+		try {
+			for (long left; (left = end - System.currentTimeMillis()) > 0;) {
+				Thread.sleep(Math.min(intervalMillis, left));
+				String now = LocalTime.now().format(time);
+				for (InstanceWatcher.Event event : watcher.poll()) {
+					System.out.println(String.format("%s %s", now, event));
+					changes++;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println(String.format("%d change(s), %d instance(s) watched", changes, watcher.size()));
+		return changes;
+	}
+	
+	/**
+	 * Terminates many instances. The ids are sent in chunks of up to 
+	 * {@link InstanceTerminator#MAX_IDS_PER_CALL} ids, and the chunks are sent concurrently.
+	 * @param instanceIds The ids of the instances to terminate.
+	 * @return The termination result of each instance, in the order of the ids.
+	 * @see InstanceTerminator
+	 */
+	public static Map<String, InstanceTerminator.Result> terminateInstances(Collection<String> instanceIds) {
+		Map<String, InstanceTerminator.Result> results = 
+				new InstanceTerminator(ec2Client, InstanceTerminator.DEFAULT_PARALLELISM).terminate(instanceIds);
+		refreshInventoryIds(new ArrayList<String>(results.keySet()));
+		return results;
+	}
+	
+	/**
+	 * Terminates the instances selected by the query, for example all the instances 
+	 * launched with a key pair.
+	 * @param query The query selecting the instances.
+	 * @return The termination result of each instance.
+	 */
+	public static Map<String, InstanceTerminator.Result> terminateInstances(InstanceQuery query) {
+		Map<String, InstanceTerminator.Result> results = 
+				new InstanceTerminator(ec2Client, InstanceTerminator.DEFAULT_PARALLELISM).terminate(query);
+		refreshInventoryIds(new ArrayList<String>(results.keySet()));
+		return results;
+	}
+	
+	/**
+	 * Terminates the instances the user confirmed among those matching a tag query, for 
+	 * example env=test AND owner=ci. The selection may come from an inventory up to a TTL 
+	 * old, so the instances are described again first: those that no longer match the 
+	 * query are left alone.
+	 * @param query The query the instances were selected with.
+	 * @param instanceIds The confirmed ids, see {@link #previewInstancesByTags(TagQuery)}.
+	 * @return The termination result of each instance still matching.
+	 */
+	public static Map<String, InstanceTerminator.Result> terminateInstances(TagQuery query, List<String> instanceIds) {
+		List<String> ids = recheckInstances(query, instanceIds);
+		if (ids.isEmpty())
+			return new LinkedHashMap<String, InstanceTerminator.Result>();
+		return terminateInstances(ids);
+	}
+	
+	/**
+	 * Gets the instances whose tags match a query. With the inventory, the query reads its 
+	 * tag index; otherwise the instances are described, then indexed.
+	 * @param query The query, for example TagQuery.parse("env=prod AND owner!=ci").
+	 * @return The matching instances.
+	 * @see TagQuery
+	 */
+	public static List<InstanceSummary> selectInstances(TagQuery query) {
+		if (inventory != null)
+			return inventory.select(query);
+		
+		Map<String, InstanceSummary> byId = new HashMap<String, InstanceSummary>();
+		TagIndex index = new TagIndex();
+		new InstanceQuery().summaries(ec2Client).forEach(instance -> {
+			byId.put(instance.getInstanceId(), instance);
+			index.add(instance);
+		});
+		List<InstanceSummary> instances = new ArrayList<InstanceSummary>();
+		for (String id : index.select(query))
+			instances.add(byId.get(id));
+		return instances;
+	}
+	
+	/**
+	 * Displays the instances whose tags match an expression.
+	 * @param expression The expression, for example env=prod AND owner!=ci.
+	 * @see TagQuery
+	 */
+	public static void getInstancesByTags(String expression) {
+		TagQuery query = TagQuery.parse(expression);
+		long start = System.nanoTime();
+		List<InstanceSummary> instances = selectInstances(query);
+		long micros = (System.nanoTime() - start) / 1000;
+		displayInstancesInformation(instances.iterator());
+		System.out.println(String.format("%d instance(s) match %s (%d us)", instances.size(), query, micros));
+	}
+	
+	/**
+	 * Displays the ids of the instances whose tags match a query, with their state and name, 
+	 * and their number, for the user to confirm a change on them. Remember that key!=value 
+	 * and NOT also select the instances without the key.
+	 * @param query The query.
+	 * @return The ids of the matching instances.
+	 */
+	public static List<String> previewInstancesByTags(TagQuery query) {
+		List<String> ids = new ArrayList<String>();
+		for (InstanceSummary instance : selectInstances(query)) {
+			ids.add(instance.getInstanceId());
+			System.out.println(String.format("%-20s %-14s %s", instance.getInstanceId(), 
+					instance.getState().getStateName(), instance.getName() == null ? "" : instance.getName()));
+		}
+		System.out.println(String.format("%d instance(s) match %s", ids.size(), query));
+		return ids;
+	}
+	
+	/**
+	 * Sets tags on the instances the user confirmed among those matching a tag query, in one 
+	 * call per 1000 instances. The instances are described again first: those that no longer 
+	 * match the query are left alone.
+	 * @param query The query the instances were selected with.
+	 * @param instanceIds The confirmed ids, see {@link #previewInstancesByTags(TagQuery)}.
+	 * @param tags The tags to add or replace.
+	 * @return The number of tagged instances.
+	 */
+	public static int setInstanceTags(TagQuery query, List<String> instanceIds, Tag... tags) {
+		List<String> ids = recheckInstances(query, instanceIds);
+		if (ids.isEmpty())
+			return 0;
+		List<String> tagged = new TagWriter(ec2Client).addTags(ids, tags).flush();
+		refreshInventoryIds(tagged);
+		return tagged.size();
+	}
+	
+	/*
+	 * Describes the instances again, with the instance-id filter, and keeps those whose 
+	 * current tags still match the query. EC2 filters cannot express OR, NOT or !=, so the 
+	 * query is evaluated on the fresh tags here.
+	 */
+	private static List<String> recheckInstances(TagQuery query, List<String> instanceIds) {
+		TagIndex index = new TagIndex();
+		for (int i = 0; i < instanceIds.size(); i += DescribeBatcher.MAX_BATCH_SIZE) {
+			List<String> chunk = instanceIds.subList(i, Math.min(instanceIds.size(), i + DescribeBatcher.MAX_BATCH_SIZE));
+			new InstanceQuery()
+					.withFilter("instance-id", chunk.toArray(new String[chunk.size()]))
+					.summaries(ec2Client)
+					.forEach(index::add);
+		}
+		Set<String> matching = new HashSet<String>(index.select(query));
+		List<String> ids = new ArrayList<String>();
+		for (String id : instanceIds) {
+			if (matching.contains(id))
+				ids.add(id);
+			else
+				System.out.println(String.format("%s no longer matches %s, left alone", id, query));
+		}
+		return ids;
+	}
+	
 																																																																			
 }
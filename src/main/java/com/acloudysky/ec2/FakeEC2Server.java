@@ -0,0 +1,567 @@
+package com.acloudysky.ec2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Subnet;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the EC2 endpoint, for load and latency tests without network or AWS
+ * account. It speaks the subset of the EC2 Query API used by this application, so that the
+ * real SDK client, with its HTTP stack, marshallers and retries, can be pointed at it:
+ * RunInstances, DescribeInstances (with paging and filters), CreateTags, TerminateInstances,
+ * DescribeAvailabilityZones, DescribeImages and DescribeSubnets. The requests are answered by a {@link FakeFleet}.
+ * <p>
+ * Each request can be delayed by a fixed latency plus a random jitter, and rejected with the
+ * RequestLimitExceeded throttling error at a given rate. Request signatures are not checked.
+ * </p>
+ * Start it standalone and point the application at it:
+ * <pre>
+ * java -Dec2.fake.port=8000 -Dec2.fake.fleet.size=10000 -Dec2.fake.latency.millis=40 com.acloudysky.ec2.FakeEC2Server
+ * java -Dec2.endpoint=http://localhost:8000 -jar aws-ec2-java.jar us-west-2
+ * </pre>
+ * or use <code>-Dec2.endpoint=local</code> to run it inside the application.
+ */
+public class FakeEC2Server {
+
+	/**
+	 * XML namespace of the responses, as sent by EC2.
+	 */
+	public static final String XMLNS = "http://ec2.amazonaws.com/doc/2015-10-01/";
+
+	// Account owning the fake fleet.
+	private static final String OWNER_ID = "123456789012";
+
+	private final FakeFleet fleet;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	// Injected faults.
+	private final long latencyMillis;
+	private final long jitterMillis;
+	private final double throttleRate;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong throttledCount = new AtomicLong();
+
+	/**
+	 * Creates the server. Call {@link #start()} to accept requests.
+	 * @param fleet The fleet answering the requests.
+	 * @param port The port, or 0 to use any free port.
+	 * @param latencyMillis Fixed delay added to each request, in milliseconds.
+	 * @param jitterMillis Maximum random delay added to each request, in milliseconds.
+	 * @param throttleRate Fraction of the requests rejected with RequestLimitExceeded, from 0 to 1.
+	 * @param threads Number of threads serving the requests.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public FakeEC2Server(FakeFleet fleet, int port, long latencyMillis, long jitterMillis,
+			double throttleRate, int threads) throws IOException {
+		this.fleet = fleet;
+		this.latencyMillis = Math.max(0, latencyMillis);
+		this.jitterMillis = Math.max(0, jitterMillis);
+		this.throttleRate = throttleRate;
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			Thread thread = new Thread(runnable, "fake-ec2");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+	}
+
+	/**
+	 * Creates a server configured by the system properties:
+	 * <ul>
+	 * <li>ec2.fake.port: port, 0 (default) for any free port.</li>
+	 * <li>ec2.fake.region: region of the fleet, default us-west-2.</li>
+	 * <li>ec2.fake.fleet.size: number of instances, default 1000.</li>
+	 * <li>ec2.fake.tags: tags per instance, default 4.</li>
+	 * <li>ec2.fake.reservation.size: instances per reservation, default 5.</li>
+	 * <li>ec2.fake.transition.millis: time spent pending or shutting-down, default 5000.</li>
+	 * <li>ec2.fake.latency.millis: fixed delay of each request, default 0.</li>
+	 * <li>ec2.fake.jitter.millis: maximum random delay of each request, default 0.</li>
+	 * <li>ec2.fake.throttle.rate: fraction of throttled requests, default 0.</li>
+	 * <li>ec2.fake.threads: server threads, default 16.</li>
+	 * <li>ec2.fake.seed: seed of the generated fleet, default 42.</li>
+	 * <li>ec2.fake.capacity: instances each zone can still launch, for example
+	 * us-west-2a=0,us-west-2b=100. Default no limit.</li>
+	 * </ul>
+	 * @param defaultRegion The region used when ec2.fake.region is not set.
+	 * @return The server, not started.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public static FakeEC2Server fromSystemProperties(String defaultRegion) throws IOException {
+		FakeFleet fleet = new FakeFleet(
+				System.getProperty("ec2.fake.region", defaultRegion),
+				Integer.getInteger("ec2.fake.fleet.size", 1000),
+				Integer.getInteger("ec2.fake.tags", 4),
+				Integer.getInteger("ec2.fake.reservation.size", 5),
+				Long.getLong("ec2.fake.transition.millis", 5000),
+				Long.getLong("ec2.fake.seed", 42));
+		String capacity = System.getProperty("ec2.fake.capacity", "");
+		for (String zone : capacity.split(",")) {
+			String[] entry = zone.split("=");
+			if (entry.length == 2)
+				fleet.setCapacity(entry[0].trim(), Integer.parseInt(entry[1].trim()));
+		}
+		return new FakeEC2Server(fleet,
+				Integer.getInteger("ec2.fake.port", 0),
+				Long.getLong("ec2.fake.latency.millis", 0),
+				Long.getLong("ec2.fake.jitter.millis", 0),
+				Double.parseDouble(System.getProperty("ec2.fake.throttle.rate", "0")),
+				Integer.getInteger("ec2.fake.threads", 16));
+	}
+
+	/**
+	 * Starts accepting requests.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Gets the endpoint to pass to AmazonEC2.setEndpoint.
+	 * @return The endpoint URL, for example http://127.0.0.1:8000.
+	 */
+	public String getEndpoint() {
+		InetSocketAddress address = server.getAddress();
+		return String.format("http://%s:%d", address.getAddress().getHostAddress(), address.getPort());
+	}
+
+	/**
+	 * Gets the fleet answering the requests.
+	 * @return The fleet.
+	 */
+	public FakeFleet getFleet() {
+		return fleet;
+	}
+
+	/**
+	 * Gets the number of requests received.
+	 * @return The number of requests.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Gets the number of requests rejected with a throttling error.
+	 * @return The number of throttled requests.
+	 */
+	public long getThrottledCount() {
+		return throttledCount.get();
+	}
+
+	/**
+	 * Runs the server until the process is stopped. See {@link #fromSystemProperties(String)}
+	 * for the settings.
+	 * @param args Not used.
+	 * @throws Exception If the server cannot start.
+	 */
+	public static void main(String[] args) throws Exception {
+		FakeEC2Server server = fromSystemProperties("us-west-2");
+		server.start();
+		System.out.println(String.format("Fake EC2 endpoint %s, region %s, %d instances",
+				server.getEndpoint(), server.getFleet().getRegion(), server.getFleet().size()));
+		Thread.currentThread().join();
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	/*
+	 * Answers a Query API request: the parameters come from the URL or from the form encoded body.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+		String requestId = UUID.randomUUID().toString();
+		int status = 200;
+		String body;
+		try {
+			Map<String, String> params = new HashMap<String, String>();
+			parse(exchange.getRequestURI().getRawQuery(), params);
+			parse(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8), params);
+
+			delay();
+			if (throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate) {
+				throttledCount.incrementAndGet();
+				throw FakeFleet.serviceException("RequestLimitExceeded", "Request limit exceeded.", 503);
+			}
+			body = dispatch(params, requestId);
+		}
+		catch (AmazonServiceException e) {
+			status = e.getStatusCode();
+			body = errorResponse(e, requestId);
+		}
+		catch (RuntimeException e) {
+			status = 400;
+			body = errorResponse(FakeFleet.serviceException("InvalidParameterValue", String.valueOf(e.getMessage()), 400), requestId);
+		}
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/xml;charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private String dispatch(Map<String, String> params, String requestId) {
+		String action = params.get("Action");
+		if (action == null)
+			throw FakeFleet.serviceException("MissingAction", "The request must contain the parameter Action", 400);
+
+		switch (action) {
+			case "DescribeInstances":
+				return describeInstances(params, requestId);
+			case "RunInstances":
+				return runInstances(params, requestId);
+			case "CreateTags":
+				return createTags(params, requestId);
+			case "TerminateInstances":
+				return terminateInstances(params, requestId);
+			case "DescribeAvailabilityZones":
+				return describeAvailabilityZones(requestId);
+			case "DescribeImages":
+				return describeImages(params, requestId);
+			case "DescribeSubnets":
+				return describeSubnets(params, requestId);
+			default:
+				throw FakeFleet.serviceException("InvalidAction",
+						String.format("The action %s is not valid for this web service.", action), 400);
+		}
+	}
+
+	private String describeInstances(Map<String, String> params, String requestId) {
+		DescribeInstancesRequest request = new DescribeInstancesRequest()
+				.withInstanceIds(list(params, "InstanceId"))
+				.withFilters(filters(params))
+				.withNextToken(params.get("NextToken"));
+		if (params.containsKey("MaxResults"))
+			request.setMaxResults(Integer.valueOf(params.get("MaxResults")));
+		DescribeInstancesResult result = fleet.describeInstances(request);
+
+		StringBuilder xml = begin("DescribeInstancesResponse", requestId);
+		xml.append("<reservationSet>");
+		for (Reservation reservation : result.getReservations()) {
+			xml.append("<item>");
+			appendReservation(reservation, xml);
+			xml.append("</item>");
+		}
+		xml.append("</reservationSet>");
+		element("nextToken", result.getNextToken(), xml);
+		return end("DescribeInstancesResponse", xml);
+	}
+
+	private String runInstances(Map<String, String> params, String requestId) {
+		RunInstancesRequest request = new RunInstancesRequest()
+				.withImageId(params.get("ImageId"))
+				.withInstanceType(params.get("InstanceType"))
+				.withKeyName(params.get("KeyName"))
+				.withSubnetId(params.get("SubnetId"))
+				.withClientToken(params.get("ClientToken"))
+				.withMinCount(Integer.valueOf(params.getOrDefault("MinCount", "1")))
+				.withMaxCount(Integer.valueOf(params.getOrDefault("MaxCount", "1")));
+		if (params.containsKey("Placement.AvailabilityZone"))
+			request.setPlacement(new Placement(params.get("Placement.AvailabilityZone")));
+		Reservation reservation = fleet.runInstances(request).getReservation();
+
+		StringBuilder xml = begin("RunInstancesResponse", requestId);
+		appendReservation(reservation, xml);
+		return end("RunInstancesResponse", xml);
+	}
+
+	private String createTags(Map<String, String> params, String requestId) {
+		List<Tag> tags = new ArrayList<Tag>();
+		for (int n = 1; params.containsKey("Tag." + n + ".Key"); n++)
+			tags.add(new Tag(params.get("Tag." + n + ".Key"), params.getOrDefault("Tag." + n + ".Value", "")));
+		fleet.createTags(new CreateTagsRequest(list(params, "ResourceId"), tags));
+
+		StringBuilder xml = begin("CreateTagsResponse", requestId);
+		element("return", "true", xml);
+		return end("CreateTagsResponse", xml);
+	}
+
+	private String terminateInstances(Map<String, String> params, String requestId) {
+		List<InstanceStateChange> changes = fleet.terminateInstances(
+				new TerminateInstancesRequest(list(params, "InstanceId"))).getTerminatingInstances();
+
+		StringBuilder xml = begin("TerminateInstancesResponse", requestId);
+		xml.append("<instancesSet>");
+		for (InstanceStateChange change : changes) {
+			xml.append("<item>");
+			element("instanceId", change.getInstanceId(), xml);
+			appendState("currentState", change.getCurrentState(), xml);
+			appendState("previousState", change.getPreviousState(), xml);
+			xml.append("</item>");
+		}
+		xml.append("</instancesSet>");
+		return end("TerminateInstancesResponse", xml);
+	}
+
+	private String describeAvailabilityZones(String requestId) {
+		StringBuilder xml = begin("DescribeAvailabilityZonesResponse", requestId);
+		xml.append("<availabilityZoneInfo>");
+		for (AvailabilityZone zone : fleet.describeAvailabilityZones().getAvailabilityZones()) {
+			xml.append("<item>");
+			element("zoneName", zone.getZoneName(), xml);
+			element("zoneState", zone.getState(), xml);
+			element("regionName", zone.getRegionName(), xml);
+			xml.append("<messageSet/>");
+			xml.append("</item>");
+		}
+		xml.append("</availabilityZoneInfo>");
+		return end("DescribeAvailabilityZonesResponse", xml);
+	}
+
+	private String describeImages(Map<String, String> params, String requestId) {
+		List<Image> images = fleet.describeImages(new DescribeImagesRequest()
+				.withImageIds(list(params, "ImageId"))
+				.withFilters(filters(params))).getImages();
+
+		StringBuilder xml = begin("DescribeImagesResponse", requestId);
+		xml.append("<imagesSet>");
+		for (Image image : images) {
+			xml.append("<item>");
+			element("imageId", image.getImageId(), xml);
+			element("imageLocation", OWNER_ID + "/" + image.getName(), xml);
+			element("imageState", image.getState(), xml);
+			element("imageOwnerId", image.getOwnerId(), xml);
+			element("isPublic", "false", xml);
+			element("architecture", image.getArchitecture(), xml);
+			element("imageType", image.getImageType(), xml);
+			element("name", image.getName(), xml);
+			element("rootDeviceType", image.getRootDeviceType(), xml);
+			element("virtualizationType", image.getVirtualizationType(), xml);
+			xml.append("</item>");
+		}
+		xml.append("</imagesSet>");
+		return end("DescribeImagesResponse", xml);
+	}
+
+	private String describeSubnets(Map<String, String> params, String requestId) {
+		List<Subnet> subnets = fleet.describeSubnets(new DescribeSubnetsRequest()
+				.withSubnetIds(list(params, "SubnetId"))
+				.withFilters(filters(params))).getSubnets();
+
+		StringBuilder xml = begin("DescribeSubnetsResponse", requestId);
+		xml.append("<subnetSet>");
+		for (Subnet subnet : subnets) {
+			xml.append("<item>");
+			element("subnetId", subnet.getSubnetId(), xml);
+			element("state", subnet.getState(), xml);
+			element("vpcId", subnet.getVpcId(), xml);
+			element("cidrBlock", subnet.getCidrBlock(), xml);
+			element("availableIpAddressCount", subnet.getAvailableIpAddressCount().toString(), xml);
+			element("availabilityZone", subnet.getAvailabilityZone(), xml);
+			element("defaultForAz", "false", xml);
+			element("mapPublicIpOnLaunch", "false", xml);
+			xml.append("</item>");
+		}
+		xml.append("</subnetSet>");
+		return end("DescribeSubnetsResponse", xml);
+	}
+
+	private void appendReservation(Reservation reservation, StringBuilder xml) {
+		element("reservationId", reservation.getReservationId(), xml);
+		element("ownerId", OWNER_ID, xml);
+		xml.append("<groupSet/>");
+		xml.append("<instancesSet>");
+		int index = 0;
+		for (Instance instance : reservation.getInstances()) {
+			xml.append("<item>");
+			element("instanceId", instance.getInstanceId(), xml);
+			element("imageId", instance.getImageId(), xml);
+			appendState("instanceState", instance.getState(), xml);
+			element("keyName", instance.getKeyName(), xml);
+			element("amiLaunchIndex", Integer.toString(index++), xml);
+			element("instanceType", instance.getInstanceType(), xml);
+			element("launchTime", instance.getLaunchTime() == null ? null : formatDate(instance.getLaunchTime()), xml);
+			if (instance.getPlacement() != null) {
+				xml.append("<placement>");
+				element("availabilityZone", instance.getPlacement().getAvailabilityZone(), xml);
+				element("tenancy", "default", xml);
+				xml.append("</placement>");
+			}
+			element("kernelId", instance.getKernelId(), xml);
+			element("subnetId", instance.getSubnetId(), xml);
+			element("architecture", instance.getArchitecture(), xml);
+			element("rootDeviceType", "ebs", xml);
+			element("virtualizationType", "hvm", xml);
+			element("hypervisor", instance.getHypervisor(), xml);
+			if (instance.getTags() != null && !instance.getTags().isEmpty()) {
+				xml.append("<tagSet>");
+				for (Tag tag : instance.getTags()) {
+					xml.append("<item>");
+					element("key", tag.getKey(), xml);
+					element("value", tag.getValue(), xml);
+					xml.append("</item>");
+				}
+				xml.append("</tagSet>");
+			}
+			xml.append("</item>");
+		}
+		xml.append("</instancesSet>");
+	}
+
+	private static void appendState(String name, InstanceState state, StringBuilder xml) {
+		xml.append('<').append(name).append('>');
+		element("code", state.getCode().toString(), xml);
+		element("name", state.getName(), xml);
+		xml.append("</").append(name).append('>');
+	}
+
+	private static String errorResponse(AmazonServiceException e, String requestId) {
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		xml.append("<Response><Errors><Error>");
+		element("Code", e.getErrorCode(), xml);
+		element("Message", e.getErrorMessage(), xml);
+		xml.append("</Error></Errors>");
+		element("RequestID", requestId, xml);
+		xml.append("</Response>");
+		return xml.toString();
+	}
+
+	private static StringBuilder begin(String response, String requestId) {
+		StringBuilder xml = new StringBuilder(1024);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		xml.append('<').append(response).append(" xmlns=\"").append(XMLNS).append("\">");
+		element("requestId", requestId, xml);
+		return xml;
+	}
+
+	private static String end(String response, StringBuilder xml) {
+		return xml.append("</").append(response).append('>').toString();
+	}
+
+	/*
+	 * Appends an element with escaped text. Null values are omitted, as EC2 does.
+	 */
+	private static void element(String name, String value, StringBuilder xml) {
+		if (value == null)
+			return;
+		xml.append('<').append(name).append('>');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '<':
+					xml.append("&lt;");
+					break;
+				case '>':
+					xml.append("&gt;");
+					break;
+				case '&':
+					xml.append("&amp;");
+					break;
+				default:
+					xml.append(c);
+			}
+		}
+		xml.append("</").append(name).append('>');
+	}
+
+	private static String formatDate(Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+
+	/*
+	 * Reads the members of a Query API list: Prefix.1, Prefix.2, ...
+	 */
+	private static List<String> list(Map<String, String> params, String prefix) {
+		List<String> values = new ArrayList<String>();
+		for (int n = 1; params.containsKey(prefix + "." + n); n++)
+			values.add(params.get(prefix + "." + n));
+		return values;
+	}
+
+	private static List<Filter> filters(Map<String, String> params) {
+		List<Filter> filters = new ArrayList<Filter>();
+		for (int n = 1; params.containsKey("Filter." + n + ".Name"); n++)
+			filters.add(new Filter(params.get("Filter." + n + ".Name"), list(params, "Filter." + n + ".Value")));
+		return filters;
+	}
+
+	private static void parse(String encoded, Map<String, String> params) throws UnsupportedEncodingException {
+		if (encoded == null || encoded.isEmpty())
+			return;
+		for (String pair : encoded.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals < 0)
+				params.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else
+				params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int read; (read = in.read(buffer)) > 0;)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	private void delay() {
+		long millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,762 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeAvailabilityZonesResult;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.Subnet;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+
+/**
+ * In-memory model of an EC2 fleet, which answers the EC2 requests used by this application
+ * the way the service does: DescribeInstances with NextToken/MaxResults paging, instance ids
+ * and filters (with * and ? wildcards), RunInstances (idempotent on the client token),
+ * CreateTags, TerminateInstances, DescribeAvailabilityZones, DescribeImages and
+ * DescribeSubnets. Unknown instance ids fail with InvalidInstanceID.NotFound. Instances move from pending to running and from
+ * shutting-down to terminated after a configurable delay.
+ * <p>
+ * The fleet is generated from a seed, so that every run sees the same instances. Returned
+ * instances are never modified afterwards: changes replace them with updated copies.
+ * </p>
+ * <p>
+ * The fleet backs both the in-process client of the benchmarks and {@link FakeEC2Server}.
+ * </p>
+ */
+public class FakeFleet {
+
+	// Generated values.
+	private static final String[] INSTANCE_TYPES = { "t2.micro", "t2.small", "t2.medium", "m4.large", "c4.xlarge" };
+	private static final String[] STATES = { "running", "running", "running", "running", "stopped", "terminated" };
+	private static final int KEY_PAIRS = 10;
+	private static final int OWNERS = 50;
+	private static final String DEFAULT_VPC = "vpc-0a000001";
+
+	// Paths of the state machine.
+	private static final InstanceState PENDING = new InstanceState().withCode(0).withName("pending");
+	private static final InstanceState RUNNING = new InstanceState().withCode(16).withName("running");
+	private static final InstanceState SHUTTING_DOWN = new InstanceState().withCode(32).withName("shutting-down");
+	private static final InstanceState TERMINATED = new InstanceState().withCode(48).withName("terminated");
+	private static final InstanceState STOPPED = new InstanceState().withCode(80).withName("stopped");
+
+	private final String region;
+	private final List<String> zones;
+	private final long transitionMillis;
+
+	// Instances in launch order, and their reservation ids. Guarded by lock.
+	private final List<Instance> instances = new ArrayList<Instance>();
+	private final Map<String, Integer> positionById = new HashMap<String, Integer>();
+	private final Map<String, String> reservationById = new HashMap<String, String>();
+	private final Map<String, Long> transitioning = new LinkedHashMap<String, Long>();
+	private final Map<String, Reservation> reservationByClientToken = new HashMap<String, Reservation>();
+	// Instances each zone can still launch; no entry for no limit. Guarded by lock.
+	private final Map<String, Integer> capacityByZone = new HashMap<String, Integer>();
+	// Registered images, and the zone and VPC of each subnet. Guarded by lock.
+	private final Set<String> images = new LinkedHashSet<String>();
+	private final Map<String, String> subnetZones = new LinkedHashMap<String, String>();
+	private final Map<String, String> subnetVpcs = new HashMap<String, String>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final AtomicLong nextId = new AtomicLong(0x10000000L);
+	private final Map<String, AtomicLong> callCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Generates a fleet.
+	 * @param region The region name, for example us-west-2.
+	 * @param size The number of instances.
+	 * @param tagsPerInstance The number of tags of each instance, including Name and owner.
+	 * @param instancesPerReservation The number of instances launched together.
+	 * @param transitionDelayMillis Time an instance stays pending or shutting-down, in milliseconds.
+	 * @param seed The random seed.
+	 */
+	public FakeFleet(String region, int size, int tagsPerInstance, int instancesPerReservation,
+			long transitionDelayMillis, long seed) {
+		this.region = region;
+		this.zones = new ArrayList<String>();
+		for (String suffix : new String[] { "a", "b", "c" })
+			zones.add(region + suffix);
+		this.transitionMillis = transitionDelayMillis;
+
+		// The image of the fleet, a subnet in each zone of the default VPC, and the subnet of
+		// the sample launches, alone in its VPC.
+		images.add("ami-7172b611");
+		for (int i = 0; i < zones.size(); i++) {
+			subnetZones.put(String.format("subnet-%08x", 0x0a000001 + i), zones.get(i));
+			subnetVpcs.put(String.format("subnet-%08x", 0x0a000001 + i), DEFAULT_VPC);
+		}
+		subnetZones.put("subnet-06223c5f", zones.get(2));
+		subnetVpcs.put("subnet-06223c5f", "vpc-06223c00");
+
+		Random random = new Random(seed);
+		String reservationId = null;
+		for (int i = 0; i < size; i++) {
+			if (i % Math.max(1, instancesPerReservation) == 0)
+				reservationId = String.format("r-%08x", random.nextInt() & 0x7fffffff);
+
+			List<Tag> tags = new ArrayList<Tag>();
+			if (tagsPerInstance > 0)
+				tags.add(new Tag("Name", "instance-" + i));
+			if (tagsPerInstance > 1)
+				tags.add(new Tag("owner", "owner-" + random.nextInt(OWNERS)));
+			for (int t = 2; t < tagsPerInstance; t++)
+				tags.add(new Tag("tag-" + t, "value-" + random.nextInt(10)));
+
+			String state = STATES[random.nextInt(STATES.length)];
+			Instance instance = new Instance()
+					.withInstanceId(newInstanceId())
+					.withImageId("ami-7172b611")
+					.withKernelId(null)
+					.withInstanceType(INSTANCE_TYPES[random.nextInt(INSTANCE_TYPES.length)])
+					.withArchitecture("x86_64")
+					.withHypervisor("xen")
+					.withKeyName("key-" + random.nextInt(KEY_PAIRS))
+					.withLaunchTime(new Date(1420070400000L + random.nextInt(Integer.MAX_VALUE) * 10L))
+					.withPlacement(new Placement(zones.get(random.nextInt(zones.size()))))
+					.withState(stateNamed(state))
+					.withTags(tags);
+			add(instance, reservationId);
+		}
+	}
+
+	/**
+	 * Gets the region name.
+	 * @return The region.
+	 */
+	public String getRegion() {
+		return region;
+	}
+
+	/**
+	 * Gets the number of instances, in any state.
+	 * @return The number of instances.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return instances.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the ids of all the instances, in launch order.
+	 * @return The instance ids.
+	 */
+	public List<String> getInstanceIds() {
+		lock.readLock().lock();
+		try {
+			List<String> ids = new ArrayList<String>(instances.size());
+			for (Instance instance : instances)
+				ids.add(instance.getInstanceId());
+			return ids;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Limits the number of instances a zone can still launch. A launch whose minimum count
+	 * exceeds the capacity left fails with InsufficientInstanceCapacity; otherwise it launches
+	 * as many instances as the capacity allows, up to its maximum count.
+	 * @param zone The availability zone, for example us-west-2a.
+	 * @param instances The number of instances, negative for no limit.
+	 */
+	public void setCapacity(String zone, int instances) {
+		lock.writeLock().lock();
+		try {
+			if (instances < 0)
+				capacityByZone.remove(zone);
+			else
+				capacityByZone.put(zone, instances);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Registers an image, so that DescribeImages finds it.
+	 * @param imageId The image id, for example ami-7172b611.
+	 */
+	public void addImage(String imageId) {
+		lock.writeLock().lock();
+		try {
+			images.add(imageId);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Registers a subnet of the default VPC, so that DescribeSubnets finds it.
+	 * @param subnetId The subnet id, for example subnet-06223c5f.
+	 * @param zone The availability zone of the subnet.
+	 */
+	public void addSubnet(String subnetId, String zone) {
+		addSubnet(subnetId, zone, DEFAULT_VPC);
+	}
+
+	/**
+	 * Registers a subnet, so that DescribeSubnets finds it.
+	 * @param subnetId The subnet id, for example subnet-06223c5f.
+	 * @param zone The availability zone of the subnet.
+	 * @param vpcId The VPC of the subnet.
+	 */
+	public void addSubnet(String subnetId, String zone, String vpcId) {
+		lock.writeLock().lock();
+		try {
+			subnetZones.put(subnetId, zone);
+			subnetVpcs.put(subnetId, vpcId);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of calls received for an action.
+	 * @param action The action name, for example DescribeInstances.
+	 * @return The number of calls.
+	 */
+	public long getCallCount(String action) {
+		AtomicLong count = callCounts.get(action);
+		return count == null ? 0 : count.get();
+	}
+
+	/*
+	 * EC2 actions *
+	 */
+
+	/**
+	 * Describes instances.
+	 * @param request The request.
+	 * @return The page of matching instances, grouped by reservation.
+	 */
+	public DescribeInstancesResult describeInstances(DescribeInstancesRequest request) {
+		count("DescribeInstances");
+		advance();
+
+		List<String> ids = request.getInstanceIds();
+		boolean hasIds = ids != null && !ids.isEmpty();
+		if (hasIds && request.getMaxResults() != null)
+			throw serviceException("InvalidParameterCombination",
+					"The parameter instancesSet cannot be used with the parameter maxResults", 400);
+		if (request.getMaxResults() != null && (request.getMaxResults() < 5 || request.getMaxResults() > 1000))
+			throw serviceException("InvalidParameterValue", "Value for maxResults must be between 5 and 1000", 400);
+
+		List<Matcher> matchers = new ArrayList<Matcher>();
+		if (request.getFilters() != null)
+			for (Filter filter : request.getFilters())
+				matchers.add(new Matcher(filter));
+
+		int start = 0;
+		if (request.getNextToken() != null && !request.getNextToken().isEmpty()) {
+			try {
+				start = Integer.parseInt(request.getNextToken());
+			}
+			catch (NumberFormatException e) {
+				throw serviceException("InvalidParameterValue", "Invalid NextToken", 400);
+			}
+		}
+		int max = request.getMaxResults() == null ? Integer.MAX_VALUE : request.getMaxResults();
+
+		lock.readLock().lock();
+		try {
+			List<Instance> candidates = instances;
+			if (hasIds) {
+				candidates = new ArrayList<Instance>();
+				List<String> missing = new ArrayList<String>();
+				for (String id : new LinkedHashSet<String>(ids)) {
+					Integer position = positionById.get(id);
+					if (position == null)
+						missing.add(id);
+					else
+						candidates.add(instances.get(position));
+				}
+				if (!missing.isEmpty())
+					throw serviceException("InvalidInstanceID.NotFound",
+							String.format("The instance IDs '%s' do not exist", String.join(", ", missing)), 400);
+			}
+
+			// Collect a page of matching instances, grouped by consecutive reservation.
+			List<Reservation> reservations = new ArrayList<Reservation>();
+			Reservation current = null;
+			int found = 0;
+			int position = start;
+			for (; position < candidates.size() && found < max; position++) {
+				Instance instance = candidates.get(position);
+				if (!matches(instance, matchers))
+					continue;
+				String reservationId = reservationById.get(instance.getInstanceId());
+				if (current == null || !current.getReservationId().equals(reservationId)) {
+					current = new Reservation().withReservationId(reservationId).withOwnerId("123456789012");
+					reservations.add(current);
+				}
+				current.getInstances().add(instance);
+				found++;
+			}
+
+			// Skip the trailing non matching instances, so that the last page has no token.
+			while (position < candidates.size() && !matches(candidates.get(position), matchers))
+				position++;
+
+			DescribeInstancesResult result = new DescribeInstancesResult().withReservations(reservations);
+			if (position < candidates.size())
+				result.setNextToken(Integer.toString(position));
+			return result;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Launches instances. A request with a client token already used returns the
+	 * reservation of the first request.
+	 * @param request The request.
+	 * @return The reservation of the launched instances.
+	 */
+	public RunInstancesResult runInstances(RunInstancesRequest request) {
+		count("RunInstances");
+
+		lock.writeLock().lock();
+		try {
+			String token = request.getClientToken();
+			if (token != null && reservationByClientToken.containsKey(token))
+				return new RunInstancesResult().withReservation(reservationByClientToken.get(token));
+
+			int count = request.getMaxCount() == null ? 1 : request.getMaxCount();
+			String zone = request.getPlacement() != null && request.getPlacement().getAvailabilityZone() != null
+					? request.getPlacement().getAvailabilityZone() : zones.get(0);
+			if (!zones.contains(zone))
+				throw serviceException("InvalidParameterValue",
+						String.format("Invalid availability zone: [%s]", zone), 400);
+
+			Integer capacity = capacityByZone.get(zone);
+			if (capacity != null) {
+				int minCount = request.getMinCount() == null ? count : request.getMinCount();
+				if (capacity < minCount)
+					throw serviceException("InsufficientInstanceCapacity", String.format(
+							"We currently do not have sufficient %s capacity in the Availability Zone you requested (%s).",
+							request.getInstanceType(), zone), 500);
+				count = Math.min(count, capacity);
+				capacityByZone.put(zone, capacity - count);
+			}
+
+			String reservationId = String.format("r-%08x", nextId.incrementAndGet());
+			Reservation reservation = new Reservation().withReservationId(reservationId).withOwnerId("123456789012");
+			for (int i = 0; i < count; i++) {
+				Instance instance = new Instance()
+						.withInstanceId(newInstanceId())
+						.withImageId(request.getImageId())
+						.withInstanceType(request.getInstanceType())
+						.withArchitecture("x86_64")
+						.withHypervisor("xen")
+						.withKeyName(request.getKeyName())
+						.withSubnetId(request.getSubnetId())
+						.withLaunchTime(new Date())
+						.withPlacement(new Placement(zone))
+						.withState(PENDING);
+				add(instance, reservationId);
+				transitioning.put(instance.getInstanceId(), System.currentTimeMillis());
+				reservation.getInstances().add(instance);
+			}
+			if (token != null)
+				reservationByClientToken.put(token, reservation);
+			return new RunInstancesResult().withReservation(reservation);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds or replaces tags.
+	 * @param request The request.
+	 */
+	public void createTags(CreateTagsRequest request) {
+		count("CreateTags");
+
+		lock.writeLock().lock();
+		try {
+			for (String id : request.getResources())
+				if (!positionById.containsKey(id))
+					throw serviceException("InvalidInstanceID.NotFound",
+							String.format("The instance ID '%s' does not exist", id), 400);
+
+			for (String id : request.getResources()) {
+				Instance copy = copy(id);
+				List<Tag> tags = new ArrayList<Tag>();
+				for (Tag tag : copy.getTags())
+					if (!hasKey(request.getTags(), tag.getKey()))
+						tags.add(tag);
+				tags.addAll(request.getTags());
+				copy.setTags(tags);
+				replace(copy);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Terminates instances.
+	 * @param request The request.
+	 * @return The state change of each instance.
+	 */
+	public TerminateInstancesResult terminateInstances(TerminateInstancesRequest request) {
+		count("TerminateInstances");
+
+		lock.writeLock().lock();
+		try {
+			List<String> missing = new ArrayList<String>();
+			for (String id : request.getInstanceIds())
+				if (!positionById.containsKey(id))
+					missing.add(id);
+			if (!missing.isEmpty())
+				throw serviceException("InvalidInstanceID.NotFound",
+						String.format("The instance IDs '%s' do not exist", String.join(", ", missing)), 400);
+
+			List<InstanceStateChange> changes = new ArrayList<InstanceStateChange>();
+			for (String id : new LinkedHashSet<String>(request.getInstanceIds())) {
+				Instance copy = copy(id);
+				InstanceState previous = copy.getState();
+				if (!TERMINATED.getName().equals(previous.getName())) {
+					copy.setState(transitionMillis > 0 ? SHUTTING_DOWN : TERMINATED);
+					replace(copy);
+					if (transitionMillis > 0)
+						transitioning.put(id, System.currentTimeMillis());
+				}
+				changes.add(new InstanceStateChange()
+						.withInstanceId(id)
+						.withPreviousState(previous)
+						.withCurrentState(copy.getState()));
+			}
+			return new TerminateInstancesResult().withTerminatingInstances(changes);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Describes the availability zones of the region.
+	 * @return The availability zones.
+	 */
+	public DescribeAvailabilityZonesResult describeAvailabilityZones() {
+		count("DescribeAvailabilityZones");
+
+		List<AvailabilityZone> result = new ArrayList<AvailabilityZone>();
+		for (String zone : zones)
+			result.add(new AvailabilityZone().withZoneName(zone).withRegionName(region).withState("available"));
+		return new DescribeAvailabilityZonesResult().withAvailabilityZones(result);
+	}
+
+	/**
+	 * Describes the registered images. Unknown image ids fail with InvalidAMIID.NotFound.
+	 * @param request The request, with image ids and image-id filters.
+	 * @return The matching images.
+	 */
+	public DescribeImagesResult describeImages(DescribeImagesRequest request) {
+		count("DescribeImages");
+		List<Matcher> matchers = compile(request.getFilters(), "image-id");
+
+		lock.readLock().lock();
+		try {
+			for (String id : request.getImageIds())
+				if (!images.contains(id))
+					throw serviceException("InvalidAMIID.NotFound",
+							String.format("The image id '[%s]' does not exist", id), 400);
+
+			List<Image> result = new ArrayList<Image>();
+			for (String id : images) {
+				if (!request.getImageIds().isEmpty() && !request.getImageIds().contains(id))
+					continue;
+				if (matchesAll(matchers, id))
+					result.add(new Image().withImageId(id).withState("available").withOwnerId("123456789012")
+							.withArchitecture("x86_64").withImageType("machine").withName(id)
+							.withRootDeviceType("ebs").withVirtualizationType("hvm"));
+			}
+			return new DescribeImagesResult().withImages(result);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Describes the registered subnets. Unknown subnet ids fail with InvalidSubnetID.NotFound.
+	 * @param request The request, with subnet ids, and subnet-id and vpc-id filters.
+	 * @return The matching subnets.
+	 */
+	public DescribeSubnetsResult describeSubnets(DescribeSubnetsRequest request) {
+		count("DescribeSubnets");
+		List<Matcher> matchers = compile(request.getFilters(), "subnet-id", "vpc-id");
+
+		lock.readLock().lock();
+		try {
+			for (String id : request.getSubnetIds())
+				if (!subnetZones.containsKey(id))
+					throw serviceException("InvalidSubnetID.NotFound",
+							String.format("The subnet ID '%s' does not exist", id), 400);
+
+			List<Subnet> result = new ArrayList<Subnet>();
+			int index = 0;
+			for (Map.Entry<String, String> subnet : subnetZones.entrySet()) {
+				index++;
+				String id = subnet.getKey();
+				if (!request.getSubnetIds().isEmpty() && !request.getSubnetIds().contains(id))
+					continue;
+				boolean matches = true;
+				for (Matcher matcher : matchers)
+					matches &= matcher.matches("vpc-id".equals(matcher.name) ? subnetVpcs.get(id) : id);
+				if (matches)
+					result.add(new Subnet().withSubnetId(id).withState("available").withVpcId(subnetVpcs.get(id))
+							.withCidrBlock(String.format("10.0.%d.0/24", index)).withAvailableIpAddressCount(251)
+							.withAvailabilityZone(subnet.getValue()));
+			}
+			return new DescribeSubnetsResult().withSubnets(result);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	/*
+	 * Compiles the filters of a describe supporting only the given filters.
+	 */
+	private static List<Matcher> compile(List<Filter> filters, String... names) {
+		List<Matcher> matchers = new ArrayList<Matcher>();
+		for (Filter filter : filters) {
+			if (!Arrays.asList(names).contains(filter.getName()))
+				throw serviceException("InvalidParameterValue",
+						String.format("The filter '%s' is invalid", filter.getName()), 400);
+			matchers.add(new Matcher(filter));
+		}
+		return matchers;
+	}
+
+	private static boolean matchesAll(List<Matcher> matchers, String id) {
+		for (Matcher matcher : matchers)
+			if (!matcher.matches(id))
+				return false;
+		return true;
+	}
+
+	/*
+	 * Filter with its values compiled once per request.
+	 */
+	private static class Matcher {
+		final String name;
+		final Set<String> exact = new HashSet<String>();
+		final List<Pattern> patterns = new ArrayList<Pattern>();
+
+		Matcher(Filter filter) {
+			name = filter.getName();
+			for (String value : filter.getValues()) {
+				if (value.indexOf('*') < 0 && value.indexOf('?') < 0)
+					exact.add(value);
+				else
+					patterns.add(Pattern.compile(
+							Pattern.quote(value).replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q")));
+			}
+		}
+
+		boolean matches(String value) {
+			if (value == null)
+				return false;
+			if (exact.contains(value))
+				return true;
+			for (Pattern pattern : patterns)
+				if (pattern.matcher(value).matches())
+					return true;
+			return false;
+		}
+
+		boolean matches(Instance instance) {
+			switch (name) {
+				case "instance-id":
+					return matches(instance.getInstanceId());
+				case "key-name":
+					return matches(instance.getKeyName());
+				case "instance-state-name":
+					return matches(instance.getState().getName());
+				case "availability-zone":
+					return matches(instance.getPlacement().getAvailabilityZone());
+				case "instance-type":
+					return matches(instance.getInstanceType());
+				case "image-id":
+					return matches(instance.getImageId());
+				case "tag-key":
+					for (Tag tag : instance.getTags())
+						if (matches(tag.getKey()))
+							return true;
+					return false;
+				default:
+					if (name.startsWith("tag:")) {
+						String key = name.substring(4);
+						for (Tag tag : instance.getTags())
+							if (tag.getKey().equals(key) && matches(tag.getValue()))
+								return true;
+						return false;
+					}
+					throw serviceException("InvalidParameterValue",
+							String.format("The filter '%s' is invalid", name), 400);
+			}
+		}
+	}
+
+	private static boolean matches(Instance instance, List<Matcher> matchers) {
+		for (Matcher matcher : matchers)
+			if (!matcher.matches(instance))
+				return false;
+		return true;
+	}
+
+	/*
+	 * Moves the instances whose transition delay has elapsed to their final state.
+	 */
+	private void advance() {
+		lock.readLock().lock();
+		try {
+			if (transitioning.isEmpty())
+				return;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, Long>> iterator = transitioning.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Long> entry = iterator.next();
+				if (now - entry.getValue() < transitionMillis)
+					continue;
+
+				String id = entry.getKey();
+				String state = instances.get(positionById.get(id)).getState().getName();
+				if (PENDING.getName().equals(state))
+					replace(copy(id).withState(RUNNING));
+				else if (SHUTTING_DOWN.getName().equals(state))
+					replace(copy(id).withState(TERMINATED));
+				iterator.remove();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void add(Instance instance, String reservationId) {
+		positionById.put(instance.getInstanceId(), instances.size());
+		reservationById.put(instance.getInstanceId(), reservationId);
+		instances.add(instance);
+	}
+
+	private Instance copy(String id) {
+		Instance copy = instances.get(positionById.get(id)).clone();
+		copy.setTags(new ArrayList<Tag>(copy.getTags()));
+		return copy;
+	}
+
+	private void replace(Instance instance) {
+		instances.set(positionById.get(instance.getInstanceId()), instance);
+	}
+
+	private String newInstanceId() {
+		return String.format("i-%08x", nextId.incrementAndGet());
+	}
+
+	private void count(String action) {
+		AtomicLong count = callCounts.get(action);
+		if (count == null) {
+			callCounts.putIfAbsent(action, new AtomicLong());
+			count = callCounts.get(action);
+		}
+		count.incrementAndGet();
+	}
+
+	private static boolean hasKey(List<Tag> tags, String key) {
+		for (Tag tag : tags)
+			if (tag.getKey().equals(key))
+				return true;
+		return false;
+	}
+
+	private static InstanceState stateNamed(String name) {
+		switch (name) {
+			case "running":
+				return RUNNING;
+			case "stopped":
+				return STOPPED;
+			case "terminated":
+				return TERMINATED;
+			default:
+				return PENDING;
+		}
+	}
+
+	static AmazonServiceException serviceException(String errorCode, String message, int statusCode) {
+		AmazonServiceException exception = new AmazonServiceException(message);
+		exception.setErrorCode(errorCode);
+		exception.setStatusCode(statusCode);
+		exception.setErrorType(statusCode >= 500 ? ErrorType.Service : ErrorType.Client);
+		exception.setServiceName("AmazonEC2");
+		return exception;
+	}
+
+	/**
+	 * Gets the availability zones of the region.
+	 * @return The zone names.
+	 */
+	public List<String> getZones() {
+		return Collections.unmodifiableList(zones);
+	}
+}
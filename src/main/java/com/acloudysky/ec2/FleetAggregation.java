@@ -0,0 +1,253 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.Collector;
+
+/**
+ * Counts the instances of a fleet by availability zone, instance type, state, key pair and
+ * owner, and keeps the oldest instances, all in one pass over the instances. Aggregations of
+ * parts of the fleet can be merged, so a parallel stream aggregates its parts concurrently:
+ * <pre>
+ * FleetAggregation fleet = inventory.getAll().parallelStream()
+ *         .collect(FleetAggregation.collector(FleetAggregation.DEFAULT_OLDEST));
+ * Map&lt;String, Long&gt; topOwners = fleet.getTop(FleetAggregation.Dimension.OWNER, 10);
+ * </pre>
+ * Instances without a key pair or an owner tag are counted under "(none)". An aggregation
+ * is not thread safe; each thread aggregates its own part.
+ */
+public class FleetAggregation {
+
+	/**
+	 * Default number of oldest instances kept.
+	 */
+	public static final int DEFAULT_OLDEST = 5;
+
+	/**
+	 * Value counted for instances without the attribute.
+	 */
+	public static final String NONE = "(none)";
+
+	/**
+	 * Attributes the instances are counted by.
+	 */
+	public enum Dimension {
+		AVAILABILITY_ZONE("Availability zone"),
+		INSTANCE_TYPE("Instance type"),
+		STATE("State"),
+		KEY_NAME("Key pair"),
+		OWNER("Owner");
+
+		private final String label;
+
+		Dimension(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * Gets the display name.
+		 * @return The label, for example Instance type.
+		 */
+		public String getLabel() {
+			return label;
+		}
+
+		/*
+		 * Gets the value of this attribute of an instance.
+		 */
+		String valueOf(InstanceSummary instance) {
+			String value;
+			switch (this) {
+				case AVAILABILITY_ZONE:
+					value = instance.getAvailabilityZone();
+					break;
+				case INSTANCE_TYPE:
+					value = instance.getInstanceType();
+					break;
+				case STATE:
+					value = instance.getState().getStateName();
+					break;
+				case KEY_NAME:
+					value = instance.getKeyName();
+					break;
+				default:
+					value = instance.getOwner();
+			}
+			return value == null ? NONE : value;
+		}
+	}
+
+	/*
+	 * Mutable count, so that counting does not box.
+	 */
+	private static final class Counter {
+		long value;
+	}
+
+	// Orders the instances from the newest to the oldest. Unknown launch times are the newest.
+	private static final Comparator<InstanceSummary> NEWEST_FIRST = (a, b) ->
+			Long.compare(launchTime(b), launchTime(a));
+
+	private static final Dimension[] DIMENSIONS = Dimension.values();
+
+	// Counters of each dimension, by value.
+	private final List<Map<String, Counter>> counts = new ArrayList<Map<String, Counter>>(DIMENSIONS.length);
+
+	// The oldest instances, newest of them first so that it is the one replaced.
+	private final PriorityQueue<InstanceSummary> oldest;
+	private final int oldestLimit;
+
+	private long total = 0;
+
+	/**
+	 * Initializes an empty aggregation.
+	 * @param oldestLimit Number of oldest instances to keep.
+	 */
+	public FleetAggregation(int oldestLimit) {
+		for (int i = 0; i < DIMENSIONS.length; i++)
+			counts.add(new HashMap<String, Counter>());
+		this.oldestLimit = Math.max(0, oldestLimit);
+		oldest = new PriorityQueue<InstanceSummary>(this.oldestLimit + 1, NEWEST_FIRST);
+	}
+
+	/**
+	 * Gets a collector aggregating a stream of instances. The collector can be used on
+	 * parallel streams.
+	 * @param oldestLimit Number of oldest instances to keep.
+	 * @return The collector.
+	 */
+	public static Collector<InstanceSummary, FleetAggregation, FleetAggregation> collector(int oldestLimit) {
+		return Collector.of(() -> new FleetAggregation(oldestLimit), FleetAggregation::add, FleetAggregation::merge,
+				Collector.Characteristics.IDENTITY_FINISH, Collector.Characteristics.UNORDERED);
+	}
+
+	/**
+	 * Adds an instance.
+	 * @param instance The instance.
+	 */
+	public void add(InstanceSummary instance) {
+		total++;
+		for (int i = 0; i < DIMENSIONS.length; i++) {
+			Map<String, Counter> values = counts.get(i);
+			String value = DIMENSIONS[i].valueOf(instance);
+			Counter counter = values.get(value);
+			if (counter == null) {
+				counter = new Counter();
+				values.put(value, counter);
+			}
+			counter.value++;
+		}
+		if (oldestLimit > 0 && instance.getLaunchTime() >= 0) {
+			oldest.add(instance);
+			if (oldest.size() > oldestLimit)
+				oldest.poll();
+		}
+	}
+
+	/**
+	 * Adds the instances of another aggregation.
+	 * @param other The other aggregation. It is not modified.
+	 * @return This aggregation.
+	 */
+	public FleetAggregation merge(FleetAggregation other) {
+		total += other.total;
+		for (int i = 0; i < DIMENSIONS.length; i++) {
+			Map<String, Counter> values = counts.get(i);
+			for (Map.Entry<String, Counter> entry : other.counts.get(i).entrySet()) {
+				Counter counter = values.get(entry.getKey());
+				if (counter == null) {
+					counter = new Counter();
+					values.put(entry.getKey(), counter);
+				}
+				counter.value += entry.getValue().value;
+			}
+		}
+		for (InstanceSummary instance : other.oldest) {
+			oldest.add(instance);
+			if (oldest.size() > oldestLimit)
+				oldest.poll();
+		}
+		return this;
+	}
+
+	/**
+	 * Gets the number of instances.
+	 * @return The number of instances, in all states.
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Gets the number of instances with a value.
+	 * @param dimension The attribute.
+	 * @param value The value, for example running for the state.
+	 * @return The number of instances.
+	 */
+	public long getCount(Dimension dimension, String value) {
+		Counter counter = counts.get(dimension.ordinal()).get(value);
+		return counter == null ? 0 : counter.value;
+	}
+
+	/**
+	 * Gets the number of instances of each value, largest first.
+	 * @param dimension The attribute.
+	 * @return The counts by value.
+	 */
+	public Map<String, Long> getCounts(Dimension dimension) {
+		return getTop(dimension, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Gets the values with the most instances, largest first. Ties are ordered by value.
+	 * @param dimension The attribute.
+	 * @param limit Maximum number of values.
+	 * @return The counts by value.
+	 */
+	public Map<String, Long> getTop(Dimension dimension, int limit) {
+		List<Map.Entry<String, Counter>> entries =
+				new ArrayList<Map.Entry<String, Counter>>(counts.get(dimension.ordinal()).entrySet());
+		entries.sort((a, b) -> a.getValue().value != b.getValue().value
+				? Long.compare(b.getValue().value, a.getValue().value) : a.getKey().compareTo(b.getKey()));
+
+		Map<String, Long> top = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Counter> entry : entries) {
+			if (top.size() >= limit)
+				break;
+			top.put(entry.getKey(), entry.getValue().value);
+		}
+		return top;
+	}
+
+	/**
+	 * Gets the counts of all the attributes.
+	 * @return The counts by value, largest first, of each attribute.
+	 */
+	public Map<Dimension, Map<String, Long>> getAllCounts() {
+		Map<Dimension, Map<String, Long>> all = new EnumMap<Dimension, Map<String, Long>>(Dimension.class);
+		for (Dimension dimension : DIMENSIONS)
+			all.put(dimension, getCounts(dimension));
+		return all;
+	}
+
+	/**
+	 * Gets the oldest instances, oldest first. Instances with no launch time are not kept.
+	 * @return The instances.
+	 */
+	public List<InstanceSummary> getOldest() {
+		List<InstanceSummary> instances = new ArrayList<InstanceSummary>(oldest);
+		instances.sort(Collections.reverseOrder(NEWEST_FIRST));
+		return instances;
+	}
+
+	private static long launchTime(InstanceSummary instance) {
+		return instance.getLaunchTime() < 0 ? Long.MAX_VALUE : instance.getLaunchTime();
+	}
+}
@@ -39,9 +39,20 @@ public interface IUtility {
 							"ci - Create EC2 Instance(s)", 
 							"ia - Set Instance(s) attributes",
 							"az - Get availaibilty zones",
+							"ra - Get availability zones and instances in all regions",
 							"ik - Get instance information using its Key pair",
 							"ii - Get instance information using its ID",
 							"ti - Terminate EC2 Instance(s)",
+							"tq - Get instance information using a tag expression",
+							"ta - Set a tag on the instances matching a tag expression",
+							"tt - Terminate the instances matching a tag expression",
+							"wi - Wait for instance(s) to reach a state",
+							"rf - Set the report format (text, csv, json)",
+							"wa - Watch instance(s) and display their changes",
+							"fa - Count the instances by zone, type, state, key pair and owner",
+							"st - Display the EC2 call statistics",
+							"lp - List the launch profiles",
+							"cp - Create EC2 Instance(s) from a launch profile",
 							"x  - Quit the application"
 						)
 	);
@@ -0,0 +1,523 @@
+package com.acloudysky.ec2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * Caches the instances visible to the client, indexed by id, key pair name, availability
+ * zone and tags, so that lookups are local reads instead of DescribeInstances calls. The
+ * tags are in a {@link TagIndex}, which also selects the instances matching a
+ * {@link TagQuery}. The instances are kept as {@link InstanceSummary} objects,
+ * projected as the pages are read, not as SDK instances.
+ * <p>
+ * The whole inventory is reloaded when it is older than the time to live (TTL) or after
+ * {@link #invalidate()}. Operations that change instances call {@link #refresh(Collection)}
+ * to reload just the affected instances. When started, a background thread reloads the
+ * inventory before the TTL expires and, in between, refreshes only the instances in a
+ * transitional state (pending, stopping, shutting-down), which are the ones that change.
+ * The thread makes no call while nothing has looked the inventory up within the TTL: the
+ * next lookup then reloads it on demand.
+ * </p>
+ * <p>
+ * With a {@link InventorySnapshotStore}, each full load which changed the fleet is saved, and {@link #restore()}
+ * serves the saved inventory at startup while the background thread reloads it.
+ * </p>
+ */
+public class InstanceInventory {
+
+	/**
+	 * Default time to live of the inventory, in milliseconds.
+	 */
+	public static final long DEFAULT_TTL_MILLIS = 60000;
+
+	// Maximum number of values sent in a single filter.
+	private static final int MAX_FILTER_VALUES = 200;
+
+	// Authenticated EC2 client.
+	private final AmazonEC2 ec2Client;
+
+	// Time to live of a full load, in milliseconds.
+	private final long ttlMillis;
+
+	// Current indexes. Replaced as a whole by a full load, patched by a partial refresh.
+	private volatile Snapshot snapshot = null;
+
+	// Serializes loads and refreshes. Reads do not lock.
+	private final Object loadLock = new Object();
+
+	// Background refresh thread, if started.
+	private ScheduledExecutorService refresher = null;
+
+	// Time of the last lookup. The background refresh idles when it is older than the TTL.
+	private volatile long lastLookup = System.currentTimeMillis();
+
+	// Saved copy of the full loads. Null if not saved.
+	private final InventorySnapshotStore store;
+
+	/*
+	 * Indexes over one load of the fleet.
+	 */
+	private static class Snapshot {
+
+		final long loadedAt = System.currentTimeMillis();
+		volatile boolean invalidated = false;
+
+		// Read from the snapshot store, not from EC2.
+		boolean restored = false;
+
+		final Map<String, InstanceSummary> byId = new ConcurrentHashMap<String, InstanceSummary>();
+		final Map<String, Set<String>> byKeyName = new ConcurrentHashMap<String, Set<String>>();
+		final Map<String, Set<String>> byZone = new ConcurrentHashMap<String, Set<String>>();
+		final TagIndex byTag = new TagIndex();
+
+		// Swaps the entry in place: the new values are indexed before the old ones are
+		// dropped, so that a concurrent lookup never misses the instance. Called by one
+		// writer at a time.
+		void put(InstanceSummary instance) {
+			String id = instance.getInstanceId();
+			index(byKeyName, instance.getKeyName(), id);
+			index(byZone, instance.getAvailabilityZone(), id);
+
+			InstanceSummary old = byId.put(id, instance);
+			byTag.replace(old, instance);
+			if (old == null)
+				return;
+			if (!Objects.equals(old.getKeyName(), instance.getKeyName()))
+				unindex(byKeyName, old.getKeyName(), id);
+			if (!Objects.equals(old.getAvailabilityZone(), instance.getAvailabilityZone()))
+				unindex(byZone, old.getAvailabilityZone(), id);
+		}
+
+		void remove(String id) {
+			InstanceSummary old = byId.remove(id);
+			if (old == null)
+				return;
+
+			unindex(byKeyName, old.getKeyName(), id);
+			unindex(byZone, old.getAvailabilityZone(), id);
+			byTag.remove(old);
+		}
+
+		List<InstanceSummary> select(TagQuery query) {
+			List<String> ids = byTag.select(query);
+			List<InstanceSummary> instances = new ArrayList<InstanceSummary>(ids.size());
+			for (String id : ids) {
+				InstanceSummary instance = byId.get(id);
+				if (instance != null)
+					instances.add(instance);
+			}
+			return instances;
+		}
+
+		List<InstanceSummary> lookup(Map<String, Set<String>> index, String value) {
+			Set<String> ids = value == null ? null : index.get(value);
+			if (ids == null)
+				return Collections.emptyList();
+
+			List<InstanceSummary> instances = new ArrayList<InstanceSummary>(ids.size());
+			for (String id : ids) {
+				InstanceSummary instance = byId.get(id);
+				if (instance != null)
+					instances.add(instance);
+			}
+			return instances;
+		}
+
+		private static void index(Map<String, Set<String>> index, String value, String id) {
+			if (value == null)
+				return;
+			Set<String> ids = index.get(value);
+			if (ids == null) {
+				ids = ConcurrentHashMap.newKeySet();
+				index.put(value, ids);
+			}
+			ids.add(id);
+		}
+
+		private static void unindex(Map<String, Set<String>> index, String value, String id) {
+			if (value == null)
+				return;
+			Set<String> ids = index.get(value);
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty())
+					index.remove(value);
+			}
+		}
+	}
+
+	/**
+	 * Initializes the inventory. Nothing is loaded until the first lookup.
+	 * @param client Authenticated EC2 client.
+	 * @param ttl Time to live of the inventory, in milliseconds.
+	 */
+	public InstanceInventory(AmazonEC2 client, long ttl) {
+		this(client, ttl, null);
+	}
+
+	/**
+	 * Initializes the inventory, saved after each full load.
+	 * @param client Authenticated EC2 client.
+	 * @param ttl Time to live of the inventory, in milliseconds.
+	 * @param store The snapshot store, or null to save nothing.
+	 */
+	public InstanceInventory(AmazonEC2 client, long ttl, InventorySnapshotStore store) {
+		ec2Client = client;
+		ttlMillis = ttl;
+		this.store = store;
+	}
+
+	/*
+	 * Lookups *
+	 */
+
+	/**
+	 * Gets the instance with the specified id.
+	 * @param instanceId The instance id.
+	 * @return The instance, or null if it is not in the inventory.
+	 */
+	public InstanceSummary getById(String instanceId) {
+		return current().byId.get(instanceId);
+	}
+
+	/**
+	 * Gets the instances launched with the specified key pair.
+	 * @param keyName The key pair name.
+	 * @return The instances, possibly empty.
+	 */
+	public List<InstanceSummary> getByKeyName(String keyName) {
+		Snapshot current = current();
+		return current.lookup(current.byKeyName, keyName);
+	}
+
+	/**
+	 * Gets the instances with the specified Name tag.
+	 * @param name The instance name.
+	 * @return The instances, possibly empty.
+	 */
+	public List<InstanceSummary> getByName(String name) {
+		if (name == null)
+			return Collections.emptyList();
+		return current().select(TagQuery.equal("Name", name));
+	}
+
+	/**
+	 * Gets the instances with the specified owner tag.
+	 * @param owner The owner name.
+	 * @return The instances, possibly empty.
+	 */
+	public List<InstanceSummary> getByOwner(String owner) {
+		if (owner == null)
+			return Collections.emptyList();
+		return current().select(TagQuery.equal("owner", owner));
+	}
+
+	/**
+	 * Gets the instances whose tags match a query, without scanning the instances.
+	 * @param query The query, for example TagQuery.parse("env=prod AND owner!=ci").
+	 * @return The instances, possibly empty.
+	 */
+	public List<InstanceSummary> select(TagQuery query) {
+		return current().select(query);
+	}
+
+	/**
+	 * Gets the instances in the specified availability zone.
+	 * @param zone The availability zone, for example us-west-2c.
+	 * @return The instances, possibly empty.
+	 */
+	public List<InstanceSummary> getByAvailabilityZone(String zone) {
+		Snapshot current = current();
+		return current.lookup(current.byZone, zone);
+	}
+
+	/**
+	 * Gets all the instances in the inventory.
+	 * @return The instances.
+	 */
+	public Collection<InstanceSummary> getAll() {
+		return Collections.unmodifiableCollection(current().byId.values());
+	}
+
+	/**
+	 * Gets the number of instances in the inventory.
+	 * @return The number of instances.
+	 */
+	public int size() {
+		return current().byId.size();
+	}
+
+	/**
+	 * Counts the distinct reservations the specified instances belong to.
+	 * @param instances Instances obtained from this inventory.
+	 * @return The number of reservations.
+	 */
+	public int countReservations(Collection<InstanceSummary> instances) {
+		Set<String> reservations = new HashSet<String>();
+		for (InstanceSummary instance : instances) {
+			String reservationId = instance.getReservationId();
+			if (reservationId != null)
+				reservations.add(reservationId);
+		}
+		return reservations.size();
+	}
+
+	/*
+	 * Invalidation and refresh *
+	 */
+
+	/**
+	 * Marks the inventory as stale. The next lookup reloads it.
+	 */
+	public void invalidate() {
+		Snapshot current = snapshot;
+		if (current != null)
+			current.invalidated = true;
+	}
+
+	/**
+	 * Reloads the specified instances only. Call it after an operation changed them,
+	 * for example after creating, tagging or terminating instances.
+	 * If the inventory has not been loaded yet, nothing is done.
+	 * @param instanceIds The ids of the changed instances.
+	 */
+	public void refresh(Collection<String> instanceIds) {
+		if (instanceIds.isEmpty())
+			return;
+
+		synchronized (loadLock) {
+			Snapshot current = snapshot;
+			if (current == null)
+				return;
+
+			// Use the instance-id filter, which unlike instance ids does not fail for unknown ids.
+			List<String> ids = new ArrayList<String>(instanceIds);
+			for (int from = 0; from < ids.size(); from += MAX_FILTER_VALUES) {
+				List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_FILTER_VALUES));
+				DescribeInstancesRequest request = new InstanceQuery()
+						.withFilter("instance-id", chunk.toArray(new String[chunk.size()]))
+						.toRequest();
+				patch(current, request, chunk);
+			}
+		}
+	}
+
+	/**
+	 * Reloads the whole inventory now. The snapshot store is written only if the fleet
+	 * changed since the previous load.
+	 */
+	public void reload() {
+		synchronized (loadLock) {
+			Snapshot previous = snapshot;
+			Snapshot loaded = new Snapshot();
+
+			DescribeInstancesRequest request = new DescribeInstancesRequest();
+			do {
+				DescribeInstancesResult result = ec2Client.describeInstances(
+						request.withMaxResults(InstancePager.DEFAULT_PAGE_SIZE));
+				for (Reservation reservation : result.getReservations())
+					for (Instance instance : reservation.getInstances())
+						loaded.put(InstanceSummary.from(instance, reservation.getReservationId()));
+				request.setNextToken(result.getNextToken());
+			} while (request.getNextToken() != null && !request.getNextToken().isEmpty());
+
+			snapshot = loaded;
+			if (previous == null || previous.restored || !isSameFleet(previous, loaded))
+				save(loaded);
+		}
+	}
+
+	/**
+	 * Loads the inventory saved by a previous run, if any, so that lookups are answered
+	 * without waiting for EC2. The restored inventory is reloaded from EC2 as soon as the
+	 * background refresh starts, or by the first lookup after its TTL otherwise.
+	 * @return The number of instances restored, or -1 if there was no usable snapshot.
+	 */
+	public int restore() {
+		if (store == null)
+			return -1;
+
+		synchronized (loadLock) {
+			Snapshot restored = new Snapshot();
+			long savedAt;
+			try {
+				savedAt = store.load(restored::put);
+			}
+			catch (IOException e) {
+				System.out.println(String.format("Cannot read the inventory snapshot %s: %s", 
+						store.getFile(), e.getMessage()));
+				return -1;
+			}
+			if (savedAt < 0)
+				return -1;
+
+			restored.restored = true;
+			snapshot = restored;
+			if (Main.DEBUG)
+				System.out.println(String.format("InstanceInventory: restored %d instances saved %d s ago",
+						restored.byId.size(), (System.currentTimeMillis() - savedAt) / 1000));
+			return restored.byId.size();
+		}
+	}
+
+	/**
+	 * Starts the background refresh thread. A full reload is done when the inventory is
+	 * close to its TTL, otherwise only the instances in a transitional state are refreshed.
+	 * Nothing is done while the inventory has not been looked up within the TTL.
+	 * @param periodMillis Interval between refreshes, in milliseconds.
+	 */
+	public synchronized void startBackgroundRefresh(long periodMillis) {
+		if (refresher != null)
+			return;
+
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ec2-inventory-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(() -> {
+			try {
+				backgroundRefresh(periodMillis);
+			}
+			catch (AmazonClientException e) {
+				// Keep the current inventory; the next tick or lookup retries.
+				if (Main.DEBUG)
+					System.out.println("InstanceInventory: refresh failed " + e.getMessage());
+			}
+			catch (RuntimeException e) {
+				// An unexpected error would cancel the task for good: report it and keep ticking.
+				System.out.println("InstanceInventory: background refresh failed: " + e);
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background refresh thread.
+	 */
+	public synchronized void stopBackgroundRefresh() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	/*
+	 * Returns the current snapshot, loading it first if missing, stale or invalidated.
+	 */
+	private Snapshot current() {
+		lastLookup = System.currentTimeMillis();
+		Snapshot current = snapshot;
+		if (current == null || current.invalidated || isExpired(current, 0)) {
+			synchronized (loadLock) {
+				// Another thread may have loaded it meanwhile.
+				current = snapshot;
+				if (current == null || current.invalidated || isExpired(current, 0)) {
+					reload();
+					current = snapshot;
+				}
+			}
+		}
+		return current;
+	}
+
+	private boolean isExpired(Snapshot current, long marginMillis) {
+		return System.currentTimeMillis() - current.loadedAt >= ttlMillis - marginMillis;
+	}
+
+	private void backgroundRefresh(long periodMillis) {
+		Snapshot current = snapshot;
+		if (current == null)
+			return;
+
+		// Idle: the next lookup reloads the inventory if it expired meanwhile.
+		if (System.currentTimeMillis() - lastLookup >= ttlMillis)
+			return;
+
+		// Reload before a lookup finds the inventory expired, or replace a restored one.
+		if (current.restored || current.invalidated || isExpired(current, periodMillis)) {
+			reload();
+			return;
+		}
+
+		// Refresh the instances that are changing state.
+		Set<String> changing = new HashSet<String>();
+		for (InstanceSummary instance : current.byId.values())
+			if (instance.getState().isTransitional())
+				changing.add(instance.getInstanceId());
+		if (!changing.isEmpty())
+			refresh(changing);
+	}
+
+	/*
+	 * Replaces the instances returned by the request. Instances among the expected ids
+	 * that are no longer returned are removed.
+	 */
+	private void patch(Snapshot current, DescribeInstancesRequest request, Collection<String> expectedIds) {
+		Set<String> missing = new HashSet<String>(expectedIds);
+		do {
+			DescribeInstancesResult result = ec2Client.describeInstances(request);
+			for (Reservation reservation : result.getReservations())
+				for (Instance instance : reservation.getInstances()) {
+					current.put(InstanceSummary.from(instance, reservation.getReservationId()));
+					missing.remove(instance.getInstanceId());
+				}
+			request.setNextToken(result.getNextToken());
+		} while (request.getNextToken() != null && !request.getNextToken().isEmpty());
+
+		for (String id : missing)
+			current.remove(id);
+	}
+
+	/*
+	 * Checks whether two loads have the same instances, in the same states, with the same
+	 * tags: the values which change during the life of an instance.
+	 */
+	private static boolean isSameFleet(Snapshot previous, Snapshot loaded) {
+		if (previous.byId.size() != loaded.byId.size())
+			return false;
+		for (InstanceSummary instance : loaded.byId.values()) {
+			InstanceSummary old = previous.byId.get(instance.getInstanceId());
+			if (old == null || old.getState() != instance.getState() || !old.hasSameTags(instance))
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Saves a full load. A failure only costs the next run its warm start.
+	 */
+	private void save(Snapshot loaded) {
+		if (store == null)
+			return;
+		try {
+			store.save(loaded.byId.values());
+		}
+		catch (IOException e) {
+			if (Main.DEBUG)
+				System.out.println(String.format("InstanceInventory: cannot save the snapshot %s: %s",
+						store.getFile(), e.getMessage()));
+		}
+	}
+}
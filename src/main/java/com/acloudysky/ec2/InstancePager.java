@@ -0,0 +1,189 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * Lazily iterates over the instances returned by the DescribeInstances API, one page at a time.
+ * The next page is requested, using the NextToken returned by the previous call, only when the
+ * instances of the current page have been consumed. This way the caller holds at most one page
+ * in memory and can stop as soon as it has what it needs.
+ * <p>
+ * <b>Note</b>. EC2 does not allow MaxResults together with explicit instance ids. When the
+ * request contains instance ids the page size is not set and the service returns all of them
+ * in a single response.
+ * </p>
+ * For more information, see <a href="http://docs.aws.amazon.com/AWSEC2/latest/APIReference/API_DescribeInstances.html" target="_blank">DescribeInstances</a>.
+ */
+public class InstancePager implements Iterator<Instance> {
+
+	/**
+	 * Default number of results per page. EC2 accepts values between 5 and 1000.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 500;
+
+	// Authenticated EC2 client.
+	private final AmazonEC2 ec2Client;
+
+	// Private copy of the caller's request. Its NextToken is advanced page by page.
+	private final DescribeInstancesRequest request;
+
+	// Instances of the current page not yet returned, and their reservation ids.
+	private Iterator<Instance> page = Collections.<Instance>emptyIterator();
+	private Iterator<String> pageReservationIds = Collections.<String>emptyIterator();
+
+	// Reservation id of the instance last returned.
+	private String reservationId = null;
+
+	// True when the last page has been fetched.
+	private boolean lastPage = false;
+
+	// Counters, for reporting.
+	private int pages = 0;
+	private int reservations = 0;
+
+	/**
+	 * Initializes a pager that describes all the instances visible to the client.
+	 * @param client Authenticated EC2 client.
+	 */
+	public InstancePager(AmazonEC2 client) {
+		this(client, new DescribeInstancesRequest(), DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Initializes a pager for the specified request.
+	 * @param client Authenticated EC2 client.
+	 * @param describeRequest The request, including filters or instance ids. It is not modified.
+	 * @param pageSize The maximum number of instances per page.
+	 */
+	public InstancePager(AmazonEC2 client, DescribeInstancesRequest describeRequest, int pageSize) {
+
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+
+		ec2Client = client;
+		request = describeRequest.clone();
+		request.setNextToken(null);
+
+		boolean hasIds = request.getInstanceIds() != null && !request.getInstanceIds().isEmpty();
+		if (!hasIds) {
+			request.setMaxResults(Math.max(5, Math.min(1000, pageSize)));
+		}
+		else {
+			request.setMaxResults(null);
+		}
+	}
+
+	/**
+	 * Returns the instances described by the request as a lazy, sequential stream.
+	 * Short-circuiting operations such as findFirst or limit stop fetching pages.
+	 * @param client Authenticated EC2 client.
+	 * @param describeRequest The request, including filters or instance ids.
+	 * @return The stream of instances.
+	 */
+	public static Stream<Instance> stream(AmazonEC2 client, DescribeInstancesRequest describeRequest) {
+		return new InstancePager(client, describeRequest, DEFAULT_PAGE_SIZE).stream();
+	}
+
+	/**
+	 * Returns the remaining instances of this pager as a lazy, sequential stream.
+	 * @return The stream of instances.
+	 */
+	public Stream<Instance> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * Returns the remaining instances of this pager as a lazy, sequential stream of summaries.
+	 * Each instance is projected as soon as it is read, so only the current page holds SDK 
+	 * instances.
+	 * @return The stream of instance summaries.
+	 * @see InstanceSummary
+	 */
+	public Stream<InstanceSummary> summaries() {
+		return stream().map(instance -> InstanceSummary.from(instance, reservationId));
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		// Skip empty pages. EC2 can return an empty page with a NextToken.
+		while (!page.hasNext() && !lastPage)
+			fetchPage();
+
+		return page.hasNext();
+	}
+
+	@Override
+	public Instance next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		reservationId = pageReservationIds.next();
+		return page.next();
+	}
+
+	/**
+	 * Gets the reservation of the instance last returned by {@link #next()}.
+	 * @return The reservation id, or null before the first instance.
+	 */
+	public String getReservationId() {
+		return reservationId;
+	}
+
+	/**
+	 * Gets the number of pages fetched so far.
+	 * @return The number of DescribeInstances calls.
+	 */
+	public int getPageCount() {
+		return pages;
+	}
+
+	/**
+	 * Gets the number of reservations seen so far.
+	 * @return The number of reservations.
+	 */
+	public int getReservationCount() {
+		return reservations;
+	}
+
+	/*
+	 * Fetches the next page and flattens its reservations.
+	 */
+	private void fetchPage() {
+
+		DescribeInstancesResult result = ec2Client.describeInstances(request);
+		pages++;
+
+		List<Instance> instances = new ArrayList<Instance>();
+		List<String> reservationIds = new ArrayList<String>();
+		for (Reservation reservation : result.getReservations()) {
+			reservations++;
+			instances.addAll(reservation.getInstances());
+			for (int i = 0; i < reservation.getInstances().size(); i++)
+				reservationIds.add(reservation.getReservationId());
+		}
+		page = instances.iterator();
+		pageReservationIds = reservationIds.iterator();
+
+		String nextToken = result.getNextToken();
+		if (nextToken == null || nextToken.isEmpty()) {
+			lastPage = true;
+		}
+		request.setNextToken(nextToken);
+	}
+}
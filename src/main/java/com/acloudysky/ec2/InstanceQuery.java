@@ -0,0 +1,202 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * Builds a DescribeInstances request whose filtering is performed by the EC2 service.
+ * Each lookup is translated into the related server side filter, so the response
+ * contains only the matching instances. Criteria are combined with AND; multiple values
+ * for the same criterion are combined with OR.
+ * <pre>
+ * InstanceQuery query = new InstanceQuery()
+ *     .withKeyName("DocLabKeys_OR")
+ *     .withState("running", "pending");
+ * </pre>
+ * For the list of filters, see <a href="http://docs.aws.amazon.com/AWSEC2/latest/APIReference/API_DescribeInstances.html" target="_blank">DescribeInstances</a>.
+ */
+public class InstanceQuery {
+
+	// Instance ids. Passed as InstanceId parameters rather than as a filter.
+	private final List<String> instanceIds = new ArrayList<String>();
+
+	// Filter name and values, in insertion order.
+	private final Map<String, List<String>> filters = new LinkedHashMap<String, List<String>>();
+
+	/**
+	 * Selects the instances with the specified ids.
+	 * @param ids The instance ids, for example i-1a2b3c4d.
+	 * @return This query.
+	 */
+	public InstanceQuery withInstanceIds(String... ids) {
+		return withInstanceIds(Arrays.asList(ids));
+	}
+
+	/**
+	 * Selects the instances with the specified ids.
+	 * @param ids The instance ids.
+	 * @return This query.
+	 */
+	public InstanceQuery withInstanceIds(Collection<String> ids) {
+		instanceIds.addAll(ids);
+		return this;
+	}
+
+	/**
+	 * Selects the instances launched with the specified key pair.
+	 * @param keyNames The key pair names, for example DocLabKeys_OR.
+	 * @return This query.
+	 */
+	public InstanceQuery withKeyName(String... keyNames) {
+		return withFilter("key-name", keyNames);
+	}
+
+	/**
+	 * Selects the instances with the specified tag value.
+	 * @param key The tag key, for example Name or owner.
+	 * @param values The tag values. Wildcards (* and ?) are allowed.
+	 * @return This query.
+	 */
+	public InstanceQuery withTag(String key, String... values) {
+		return withFilter("tag:" + key, values);
+	}
+
+	/**
+	 * Selects the instances that have a tag with the specified key, whatever the value.
+	 * @param keys The tag keys.
+	 * @return This query.
+	 */
+	public InstanceQuery withTagKey(String... keys) {
+		return withFilter("tag-key", keys);
+	}
+
+	/**
+	 * Selects the instances in the specified state.
+	 * @param states The state names: pending, running, shutting-down, terminated, stopping, stopped.
+	 * @return This query.
+	 */
+	public InstanceQuery withState(String... states) {
+		return withFilter("instance-state-name", states);
+	}
+
+	/**
+	 * Selects the instances in the specified availability zone.
+	 * @param zones The availability zones, for example us-west-2c.
+	 * @return This query.
+	 */
+	public InstanceQuery withAvailabilityZone(String... zones) {
+		return withFilter("availability-zone", zones);
+	}
+
+	/**
+	 * Selects the instances of the specified type.
+	 * @param types The instance types, for example t2.micro.
+	 * @return This query.
+	 */
+	public InstanceQuery withInstanceType(String... types) {
+		return withFilter("instance-type", types);
+	}
+
+	/**
+	 * Adds a filter not covered by the other methods.
+	 * @param name The filter name, for example image-id.
+	 * @param values The filter values.
+	 * @return This query.
+	 */
+	public InstanceQuery withFilter(String name, String... values) {
+		List<String> current = filters.get(name);
+		if (current == null) {
+			current = new ArrayList<String>();
+			filters.put(name, current);
+		}
+		current.addAll(Arrays.asList(values));
+		return this;
+	}
+
+	/**
+	 * Gets the instance ids of this query.
+	 * @return The instance ids, possibly empty.
+	 */
+	public List<String> getInstanceIds() {
+		return instanceIds;
+	}
+
+	/**
+	 * Gets the filters of this query.
+	 * @return The filter values keyed by filter name.
+	 */
+	public Map<String, List<String>> getFilters() {
+		return filters;
+	}
+
+	/**
+	 * Translates the query into a DescribeInstances request.
+	 * @return The request.
+	 */
+	public DescribeInstancesRequest toRequest() {
+		DescribeInstancesRequest request = new DescribeInstancesRequest();
+
+		if (!instanceIds.isEmpty())
+			request.setInstanceIds(new ArrayList<String>(instanceIds));
+
+		List<Filter> requestFilters = new ArrayList<Filter>();
+		for (Map.Entry<String, List<String>> filter : filters.entrySet())
+			requestFilters.add(new Filter(filter.getKey(), new ArrayList<String>(filter.getValue())));
+		if (!requestFilters.isEmpty())
+			request.setFilters(requestFilters);
+
+		return request;
+	}
+
+	/**
+	 * Runs the query, returning the matching instances page by page.
+	 * @param client Authenticated EC2 client.
+	 * @return The lazy stream of matching instances.
+	 */
+	public Stream<Instance> stream(AmazonEC2 client) {
+		return InstancePager.stream(client, toRequest());
+	}
+
+	/**
+	 * Runs the query, returning the summaries of the matching instances page by page.
+	 * @param client Authenticated EC2 client.
+	 * @return The lazy stream of matching instance summaries.
+	 */
+	public Stream<InstanceSummary> summaries(AmazonEC2 client) {
+		return new InstancePager(client, toRequest(), InstancePager.DEFAULT_PAGE_SIZE).summaries();
+	}
+
+	/**
+	 * Checks whether two queries are the same: same instance ids, and same values, in the
+	 * same order, for each filter.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (this == other)
+			return true;
+		if (!(other instanceof InstanceQuery))
+			return false;
+		InstanceQuery query = (InstanceQuery) other;
+		return instanceIds.equals(query.instanceIds) && filters.equals(query.filters);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * instanceIds.hashCode() + filters.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ids=%s filters=%s", instanceIds, filters);
+	}
+}
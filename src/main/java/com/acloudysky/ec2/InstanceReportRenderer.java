@@ -0,0 +1,264 @@
+package com.acloudysky.ec2;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * Writes instance information straight to a Writer, one instance at a time, so that a
+ * report of any size is streamed without building it in memory first. The labels and
+ * separators of each format are computed once; the tags of an instance are scanned once
+ * to find both its name and its owner.
+ * <pre>
+ * InstanceReportRenderer renderer = InstanceReportRenderer.forFormat(Format.CSV);
+ * renderer.begin(writer);
+ * for (InstanceSummary instance : instances)
+ *     renderer.render(instance, writer);
+ * renderer.end(writer);
+ * writer.flush();
+ * </pre>
+ * Use a buffered writer: the renderers write many small pieces.
+ */
+public abstract class InstanceReportRenderer {
+
+	/**
+	 * Report formats.
+	 */
+	public enum Format {
+		/** Label and value lines, one block per instance. */
+		TEXT,
+		/** Comma separated values, with a header line. */
+		CSV,
+		/** One JSON object per line. */
+		JSON
+	}
+
+	// Platform specific separator.
+	protected static final String NEWLINE = System.getProperty("line.separator");
+
+	/**
+	 * Report columns, in display order.
+	 */
+	protected static final String[] COLUMNS = {
+			"name", "keyName", "instanceId", "imageId", "kernelId", "instanceType",
+			"architecture", "state", "hypervisor", "owner"
+	};
+
+	/**
+	 * Gets the renderer for the specified format. Renderers hold no state and can be shared.
+	 * @param format The report format.
+	 * @return The renderer.
+	 */
+	public static InstanceReportRenderer forFormat(Format format) {
+		switch (format) {
+			case CSV:
+				return CSV_RENDERER;
+			case JSON:
+				return JSON_RENDERER;
+			default:
+				return TEXT_RENDERER;
+		}
+	}
+
+	/**
+	 * Writes what precedes the first instance, for example a header.
+	 * @param writer The output writer.
+	 * @throws IOException If the writer fails.
+	 */
+	public void begin(Writer writer) throws IOException {
+	}
+
+	/**
+	 * Writes one instance.
+	 * @param instance The instance.
+	 * @param writer The output writer.
+	 * @throws IOException If the writer fails.
+	 */
+	public void render(InstanceSummary instance, Writer writer) throws IOException {
+		String name = null;
+		String owner = null;
+
+		// Find the name and the owner in a single pass over the tags.
+		for (int i = 0; i < instance.getTagCount(); i++) {
+			String key = instance.getTagKey(i);
+			if (name == null && "name".equalsIgnoreCase(key))
+				name = instance.getTagValue(i);
+			else if (owner == null && "owner".equalsIgnoreCase(key))
+				owner = instance.getTagValue(i);
+		}
+
+		String[] values = {
+				name, instance.getKeyName(), instance.getInstanceId(), instance.getImageId(),
+				instance.getKernelId(), instance.getInstanceType(), instance.getArchitecture(),
+				instance.getState() == InstanceSummary.State.UNKNOWN ? null : instance.getState().getStateName(),
+				instance.getHypervisor(), owner
+		};
+		renderValues(values, writer);
+	}
+
+	/**
+	 * Writes one SDK instance.
+	 * @param instance The instance.
+	 * @param writer The output writer.
+	 * @throws IOException If the writer fails.
+	 */
+	public void render(Instance instance, Writer writer) throws IOException {
+		render(InstanceSummary.from(instance), writer);
+	}
+
+	/**
+	 * Writes what follows the last instance.
+	 * @param writer The output writer.
+	 * @throws IOException If the writer fails.
+	 */
+	public void end(Writer writer) throws IOException {
+	}
+
+	/**
+	 * Writes the values of one instance, in the order of {@link #COLUMNS}.
+	 * @param values The values. Missing values are null.
+	 * @param writer The output writer.
+	 * @throws IOException If the writer fails.
+	 */
+	protected abstract void renderValues(String[] values, Writer writer) throws IOException;
+
+	/*
+	 * Text format. Same layout as the original console report.
+	 */
+	private static final InstanceReportRenderer TEXT_RENDERER = new InstanceReportRenderer() {
+
+		private final String[] labels = {
+				NEWLINE + NEWLINE + "Instance Name:         ",
+				"Key Name:              ",
+				"Instance ID:           ",
+				"Image ID:              ",
+				"Kernel ID:             ",
+				"Instance Type:         ",
+				"Instance Architecture: ",
+				"Instance State:        ",
+				"Hypervisor:            ",
+				"Owner:                 "
+		};
+
+		@Override
+		protected void renderValues(String[] values, Writer writer) throws IOException {
+			for (int i = 0; i < values.length; i++) {
+				writer.write(labels[i]);
+				writer.write(values[i] == null ? "null" : values[i]);
+				writer.write(NEWLINE);
+			}
+		}
+	};
+
+	/*
+	 * CSV format, see RFC 4180.
+	 */
+	private static final InstanceReportRenderer CSV_RENDERER = new InstanceReportRenderer() {
+
+		private final String header = String.join(",", COLUMNS) + NEWLINE;
+
+		@Override
+		public void begin(Writer writer) throws IOException {
+			writer.write(header);
+		}
+
+		@Override
+		protected void renderValues(String[] values, Writer writer) throws IOException {
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0)
+					writer.write(',');
+				writeCsv(values[i], writer);
+			}
+			writer.write(NEWLINE);
+		}
+
+		private void writeCsv(String value, Writer writer) throws IOException {
+			if (value == null)
+				return;
+			boolean quote = false;
+			for (int i = 0; i < value.length() && !quote; i++) {
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+			if (!quote) {
+				writer.write(value);
+				return;
+			}
+			writer.write('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"')
+					writer.write('"');
+				writer.write(c);
+			}
+			writer.write('"');
+		}
+	};
+
+	/*
+	 * JSON lines format.
+	 */
+	private static final InstanceReportRenderer JSON_RENDERER = new InstanceReportRenderer() {
+
+		// Precomputed "{"name":", ","keyName":", ...
+		private final String[] keys = new String[COLUMNS.length];
+		{
+			for (int i = 0; i < COLUMNS.length; i++)
+				keys[i] = (i == 0 ? "{\"" : ",\"") + COLUMNS[i] + "\":";
+		}
+
+		@Override
+		protected void renderValues(String[] values, Writer writer) throws IOException {
+			for (int i = 0; i < values.length; i++) {
+				writer.write(keys[i]);
+				writeJson(values[i], writer);
+			}
+			writer.write('}');
+			writer.write('\n');
+		}
+	};
+
+	/**
+	 * Writes a JSON string, or null.
+	 * @param value The string.
+	 * @param writer The output writer.
+	 * @throws IOException If the writer fails.
+	 */
+	public static void writeJson(String value, Writer writer) throws IOException {
+		if (value == null) {
+			writer.write("null");
+			return;
+		}
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					writer.write("\\\"");
+					break;
+				case '\\':
+					writer.write("\\\\");
+					break;
+				case '\n':
+					writer.write("\\n");
+					break;
+				case '\r':
+					writer.write("\\r");
+					break;
+				case '\t':
+					writer.write("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						writer.write("\\u00");
+						writer.write(Character.forDigit(c >> 4, 16));
+						writer.write(Character.forDigit(c & 0xf, 16));
+					}
+					else
+						writer.write(c);
+			}
+		}
+		writer.write('"');
+	}
+}
@@ -0,0 +1,349 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * Waits for instances to reach a target state, for example running after a launch or
+ * terminated after a termination. A single poller thread tracks all the instances: at each
+ * tick it describes all of them with one DescribeInstances call (per 200 ids), and completes
+ * the future of each instance as soon as it reaches its target state. The number of calls does
+ * not grow with the number of instances being waited for.
+ * <p>
+ * The polling interval adapts: it goes back to the minimum when some instance changed state
+ * and grows by half when nothing changed or EC2 throttled the call, up to the maximum. Each
+ * interval is jittered so that several clients do not poll in lockstep.
+ * </p>
+ * <p>
+ * A timeout does not wait for the next tick: each future fails at its deadline, from a
+ * timer on the poller thread.
+ * </p>
+ */
+public class InstanceStateWaiter {
+
+	/**
+	 * Default minimum polling interval, in milliseconds.
+	 */
+	public static final long DEFAULT_MIN_INTERVAL_MILLIS = 2000;
+
+	/**
+	 * Default maximum polling interval, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_INTERVAL_MILLIS = 30000;
+
+	// Maximum number of values sent in a single filter.
+	private static final int MAX_FILTER_VALUES = 200;
+
+	// States from which an instance never leaves.
+	private static final String TERMINATED = "terminated";
+
+	/*
+	 * An instance being waited for.
+	 */
+	private static class Waiter {
+		final String targetState;
+		final long deadline;
+		final CompletableFuture<Instance> future = new CompletableFuture<Instance>();
+
+		Waiter(String targetState, long deadline) {
+			this.targetState = targetState;
+			this.deadline = deadline;
+		}
+	}
+
+	// Authenticated EC2 client.
+	private final AmazonEC2 ec2Client;
+
+	// Polling interval bounds.
+	private final long minIntervalMillis;
+	private final long maxIntervalMillis;
+
+	// Waiters keyed by instance id.
+	private final ConcurrentHashMap<String, List<Waiter>> waiters = new ConcurrentHashMap<String, List<Waiter>>();
+
+	// Last state seen for each instance, to detect progress.
+	private final Map<String, String> lastStates = new HashMap<String, String>();
+
+	// Poller thread. It also runs the deadline timers, so that the waiters and the last
+	// states are only changed by this thread.
+	private final ScheduledThreadPoolExecutor poller;
+
+	private final Random random = new Random();
+
+	// Current interval and whether a tick is scheduled. Guarded by this.
+	private long intervalMillis;
+	private boolean scheduled = false;
+
+	/**
+	 * Initializes the waiter with the default polling intervals.
+	 * @param client Authenticated EC2 client.
+	 */
+	public InstanceStateWaiter(AmazonEC2 client) {
+		this(client, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Initializes the waiter.
+	 * @param client Authenticated EC2 client.
+	 * @param minInterval Minimum polling interval, in milliseconds.
+	 * @param maxInterval Maximum polling interval, in milliseconds.
+	 */
+	public InstanceStateWaiter(AmazonEC2 client, long minInterval, long maxInterval) {
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+		ec2Client = client;
+		minIntervalMillis = minInterval;
+		maxIntervalMillis = Math.max(minInterval, maxInterval);
+		intervalMillis = minIntervalMillis;
+
+		poller = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "ec2-state-waiter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// The timers of the futures completed in time do not stay queued.
+		poller.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Waits for an instance to reach the target state.
+	 * @param instanceId The instance id.
+	 * @param targetState The state name, for example running or terminated.
+	 * @param timeoutMillis Maximum time to wait, in milliseconds.
+	 * @return The future of the instance, completed when it reaches the target state. It
+	 * 		completes exceptionally with a TimeoutException, or an IllegalStateException if
+	 * 		the instance is terminated while waiting for another state.
+	 */
+	public CompletableFuture<Instance> waitFor(String instanceId, String targetState, long timeoutMillis) {
+		Waiter waiter = new Waiter(targetState, System.currentTimeMillis() + timeoutMillis);
+		waiters.compute(instanceId, (id, list) -> {
+			if (list == null)
+				list = new CopyOnWriteArrayList<Waiter>();
+			list.add(waiter);
+			return list;
+		});
+
+		try {
+			ScheduledFuture<?> timer = poller.schedule(() -> expire(instanceId, waiter), 
+					Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+			waiter.future.whenComplete((instance, error) -> timer.cancel(false));
+		}
+		catch (RejectedExecutionException e) {
+			// Shut down: like the pending futures, this one is cancelled.
+			waiters.computeIfPresent(instanceId, (id, list) -> {
+				list.remove(waiter);
+				return list.isEmpty() ? null : list;
+			});
+			waiter.future.cancel(false);
+			return waiter.future;
+		}
+		schedule(true);
+		return waiter.future;
+	}
+
+	/**
+	 * Waits for several instances to reach the same target state.
+	 * @param instanceIds The instance ids.
+	 * @param targetState The state name, for example running or terminated.
+	 * @param timeoutMillis Maximum time to wait, in milliseconds.
+	 * @return The future of each instance, keyed by instance id.
+	 */
+	public Map<String, CompletableFuture<Instance>> waitFor(Collection<String> instanceIds, String targetState, long timeoutMillis) {
+		Map<String, CompletableFuture<Instance>> futures = new LinkedHashMap<String, CompletableFuture<Instance>>();
+		for (String id : instanceIds)
+			futures.put(id, waitFor(id, targetState, timeoutMillis));
+		return futures;
+	}
+
+	/**
+	 * Gets the number of instances being waited for.
+	 * @return The number of instances.
+	 */
+	public int size() {
+		return waiters.size();
+	}
+
+	/**
+	 * Stops the poller. Pending futures are cancelled.
+	 */
+	public void shutdown() {
+		poller.shutdownNow();
+		for (List<Waiter> list : waiters.values())
+			for (Waiter waiter : list)
+				waiter.future.cancel(false);
+		waiters.clear();
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	/*
+	 * Schedules the next tick, unless one is already scheduled.
+	 */
+	private synchronized void schedule(boolean reset) {
+		if (reset)
+			intervalMillis = minIntervalMillis;
+		if (scheduled || waiters.isEmpty() || poller.isShutdown())
+			return;
+
+		// Equal jitter: half of the interval, plus a random part of the other half.
+		long delay = intervalMillis / 2 + (long) (random.nextDouble() * (intervalMillis / 2));
+		poller.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+		scheduled = true;
+	}
+
+	/*
+	 * Describes all the tracked instances and completes the waiters whose target state is reached.
+	 */
+	private void tick() {
+		synchronized (this) {
+			scheduled = false;
+		}
+
+		boolean progress = false;
+		boolean throttled = false;
+		try {
+			List<String> ids = new ArrayList<String>(waiters.keySet());
+			for (int from = 0; from < ids.size(); from += MAX_FILTER_VALUES) {
+				List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_FILTER_VALUES));
+				progress |= poll(chunk);
+			}
+		}
+		catch (AmazonServiceException e) {
+			// Throttling and service errors: poll again later.
+			throttled = true;
+			if (Main.DEBUG)
+				System.out.println("InstanceStateWaiter: " + e.getErrorCode());
+		}
+		catch (RuntimeException e) {
+			// Client errors, or an unexpected response: poll again later.
+			if (Main.DEBUG)
+				System.out.println("InstanceStateWaiter: " + e);
+		}
+		finally {
+			// Whatever the poll did, the waiters expire and the next tick is scheduled.
+			expire();
+
+			synchronized (this) {
+				if (progress && !throttled)
+					intervalMillis = minIntervalMillis;
+				else
+					intervalMillis = Math.min(maxIntervalMillis, intervalMillis + intervalMillis / 2);
+			}
+			schedule(false);
+		}
+	}
+
+	/*
+	 * Describes a chunk of instances. The instance-id filter is used, because unlike instance ids
+	 * it does not fail for instances that are not visible yet right after a launch.
+	 * @return True if some instance changed state.
+	 */
+	private boolean poll(List<String> ids) {
+		boolean progress = false;
+
+		DescribeInstancesRequest request = new InstanceQuery()
+				.withFilter("instance-id", ids.toArray(new String[ids.size()]))
+				.toRequest();
+		do {
+			DescribeInstancesResult result = ec2Client.describeInstances(request);
+			for (Reservation reservation : result.getReservations())
+				for (Instance instance : reservation.getInstances())
+					progress |= update(instance);
+			request.setNextToken(result.getNextToken());
+		} while (request.getNextToken() != null && !request.getNextToken().isEmpty());
+
+		return progress;
+	}
+
+	/*
+	 * Completes the waiters of the instance whose target state is reached.
+	 * @return True if the instance changed state since the last tick.
+	 */
+	private boolean update(Instance instance) {
+		String id = instance.getInstanceId();
+		String state = instance.getState().getName();
+
+		String previous = lastStates.put(id, state);
+		boolean changed = !state.equals(previous);
+
+		List<Waiter> list = waiters.get(id);
+		if (list == null)
+			return changed;
+
+		for (Waiter waiter : list) {
+			if (waiter.targetState.equals(state)) {
+				waiter.future.complete(instance);
+				list.remove(waiter);
+			}
+			else if (TERMINATED.equals(state)) {
+				waiter.future.completeExceptionally(new IllegalStateException(String.format(
+						"Instance %s was terminated while waiting for state %s", id, waiter.targetState)));
+				list.remove(waiter);
+			}
+		}
+		removeIfDone(id, list);
+		return changed;
+	}
+
+	/*
+	 * Fails the waiters whose deadline has passed.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, List<Waiter>> entry : waiters.entrySet()) {
+			List<Waiter> list = entry.getValue();
+			for (Waiter waiter : list)
+				if (now >= waiter.deadline)
+					timeOut(entry.getKey(), list, waiter);
+			removeIfDone(entry.getKey(), list);
+		}
+	}
+
+	/*
+	 * Fails a waiter at its deadline, unless it completed meanwhile.
+	 */
+	private void expire(String id, Waiter waiter) {
+		List<Waiter> list = waiters.get(id);
+		if (list == null || !list.contains(waiter))
+			return;
+		timeOut(id, list, waiter);
+		removeIfDone(id, list);
+	}
+
+	private void timeOut(String id, List<Waiter> list, Waiter waiter) {
+		waiter.future.completeExceptionally(new TimeoutException(String.format(
+				"Instance %s did not reach state %s in time (last state %s)",
+				id, waiter.targetState, lastStates.get(id))));
+		list.remove(waiter);
+	}
+
+	private void removeIfDone(String id, List<Waiter> list) {
+		// Atomic with respect to waitFor adding a waiter to the same list.
+		waiters.computeIfPresent(id, (key, current) -> current == list && list.isEmpty() ? null : current);
+		if (!waiters.containsKey(id))
+			lastStates.remove(id);
+	}
+}
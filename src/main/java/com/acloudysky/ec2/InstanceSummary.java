@@ -0,0 +1,378 @@
+package com.acloudysky.ec2;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * The attributes of an instance the application uses, without the rest of the SDK object
+ * graph (block devices, network interfaces, security groups, product codes...). The values
+ * shared by many instances, such as instance types, zones, key pairs and tag keys, are
+ * interned, the state is an enum and the tags are a flat key, value array, so that a large
+ * inventory costs a small fraction of the SDK instances it was read from.
+ * <pre>
+ * InstanceSummary summary = InstanceSummary.from(instance, reservation.getReservationId());
+ * if (summary.getState() == InstanceSummary.State.RUNNING)
+ *     System.out.println(summary.getName());
+ * </pre>
+ * Summaries are immutable.
+ */
+public final class InstanceSummary {
+
+	/**
+	 * Instance states, with their EC2 codes.
+	 */
+	public enum State {
+		PENDING(0, "pending"),
+		RUNNING(16, "running"),
+		SHUTTING_DOWN(32, "shutting-down"),
+		TERMINATED(48, "terminated"),
+		STOPPING(64, "stopping"),
+		STOPPED(80, "stopped"),
+		/** A state this application does not know, or no state. */
+		UNKNOWN(-1, "unknown");
+
+		private final int code;
+		private final String stateName;
+
+		State(int code, String stateName) {
+			this.code = code;
+			this.stateName = stateName;
+		}
+
+		/**
+		 * Gets the EC2 state code.
+		 * @return The code, -1 for UNKNOWN.
+		 */
+		public int getCode() {
+			return code;
+		}
+
+		/**
+		 * Gets the EC2 state name.
+		 * @return The name, for example shutting-down.
+		 */
+		public String getStateName() {
+			return stateName;
+		}
+
+		/**
+		 * Checks whether an instance in this state is expected to change soon.
+		 * @return True for pending, stopping and shutting-down.
+		 */
+		public boolean isTransitional() {
+			return this == PENDING || this == STOPPING || this == SHUTTING_DOWN;
+		}
+
+		/**
+		 * Gets the state with the specified EC2 name.
+		 * @param stateName The state name, for example running.
+		 * @return The state, UNKNOWN if the name is null or unknown.
+		 */
+		public static State fromName(String stateName) {
+			for (State state : values())
+				if (state.stateName.equals(stateName))
+					return state;
+			return UNKNOWN;
+		}
+	}
+
+	private static final String[] NO_TAGS = new String[0];
+
+	// Pool of the repeated values.
+	private static final Map<String, String> INTERNED = new ConcurrentHashMap<String, String>();
+
+	private final String instanceId;
+	private final String reservationId;
+	private final String imageId;
+	private final String kernelId;
+	private final String instanceType;
+	private final String keyName;
+	private final String architecture;
+	private final String hypervisor;
+	private final State state;
+	private final String availabilityZone;
+	private final String subnetId;
+	private final long launchTime;
+
+	// Tag keys at even indexes, values at odd indexes.
+	private final String[] tags;
+
+	/**
+	 * Initializes a summary. The repeated values are interned.
+	 * @param instanceId The instance id.
+	 * @param reservationId The reservation id, or null if unknown.
+	 * @param imageId The image id.
+	 * @param kernelId The kernel id.
+	 * @param instanceType The instance type, for example t2.micro.
+	 * @param keyName The key pair name.
+	 * @param architecture The architecture, for example x86_64.
+	 * @param hypervisor The hypervisor, for example xen.
+	 * @param state The state.
+	 * @param availabilityZone The availability zone.
+	 * @param subnetId The subnet id.
+	 * @param launchTime The launch time, in milliseconds since the epoch, or -1 if unknown.
+	 * @param tags The tag keys and values, alternated. The array is kept, not copied.
+	 */
+	public InstanceSummary(String instanceId, String reservationId, String imageId, String kernelId,
+			String instanceType, String keyName, String architecture, String hypervisor, State state,
+			String availabilityZone, String subnetId, long launchTime, String[] tags) {
+		this.instanceId = instanceId;
+		this.reservationId = reservationId;
+		this.imageId = intern(imageId);
+		this.kernelId = intern(kernelId);
+		this.instanceType = intern(instanceType);
+		this.keyName = intern(keyName);
+		this.architecture = intern(architecture);
+		this.hypervisor = intern(hypervisor);
+		this.state = state == null ? State.UNKNOWN : state;
+		this.availabilityZone = intern(availabilityZone);
+		this.subnetId = intern(subnetId);
+		this.launchTime = launchTime;
+		if (tags == null || tags.length == 0)
+			this.tags = NO_TAGS;
+		else {
+			for (int i = 0; i < tags.length; i += 2)
+				tags[i] = intern(tags[i]);
+			this.tags = tags;
+		}
+	}
+
+	/**
+	 * Projects an SDK instance whose reservation is unknown.
+	 * @param instance The instance.
+	 * @return The summary.
+	 */
+	public static InstanceSummary from(Instance instance) {
+		return from(instance, null);
+	}
+
+	/**
+	 * Projects an SDK instance.
+	 * @param instance The instance.
+	 * @param reservationId The id of its reservation, or null if unknown.
+	 * @return The summary.
+	 */
+	public static InstanceSummary from(Instance instance, String reservationId) {
+		String[] tags = NO_TAGS;
+		List<Tag> instanceTags = instance.getTags();
+		if (instanceTags != null && !instanceTags.isEmpty()) {
+			tags = new String[instanceTags.size() * 2];
+			int i = 0;
+			for (Tag tag : instanceTags) {
+				tags[i++] = tag.getKey();
+				tags[i++] = tag.getValue();
+			}
+		}
+		return new InstanceSummary(instance.getInstanceId(), reservationId, instance.getImageId(),
+				instance.getKernelId(), instance.getInstanceType(), instance.getKeyName(),
+				instance.getArchitecture(), instance.getHypervisor(),
+				instance.getState() == null ? State.UNKNOWN : State.fromName(instance.getState().getName()),
+				instance.getPlacement() == null ? null : instance.getPlacement().getAvailabilityZone(),
+				instance.getSubnetId(), instance.getLaunchTime() == null ? -1 : instance.getLaunchTime().getTime(),
+				tags);
+	}
+
+	/**
+	 * Gets the instance id.
+	 * @return The instance id.
+	 */
+	public String getInstanceId() {
+		return instanceId;
+	}
+
+	/**
+	 * Gets the reservation id.
+	 * @return The reservation id, or null if unknown.
+	 */
+	public String getReservationId() {
+		return reservationId;
+	}
+
+	/**
+	 * Gets the image id.
+	 * @return The image id.
+	 */
+	public String getImageId() {
+		return imageId;
+	}
+
+	/**
+	 * Gets the kernel id.
+	 * @return The kernel id, or null.
+	 */
+	public String getKernelId() {
+		return kernelId;
+	}
+
+	/**
+	 * Gets the instance type.
+	 * @return The instance type, for example t2.micro.
+	 */
+	public String getInstanceType() {
+		return instanceType;
+	}
+
+	/**
+	 * Gets the key pair name.
+	 * @return The key pair name, or null.
+	 */
+	public String getKeyName() {
+		return keyName;
+	}
+
+	/**
+	 * Gets the architecture.
+	 * @return The architecture, for example x86_64.
+	 */
+	public String getArchitecture() {
+		return architecture;
+	}
+
+	/**
+	 * Gets the hypervisor.
+	 * @return The hypervisor, for example xen.
+	 */
+	public String getHypervisor() {
+		return hypervisor;
+	}
+
+	/**
+	 * Gets the state.
+	 * @return The state, UNKNOWN if not known.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Gets the availability zone.
+	 * @return The availability zone, or null.
+	 */
+	public String getAvailabilityZone() {
+		return availabilityZone;
+	}
+
+	/**
+	 * Gets the subnet id.
+	 * @return The subnet id, or null.
+	 */
+	public String getSubnetId() {
+		return subnetId;
+	}
+
+	/**
+	 * Gets the launch time.
+	 * @return The launch time, in milliseconds since the epoch, or -1 if unknown.
+	 */
+	public long getLaunchTime() {
+		return launchTime;
+	}
+
+	/**
+	 * Gets the number of tags.
+	 * @return The number of tags.
+	 */
+	public int getTagCount() {
+		return tags.length / 2;
+	}
+
+	/**
+	 * Gets the key of a tag.
+	 * @param index The tag index, from 0 to getTagCount() - 1.
+	 * @return The key.
+	 */
+	public String getTagKey(int index) {
+		return tags[index * 2];
+	}
+
+	/**
+	 * Gets the value of a tag.
+	 * @param index The tag index, from 0 to getTagCount() - 1.
+	 * @return The value.
+	 */
+	public String getTagValue(int index) {
+		return tags[index * 2 + 1];
+	}
+
+	/**
+	 * Gets the value of the first tag with the specified key, ignoring case.
+	 * @param key The tag key, for example owner.
+	 * @return The value, or null if the instance has no such tag.
+	 */
+	public String getTag(String key) {
+		for (int i = 0; i < tags.length; i += 2)
+			if (tags[i].equalsIgnoreCase(key))
+				return tags[i + 1];
+		return null;
+	}
+
+	/**
+	 * Gets the Name tag.
+	 * @return The instance name, or null.
+	 */
+	public String getName() {
+		return getTag("name");
+	}
+
+	/**
+	 * Gets the owner tag.
+	 * @return The owner, or null.
+	 */
+	public String getOwner() {
+		return getTag("owner");
+	}
+
+	/**
+	 * Gets the tags, sorted by key. Builds a new map at each call.
+	 * @return The tags.
+	 */
+	public Map<String, String> getTags() {
+		Map<String, String> map = new TreeMap<String, String>();
+		for (int i = 0; i < tags.length; i += 2)
+			map.put(tags[i], tags[i + 1]);
+		return map;
+	}
+
+	/**
+	 * Checks whether two summaries have the same tags, in any order.
+	 * @param other The other summary.
+	 * @return True if the tags are the same.
+	 */
+	public boolean hasSameTags(InstanceSummary other) {
+		if (tags.length != other.tags.length)
+			return false;
+		for (int i = 0; i < tags.length; i += 2)
+			if (!Objects.equals(tags[i + 1], other.getTagExact(tags[i])))
+				return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%s, %s)", instanceId, state.getStateName(), instanceType);
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private String getTagExact(String key) {
+		for (int i = 0; i < tags.length; i += 2)
+			if (tags[i].equals(key))
+				return tags[i + 1];
+		return null;
+	}
+
+	private static String intern(String value) {
+		if (value == null)
+			return null;
+		String interned = INTERNED.putIfAbsent(value, value);
+		return interned == null ? value : interned;
+	}
+}
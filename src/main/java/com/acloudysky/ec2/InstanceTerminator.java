@@ -0,0 +1,280 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+
+/**
+ * Terminates many instances at once. The instance ids are split in chunks of at most
+ * {@link #MAX_IDS_PER_CALL} ids, and the chunks are sent concurrently by a bounded
+ * number of threads. The outcome is reported for each instance.
+ * <p>
+ * <b>Note</b>. EC2 rejects the whole request when one of its ids does not exist. In that case
+ * the chunk is split in halves and retried, until the unknown ids are isolated.
+ * </p>
+ * For more information, see <a href="http://docs.aws.amazon.com/AWSEC2/latest/APIReference/API_TerminateInstances.html" target="_blank">TerminateInstances</a>.
+ */
+public class InstanceTerminator {
+
+	/**
+	 * Maximum number of instance ids in a single TerminateInstances call.
+	 */
+	public static final int MAX_IDS_PER_CALL = 1000;
+
+	/**
+	 * Default number of concurrent TerminateInstances calls.
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	// Instance state codes.
+	private static final int SHUTTING_DOWN = 32;
+	private static final int TERMINATED = 48;
+
+	/**
+	 * Outcome of the termination of an instance.
+	 */
+	public enum Status {
+		/** The instance is shutting down (32). */
+		SHUTTING_DOWN,
+		/** The instance is terminated (48). */
+		TERMINATED,
+		/** The instance was returned in a state other than shutting down or terminated. */
+		UNEXPECTED_STATE,
+		/** The instance does not exist, or it was not returned by the call. */
+		NOT_FOUND,
+		/** The call failed. */
+		FAILED
+	}
+
+	/**
+	 * Result of the termination of one instance.
+	 */
+	public static class Result {
+
+		private final String instanceId;
+		private final Status status;
+		private final Integer stateCode;
+		private final String message;
+
+		Result(String instanceId, Status status, Integer stateCode, String message) {
+			this.instanceId = instanceId;
+			this.status = status;
+			this.stateCode = stateCode;
+			this.message = message;
+		}
+
+		public String getInstanceId() {
+			return instanceId;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		/**
+		 * Gets the current state code returned by EC2.
+		 * @return The state code, or null if the instance was not returned.
+		 */
+		public Integer getStateCode() {
+			return stateCode;
+		}
+
+		/**
+		 * Gets the error message, if any.
+		 * @return The message, or null.
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * Tells whether the instance is shutting down or terminated.
+		 * @return True if the termination succeeded.
+		 */
+		public boolean isTerminated() {
+			return status == Status.SHUTTING_DOWN || status == Status.TERMINATED;
+		}
+
+		@Override
+		public String toString() {
+			StringBuffer buffer = new StringBuffer();
+			buffer.append(String.format("%-20s %-16s", instanceId, status));
+			if (stateCode != null)
+				buffer.append(String.format(" state %d", stateCode));
+			if (message != null)
+				buffer.append(String.format(" %s", message));
+			return buffer.toString();
+		}
+	}
+
+	// Authenticated EC2 client.
+	private final AmazonEC2 ec2Client;
+
+	// Maximum number of concurrent calls.
+	private final int parallelism;
+
+	/**
+	 * Initializes the terminator.
+	 * @param client Authenticated EC2 client.
+	 * @param maxConcurrentCalls Maximum number of concurrent TerminateInstances calls.
+	 */
+	public InstanceTerminator(AmazonEC2 client, int maxConcurrentCalls) {
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+		ec2Client = client;
+		parallelism = Math.max(1, maxConcurrentCalls);
+	}
+
+	/**
+	 * Terminates the instances selected by the query.
+	 * @param query The query selecting the instances.
+	 * @return The result for each instance, in the order the instances were described.
+	 */
+	public Map<String, Result> terminate(InstanceQuery query) {
+		List<String> ids = query.stream(ec2Client)
+				.map(Instance::getInstanceId)
+				.collect(Collectors.toList());
+		return terminate(ids);
+	}
+
+	/**
+	 * Terminates the specified instances.
+	 * @param instanceIds The ids of the instances. Duplicates are ignored.
+	 * @return The result for each instance, in the order of the ids.
+	 */
+	public Map<String, Result> terminate(Collection<String> instanceIds) {
+
+		List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(instanceIds));
+		Map<String, Result> results = new ConcurrentHashMap<String, Result>();
+		if (ids.isEmpty())
+			return new LinkedHashMap<String, Result>();
+
+		// Split the ids in maximal chunks.
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		for (int from = 0; from < ids.size(); from += MAX_IDS_PER_CALL)
+			chunks.add(ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_CALL)));
+
+		if (chunks.size() == 1) {
+			terminateChunk(chunks.get(0), results);
+		}
+		else {
+			// Send the chunks concurrently.
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, chunks.size()));
+			try {
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (List<String> chunk : chunks)
+					tasks.add(() -> {
+						terminateChunk(chunk, results);
+						return null;
+					});
+				for (Future<Void> future : executor.invokeAll(tasks))
+					future.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				// terminateChunk records its failures; this is unexpected.
+				System.out.println(String.format("%s", e.getCause().getMessage()));
+			}
+			finally {
+				executor.shutdownNow();
+			}
+		}
+
+		// Report every requested id, in order.
+		Map<String, Result> ordered = new LinkedHashMap<String, Result>();
+		for (String id : ids) {
+			Result result = results.get(id);
+			if (result == null)
+				result = new Result(id, Status.FAILED, null, "Not processed");
+			ordered.put(id, result);
+		}
+		return ordered;
+	}
+
+	/*
+	 * Terminates a chunk of instances and records the result of each one.
+	 */
+	private void terminateChunk(List<String> chunk, Map<String, Result> results) {
+
+		TerminateInstancesResult result;
+		try {
+			TerminateInstancesRequest terminateRequest = new TerminateInstancesRequest()
+					.withInstanceIds(new ArrayList<String>(chunk));
+			result = ec2Client.terminateInstances(terminateRequest);
+		}
+		catch (AmazonServiceException e) {
+			String errorCode = e.getErrorCode() == null ? "" : e.getErrorCode();
+			if (errorCode.startsWith("InvalidInstanceID")) {
+				if (chunk.size() == 1) {
+					Status status = "InvalidInstanceID.NotFound".equals(errorCode) ? Status.NOT_FOUND : Status.FAILED;
+					results.put(chunk.get(0), new Result(chunk.get(0), status, null, errorCode));
+					return;
+				}
+				// Isolate the invalid ids.
+				int half = chunk.size() / 2;
+				terminateChunk(chunk.subList(0, half), results);
+				terminateChunk(chunk.subList(half, chunk.size()), results);
+				return;
+			}
+			recordFailure(chunk, results, String.format("%s: %s", errorCode, e.getErrorMessage()));
+			return;
+		}
+		catch (AmazonClientException e) {
+			recordFailure(chunk, results, e.getMessage());
+			return;
+		}
+
+		// Check the state of each instance.
+		for (InstanceStateChange stateChange : result.getTerminatingInstances()) {
+			String id = stateChange.getInstanceId();
+			InstanceState currentState = stateChange.getCurrentState();
+			int code = currentState.getCode();
+
+			// The high byte of the code is reserved for internal use.
+			switch (code & 0xff) {
+				case SHUTTING_DOWN:
+					results.put(id, new Result(id, Status.SHUTTING_DOWN, code, null));
+					break;
+				case TERMINATED:
+					results.put(id, new Result(id, Status.TERMINATED, code, null));
+					break;
+				default:
+					results.put(id, new Result(id, Status.UNEXPECTED_STATE, code, String.format(
+							"Machine state should be terminated (48) or shutting down (32) but was %s instead", code)));
+			}
+		}
+
+		// Ids missing from the response.
+		for (String id : chunk)
+			if (!results.containsKey(id))
+				results.put(id, new Result(id, Status.NOT_FOUND, null,
+						"Matching terminated instance was not found for instance"));
+	}
+
+	private static void recordFailure(List<String> chunk, Map<String, Result> results, String message) {
+		for (String id : chunk)
+			results.put(id, new Result(id, Status.FAILED, null, message));
+	}
+}
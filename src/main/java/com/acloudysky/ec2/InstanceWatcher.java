@@ -0,0 +1,162 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Follows a set of instances and reports only what changed between two polls: instances
+ * added or removed, state transitions and tag changes. The summaries of the previous poll
+ * are kept, keyed by instance id, and the output grows with the changes, not with the
+ * fleet.
+ * <pre>
+ * InstanceWatcher watcher = new InstanceWatcher(() -&gt; inventory.getByKeyName("DocLabKeys_OR"));
+ * watcher.poll();    // Baseline, no events.
+ * for (InstanceWatcher.Event event : watcher.poll())
+ *     System.out.println(event);
+ * </pre>
+ * The source decides the API volume. An {@link InstanceQuery} source describes the selected
+ * instances at each poll. Reading the {@link InstanceInventory} makes no call per poll, but
+ * each poll is a lookup: it keeps the inventory's background refresh active, which reloads
+ * the whole fleet about once per TTL and the instances changing state in between, and,
+ * without the background refresh, a poll after the TTL reloads the whole fleet itself. The
+ * inventory source thus costs one full DescribeInstances pass per TTL, whatever the poll
+ * interval and however few instances are watched; it is the cheaper source when the
+ * watched instances are a large part of the fleet.
+ */
+public class InstanceWatcher {
+
+	/**
+	 * Default interval between polls, in milliseconds.
+	 */
+	public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+	/**
+	 * Kinds of change.
+	 */
+	public enum Type {
+		ADDED, REMOVED, STATE, TAGS
+	}
+
+	/**
+	 * A change of one instance between two polls.
+	 */
+	public static class Event {
+		private final Type type;
+		private final String instanceId;
+		private final String before;
+		private final String after;
+
+		Event(Type type, String instanceId, String before, String after) {
+			this.type = type;
+			this.instanceId = instanceId;
+			this.before = before;
+			this.after = after;
+		}
+
+		/**
+		 * Gets the kind of change.
+		 * @return The type.
+		 */
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Gets the id of the changed instance.
+		 * @return The instance id.
+		 */
+		public String getInstanceId() {
+			return instanceId;
+		}
+
+		/**
+		 * Gets the state or the tags before the change.
+		 * @return The previous value, null for an added instance.
+		 */
+		public String getBefore() {
+			return before;
+		}
+
+		/**
+		 * Gets the state or the tags after the change.
+		 * @return The new value, null for a removed instance.
+		 */
+		public String getAfter() {
+			return after;
+		}
+
+		@Override
+		public String toString() {
+			switch (type) {
+				case ADDED:
+					return String.format("+ %s %s", instanceId, after);
+				case REMOVED:
+					return String.format("- %s (was %s)", instanceId, before);
+				case STATE:
+					return String.format("~ %s state %s -> %s", instanceId, before, after);
+				default:
+					return String.format("~ %s tags %s -> %s", instanceId, before, after);
+			}
+		}
+	}
+
+	// Instances to watch.
+	private final Supplier<? extends Collection<InstanceSummary>> source;
+
+	// Instances seen by the previous poll, null before the first one.
+	private Map<String, InstanceSummary> previous = null;
+
+	/**
+	 * Initializes the watcher. Nothing is read until the first poll.
+	 * @param source Supplies the current instances at each poll.
+	 */
+	public InstanceWatcher(Supplier<? extends Collection<InstanceSummary>> source) {
+		this.source = source;
+	}
+
+	/**
+	 * Reads the instances and compares them with the previous poll. The first poll only
+	 * records the instances.
+	 * @return The changes, in the order of the source. Removed instances come last.
+	 */
+	public synchronized List<Event> poll() {
+		Map<String, InstanceSummary> current = new LinkedHashMap<String, InstanceSummary>();
+		for (InstanceSummary instance : source.get())
+			current.put(instance.getInstanceId(), instance);
+
+		List<Event> events = new ArrayList<Event>();
+		if (previous != null) {
+			for (Map.Entry<String, InstanceSummary> entry : current.entrySet()) {
+				String id = entry.getKey();
+				InstanceSummary now = entry.getValue();
+				InstanceSummary before = previous.remove(id);
+				if (before == null)
+					events.add(new Event(Type.ADDED, id, null, now.getState().getStateName()));
+				else {
+					if (before.getState() != now.getState())
+						events.add(new Event(Type.STATE, id, before.getState().getStateName(), 
+								now.getState().getStateName()));
+					if (!before.hasSameTags(now))
+						events.add(new Event(Type.TAGS, id, before.getTags().toString(), now.getTags().toString()));
+				}
+			}
+			// What is left was not returned by this poll.
+			for (Map.Entry<String, InstanceSummary> entry : previous.entrySet())
+				events.add(new Event(Type.REMOVED, entry.getKey(), entry.getValue().getState().getStateName(), null));
+		}
+		previous = current;
+		return events;
+	}
+
+	/**
+	 * Gets the number of instances seen by the last poll.
+	 * @return The number of instances.
+	 */
+	public synchronized int size() {
+		return previous == null ? 0 : previous.size();
+	}
+}
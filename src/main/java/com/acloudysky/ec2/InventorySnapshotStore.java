@@ -0,0 +1,274 @@
+package com.acloudysky.ec2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the instance inventory of one region in a binary file, so that the next run can
+ * answer lookups before its first DescribeInstances call completes. The file is written
+ * after each full load of the inventory, and read in one pass at startup. Neither is
+ * memory mapped: a mapping stays open until the buffer is garbage collected, which keeps
+ * the file locked on Windows and makes the move over the previous snapshot fail.
+ * <p>
+ * Only the instance attributes used by the application are kept. Strings are stored once
+ * in a dictionary and referenced by index, since image ids, instance types, zones, key
+ * names and tag keys repeat across the fleet. Layout, big endian:
+ * </p>
+ * <pre>
+ * int magic, int version, long saved-at, int region-length, byte[] region
+ * int string-count, { int length, byte[] utf-8 }...
+ * int instance-count, { int reservation, int id, int image, int type, int key, int kernel,
+ *     int architecture, int hypervisor, int state, int state-code, int zone, int subnet,
+ *     long launch-time, int tag-count, { int key, int value }... }...
+ * </pre>
+ * String indexes are -1 for null; the launch time is -1 when unknown. A file with another
+ * magic number, version or region is ignored, as is a truncated file. The file is written
+ * next to its final name then moved over it, so a reader never sees half a snapshot.
+ */
+public class InventorySnapshotStore {
+
+	/**
+	 * Version of the file layout. Files of other versions are ignored.
+	 */
+	public static final int VERSION = 1;
+
+	// "EC2I".
+	private static final int MAGIC = 0x45433249;
+
+	// Snapshot file.
+	private final Path file;
+
+	// Region of the snapshot.
+	private final String region;
+
+	/**
+	 * Initializes the store of a region.
+	 * @param directory The directory of the snapshot files.
+	 * @param region The region, for example us-west-2.
+	 */
+	public InventorySnapshotStore(Path directory, String region) {
+		this.file = directory.resolve("inventory-" + region + ".snapshot");
+		this.region = region;
+	}
+
+	/**
+	 * Creates the store of a region in the directory set by the system property
+	 * ec2.inventory.snapshot.dir, by default .aws-ec2-client in the user's home directory.
+	 * Snapshots are disabled when the property is set to "none", and by default when the
+	 * EC2 endpoint is overridden (-Dec2.endpoint), since that fleet is not the region's.
+	 * @param region The region, for example us-west-2.
+	 * @return The store, or null if snapshots are disabled.
+	 */
+	public static InventorySnapshotStore fromSystemProperties(String region) {
+		String directory = System.getProperty("ec2.inventory.snapshot.dir");
+		if (directory == null) {
+			if (System.getProperty("ec2.endpoint") != null)
+				return null;
+			directory = Paths.get(System.getProperty("user.home"), ".aws-ec2-client").toString();
+		}
+		if (directory.isEmpty() || "none".equals(directory))
+			return null;
+		return new InventorySnapshotStore(Paths.get(directory), region);
+	}
+
+	/**
+	 * Gets the snapshot file.
+	 * @return The file path.
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes the instances, replacing the previous snapshot.
+	 * @param instances The instances.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void save(Collection<InstanceSummary> instances) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+
+		// Instances first, to collect the strings.
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(instances.size() * 64 + 16);
+		DataOutputStream records = new DataOutputStream(encoded);
+		records.writeInt(instances.size());
+		for (InstanceSummary instance : instances) {
+			records.writeInt(index(strings, instance.getReservationId()));
+			records.writeInt(index(strings, instance.getInstanceId()));
+			records.writeInt(index(strings, instance.getImageId()));
+			records.writeInt(index(strings, instance.getInstanceType()));
+			records.writeInt(index(strings, instance.getKeyName()));
+			records.writeInt(index(strings, instance.getKernelId()));
+			records.writeInt(index(strings, instance.getArchitecture()));
+			records.writeInt(index(strings, instance.getHypervisor()));
+			records.writeInt(index(strings, instance.getState().getStateName()));
+			records.writeInt(instance.getState().getCode());
+			records.writeInt(index(strings, instance.getAvailabilityZone()));
+			records.writeInt(index(strings, instance.getSubnetId()));
+			records.writeLong(instance.getLaunchTime());
+			records.writeInt(instance.getTagCount());
+			for (int t = 0; t < instance.getTagCount(); t++) {
+				records.writeInt(index(strings, instance.getTagKey(t)));
+				records.writeInt(index(strings, instance.getTagValue(t)));
+			}
+		}
+		records.flush();
+
+		// Then the header and the dictionary.
+		byte[] regionBytes = region.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(strings.size() * 16 + 64);
+		DataOutputStream head = new DataOutputStream(header);
+		head.writeInt(MAGIC);
+		head.writeInt(VERSION);
+		head.writeLong(System.currentTimeMillis());
+		head.writeInt(regionBytes.length);
+		head.write(regionBytes);
+		head.writeInt(strings.size());
+		for (String value : strings.keySet()) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			head.writeInt(bytes.length);
+			head.write(bytes);
+		}
+		head.flush();
+
+		Files.createDirectories(file.getParent());
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			write(channel, ByteBuffer.wrap(header.toByteArray()));
+			write(channel, ByteBuffer.wrap(encoded.toByteArray()));
+			channel.force(true);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads the snapshot, if any.
+	 * @param consumer Receives each instance.
+	 * @return The time the snapshot was written, in milliseconds since the epoch, or -1 if
+	 * 		there is no usable snapshot. Nothing is passed to the consumer in that case.
+	 * @throws IOException If the file exists but cannot be read.
+	 */
+	public long load(Consumer<InstanceSummary> consumer) throws IOException {
+		ByteBuffer buffer;
+		try {
+			buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		}
+		catch (NoSuchFileException e) {
+			return -1;
+		}
+
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return -1;
+			long savedAt = buffer.getLong();
+			if (!region.equals(readString(buffer)))
+				return -1;
+
+			String[] strings = new String[count(buffer, 4)];
+			for (int i = 0; i < strings.length; i++)
+				strings[i] = readString(buffer);
+
+			// Decode everything before passing anything, so that a truncated file passes nothing.
+			int count = count(buffer, 60);
+			List<InstanceSummary> instances = new ArrayList<InstanceSummary>(count);
+			for (int i = 0; i < count; i++) {
+				String reservationId = string(strings, buffer.getInt());
+				String instanceId = string(strings, buffer.getInt());
+				String imageId = string(strings, buffer.getInt());
+				String instanceType = string(strings, buffer.getInt());
+				String keyName = string(strings, buffer.getInt());
+				String kernelId = string(strings, buffer.getInt());
+				String architecture = string(strings, buffer.getInt());
+				String hypervisor = string(strings, buffer.getInt());
+				InstanceSummary.State state = InstanceSummary.State.fromName(string(strings, buffer.getInt()));
+				buffer.getInt(); // State code, implied by the name.
+				String zone = string(strings, buffer.getInt());
+				String subnetId = string(strings, buffer.getInt());
+				long launchTime = buffer.getLong();
+				String[] tags = new String[count(buffer, 8) * 2];
+				for (int t = 0; t < tags.length; t++)
+					tags[t] = string(strings, buffer.getInt());
+				instances.add(new InstanceSummary(instanceId, reservationId, imageId, kernelId, instanceType,
+						keyName, architecture, hypervisor, state, zone, subnetId, launchTime, tags));
+			}
+
+			for (InstanceSummary instance : instances)
+				consumer.accept(instance);
+			return savedAt;
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+				| NegativeArraySizeException e) {
+			// Truncated or corrupted.
+			return -1;
+		}
+	}
+
+	/**
+	 * Deletes the snapshot, if any.
+	 * @throws IOException If the file cannot be deleted.
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private static int index(Map<String, Integer> strings, String value) {
+		if (value == null)
+			return -1;
+		Integer index = strings.get(value);
+		if (index == null) {
+			index = strings.size();
+			strings.put(value, index);
+		}
+		return index;
+	}
+
+	private static String string(String[] strings, int index) {
+		return index < 0 ? null : strings[index];
+	}
+
+	/*
+	 * Writes the whole buffer: a channel may write part of it.
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/*
+	 * Reads a count of entries of at least the given size, checked against the bytes left,
+	 * so that a corrupted count fails instead of allocating a huge array.
+	 */
+	private static int count(ByteBuffer buffer, int minBytes) {
+		int count = buffer.getInt();
+		if (count < 0 || (long) count * minBytes > buffer.remaining())
+			throw new BufferUnderflowException();
+		return count;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[count(buffer, 1)];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
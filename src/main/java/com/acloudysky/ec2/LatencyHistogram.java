@@ -0,0 +1,119 @@
+package com.acloudysky.ec2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of call latencies, in microseconds, recorded without locks. Values below 32
+ * have a bucket each; above, each power of two is split in 16 buckets, so a percentile is
+ * reported within about 6% of the recorded value whatever its magnitude, in a fixed array of
+ * about 600 counters. Recording is one atomic increment, plus updates of the sum and the
+ * maximum.
+ * <pre>
+ * long start = System.nanoTime();
+ * client.describeInstances();
+ * histogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+ * long p99 = histogram.getValueAtPercentile(99);
+ * </pre>
+ * Reading while other threads record gives a consistent enough picture for monitoring, but
+ * not an exact snapshot: a value may be counted in its bucket and not yet in the sum.
+ */
+public class LatencyHistogram {
+
+	// Values below this have their own bucket.
+	private static final int LINEAR_BUCKETS = 32;
+
+	// Buckets per power of two above LINEAR_BUCKETS.
+	private static final int SUB_BUCKETS = 16;
+
+	// Largest value kept as is, about 12 days in microseconds. Larger values are clamped.
+	private static final long MAX_VALUE = (1L << 40) - 1;
+
+	private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value.
+	 * @param micros The latency, in microseconds. Negative values are recorded as 0.
+	 */
+	public void record(long micros) {
+		long value = Math.min(Math.max(0, micros), MAX_VALUE);
+		buckets.incrementAndGet(bucketIndex(value));
+		sum.addAndGet(value);
+		max.accumulateAndGet(value, Math::max);
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 * @return The count.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the largest recorded value.
+	 * @return The maximum, in microseconds, 0 if nothing was recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the mean of the recorded values.
+	 * @return The mean, in microseconds, 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Gets the value below which a percentage of the recorded values fall.
+	 * @param percentile The percentage, for example 99.
+	 * @return The upper bound of the bucket holding the percentile, at most the maximum, in
+	 * 		microseconds. 0 if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			total += buckets.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min(bucketUpperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private static int bucketIndex(long value) {
+		if (value < LINEAR_BUCKETS)
+			return (int) value;
+		// Keep the 5 most significant bits: 16 to 31 once shifted.
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+		int sub = (int) (value >>> shift);
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+	}
+
+	private static long bucketUpperBound(int index) {
+		if (index < LINEAR_BUCKETS)
+			return index;
+		int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,479 @@
+package com.acloudysky.ec2;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Subnet;
+
+/**
+ * Launches a large number of instances in several RunInstances calls made in parallel. The
+ * count is spread evenly over the targets (availability zones, with or without a subnet),
+ * then each target's share is split in calls of at most {@link #DEFAULT_MAX_PER_CALL}
+ * instances. By default each call launches all its instances or none (MinCount is the
+ * count of the call), and a zone out of capacity (InsufficientInstanceCapacity) fails the
+ * call. Both are opt-in:
+ * <ul>
+ * <li>{@link #setPartialLaunch(boolean)} lets a call launch what the zone can (MinCount 1).</li>
+ * <li>The fallback of the constructor moves what a zone cannot launch to the next zone that
+ * still has capacity: the other targets first, then the other available zones of the region
+ * for targets without a subnet, or the subnets of the same VPC in the other zones for
+ * targets with a subnet. Without such a subnet, the rest of the call fails.</li>
+ * </ul>
+ * <pre>
+ * LaunchPlanner planner = new LaunchPlanner(client, LaunchPlanner.getAvailableZones(client), true);
+ * LaunchPlanner.Result result = planner.launch(template, 500, instances -&gt; tag(instances));
+ * </pre>
+ * The launched instances are passed to the consumer as each call returns, on the thread of
+ * the call, so that tagging and waiting start while the other calls are still running. The
+ * consumer must be thread safe. Each call has its own client token, so a retried call does
+ * not launch its instances twice.
+ */
+public class LaunchPlanner {
+
+	/**
+	 * Default maximum number of instances launched by one call.
+	 */
+	public static final int DEFAULT_MAX_PER_CALL = 50;
+
+	/**
+	 * Default number of calls made at the same time.
+	 */
+	public static final int DEFAULT_PARALLELISM = 8;
+
+	// Error codes meaning that the zone cannot launch the instances now.
+	private static final Set<String> CAPACITY_CODES = new HashSet<String>(Arrays.asList(
+			"InsufficientInstanceCapacity", "InsufficientHostCapacity", "InsufficientCapacity"));
+
+	/**
+	 * Where instances are launched: an availability zone and optionally a subnet of that zone.
+	 */
+	public static class Target {
+		private final String zone;
+		private final String subnetId;
+
+		/**
+		 * Initializes a target.
+		 * @param zone The availability zone, for example us-west-2c.
+		 * @param subnetId The subnet id, or null for the default subnet of the zone.
+		 */
+		public Target(String zone, String subnetId) {
+			this.zone = zone;
+			this.subnetId = subnetId;
+		}
+
+		/**
+		 * Gets the availability zone.
+		 * @return The zone.
+		 */
+		public String getZone() {
+			return zone;
+		}
+
+		/**
+		 * Gets the subnet.
+		 * @return The subnet id, or null.
+		 */
+		public String getSubnetId() {
+			return subnetId;
+		}
+
+		@Override
+		public String toString() {
+			return subnetId == null ? zone : zone + "/" + subnetId;
+		}
+	}
+
+	/**
+	 * Outcome of a launch.
+	 */
+	public static class Result {
+		private final int requested;
+		private final List<InstanceSummary> instances = new ArrayList<InstanceSummary>();
+		private final Map<String, Integer> launchedByZone = new LinkedHashMap<String, Integer>();
+		private final List<String> errors = new ArrayList<String>();
+		private int callCount = 0;
+
+		Result(int requested) {
+			this.requested = requested;
+		}
+
+		/**
+		 * Gets the number of instances requested.
+		 * @return The requested count.
+		 */
+		public int getRequested() {
+			return requested;
+		}
+
+		/**
+		 * Gets the launched instances, in the order the calls returned.
+		 * @return The instances.
+		 */
+		public synchronized List<InstanceSummary> getInstances() {
+			return new ArrayList<InstanceSummary>(instances);
+		}
+
+		/**
+		 * Gets the number of launched instances.
+		 * @return The launched count, less than the requested count if the zones ran out of capacity.
+		 */
+		public synchronized int getLaunched() {
+			return instances.size();
+		}
+
+		/**
+		 * Gets the number of instances launched in each zone.
+		 * @return The counts by zone, in the order of the first launch.
+		 */
+		public synchronized Map<String, Integer> getLaunchedByZone() {
+			return new LinkedHashMap<String, Integer>(launchedByZone);
+		}
+
+		/**
+		 * Gets the errors which stopped a call or the consumer.
+		 * @return The error messages.
+		 */
+		public synchronized List<String> getErrors() {
+			return new ArrayList<String>(errors);
+		}
+
+		/**
+		 * Gets the number of RunInstances calls made.
+		 * @return The number of calls, failed or not.
+		 */
+		public synchronized int getCallCount() {
+			return callCount;
+		}
+
+		synchronized void addLaunched(Target target, List<InstanceSummary> launched) {
+			instances.addAll(launched);
+			launchedByZone.merge(target.getZone(), launched.size(), Integer::sum);
+		}
+
+		synchronized void addError(String error) {
+			errors.add(error);
+		}
+
+		synchronized void addCall() {
+			callCount++;
+		}
+	}
+
+	private final AmazonEC2 ec2Client;
+	private final List<Target> targets;
+	private final boolean fallbackToOtherZones;
+	private final int maxPerCall;
+	private final int parallelism;
+	private boolean partial = false;
+
+	// Zones out of capacity during the current launch.
+	private final Set<String> exhausted = Collections.synchronizedSet(new HashSet<String>());
+
+	// Targets tried once the planned ones are exhausted. Loaded on the first capacity error.
+	private List<Target> fallbacks = null;
+
+	/**
+	 * Initializes the planner with the default call size and parallelism.
+	 * @param client Authenticated EC2 client.
+	 * @param targets The zones and subnets the instances are spread over.
+	 * @param fallbackToOtherZones True to move what a zone cannot launch to the other targets,
+	 * 		then to the other zones (in the same VPC for targets with a subnet).
+	 */
+	public LaunchPlanner(AmazonEC2 client, List<Target> targets, boolean fallbackToOtherZones) {
+		this(client, targets, fallbackToOtherZones, DEFAULT_MAX_PER_CALL, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * Initializes the planner.
+	 * @param client Authenticated EC2 client.
+	 * @param targets The zones and subnets the instances are spread over.
+	 * @param fallbackToOtherZones True to move what a zone cannot launch to the other targets,
+	 * 		then to the other zones (in the same VPC for targets with a subnet).
+	 * @param maxPerCall Maximum number of instances launched by one call.
+	 * @param parallelism Maximum number of calls made at the same time.
+	 */
+	public LaunchPlanner(AmazonEC2 client, List<Target> targets, boolean fallbackToOtherZones,
+			int maxPerCall, int parallelism) {
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+		if (targets.isEmpty())
+			throw new IllegalArgumentException("No zone to launch the instances in");
+		ec2Client = client;
+		this.targets = new ArrayList<Target>(targets);
+		this.fallbackToOtherZones = fallbackToOtherZones;
+		this.maxPerCall = Math.max(1, maxPerCall);
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets whether a call may launch fewer instances than requested when the zone runs short
+	 * of capacity. Off by default: a call launches all its instances or none.
+	 * @param partial True to accept partial launches (MinCount 1).
+	 */
+	public synchronized void setPartialLaunch(boolean partial) {
+		this.partial = partial;
+	}
+
+	/**
+	 * Sets the zones tried once the targets run out of capacity, instead of describing the
+	 * available zones, or the subnets of the targets' VPC, on the first capacity error.
+	 * @param zones The zones, as targets. For targets with a subnet, give subnets of their VPC.
+	 */
+	public void setFallbackZones(List<Target> zones) {
+		synchronized (exhausted) {
+			fallbacks = new ArrayList<Target>(zones);
+		}
+	}
+
+	/**
+	 * Lists the available zones of the client's region, as targets without subnet.
+	 * @param client Authenticated EC2 client.
+	 * @return The targets, in the order returned by EC2.
+	 */
+	public static List<Target> getAvailableZones(AmazonEC2 client) {
+		List<Target> zones = new ArrayList<Target>();
+		for (AvailabilityZone zone : client.describeAvailabilityZones().getAvailabilityZones())
+			if (zone.getState() == null || "available".equals(zone.getState()))
+				zones.add(new Target(zone.getZoneName(), null));
+		return zones;
+	}
+
+	/**
+	 * Lists a subnet in each zone of the VPCs of the given subnets: the available subnet
+	 * with the most free addresses.
+	 * @param client Authenticated EC2 client.
+	 * @param subnetIds The subnets whose VPCs are listed.
+	 * @return The targets, one per zone, in the order returned by EC2.
+	 */
+	public static List<Target> getVpcSubnets(AmazonEC2 client, Collection<String> subnetIds) {
+		List<String> vpcIds = new ArrayList<String>();
+		for (Subnet subnet : client.describeSubnets(new DescribeSubnetsRequest()
+				.withFilters(new Filter("subnet-id", new ArrayList<String>(subnetIds)))).getSubnets())
+			if (!vpcIds.contains(subnet.getVpcId()))
+				vpcIds.add(subnet.getVpcId());
+		if (vpcIds.isEmpty())
+			return new ArrayList<Target>();
+
+		Map<String, Subnet> byZone = new LinkedHashMap<String, Subnet>();
+		for (Subnet subnet : client.describeSubnets(new DescribeSubnetsRequest()
+				.withFilters(new Filter("vpc-id", vpcIds))).getSubnets()) {
+			if (subnet.getState() != null && !"available".equals(subnet.getState()))
+				continue;
+			Subnet best = byZone.get(subnet.getAvailabilityZone());
+			if (best == null || free(subnet) > free(best))
+				byZone.put(subnet.getAvailabilityZone(), subnet);
+		}
+		List<Target> zones = new ArrayList<Target>();
+		for (Subnet subnet : byZone.values())
+			zones.add(new Target(subnet.getAvailabilityZone(), subnet.getSubnetId()));
+		return zones;
+	}
+
+	/**
+	 * Checks whether an error means that the zone is out of capacity for the instance type.
+	 * @param e The error.
+	 * @return True for InsufficientInstanceCapacity and the like.
+	 */
+	public static boolean isInsufficientCapacity(AmazonServiceException e) {
+		return CAPACITY_CODES.contains(e.getErrorCode());
+	}
+
+	/**
+	 * Splits a count over the targets, then in calls of at most the maximum per call.
+	 * @param count The number of instances.
+	 * @return The number of instances of each call, with its target.
+	 */
+	public List<Map.Entry<Target, Integer>> plan(int count) {
+		List<Map.Entry<Target, Integer>> calls = new ArrayList<Map.Entry<Target, Integer>>();
+		for (int t = 0; t < targets.size(); t++) {
+			// The first targets get the remainder, one instance each.
+			int share = count / targets.size() + (t < count % targets.size() ? 1 : 0);
+			for (int from = 0; from < share; from += maxPerCall)
+				calls.add(new AbstractMap.SimpleImmutableEntry<Target, Integer>(
+						targets.get(t), Math.min(maxPerCall, share - from)));
+		}
+		return calls;
+	}
+
+	/**
+	 * Launches the instances, making the planned calls in parallel.
+	 * @param template The launch settings: image, type, key pair, block devices... The counts,
+	 * 		the placement, the subnet and the client token are set for each call.
+	 * @param count The number of instances.
+	 * @param launched Receives the instances of each call as soon as it returns, or null.
+	 * @return The outcome. The method returns when all the calls have returned. A planner
+	 * 		makes one launch at a time.
+	 */
+	public synchronized Result launch(RunInstancesRequest template, int count, Consumer<List<InstanceSummary>> launched) {
+		Result result = new Result(count);
+		List<Map.Entry<Target, Integer>> calls = plan(count);
+		boolean partial = this.partial;
+		exhausted.clear();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, calls.size())), runnable -> {
+			Thread thread = new Thread(runnable, "ec2-launch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (Map.Entry<Target, Integer> call : calls)
+				futures.add(executor.submit(() -> launchCall(template, call.getKey(), call.getValue(), partial, launched, result)));
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				}
+				catch (ExecutionException e) {
+					result.addError(String.valueOf(e.getCause().getMessage()));
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					result.addError("Interrupted");
+					break;
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return result;
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	/*
+	 * Free addresses of a subnet, 0 if unknown.
+	 */
+	private static int free(Subnet subnet) {
+		return subnet.getAvailableIpAddressCount() == null ? 0 : subnet.getAvailableIpAddressCount();
+	}
+
+	/*
+	 * Launches the instances of one planned call, moving what a zone cannot launch to the
+	 * next zone with capacity if the fallback is on.
+	 */
+	private void launchCall(RunInstancesRequest template, Target target, int count, boolean partial,
+			Consumer<List<InstanceSummary>> launched, Result result) {
+		Target planned = target;
+		int remaining = count;
+		while (remaining > 0 && target != null) {
+			// Another call may have found the zone out of capacity meanwhile.
+			if (exhausted.contains(target.getZone())) {
+				target = next(target);
+				continue;
+			}
+			RunInstancesRequest request = template.clone()
+					.withMinCount(partial ? 1 : remaining)
+					.withMaxCount(remaining)
+					.withSubnetId(target.getSubnetId())
+					.withPlacement(new Placement(target.getZone()))
+					.withClientToken(UUID.randomUUID().toString());
+			result.addCall();
+			try {
+				Reservation reservation = ec2Client.runInstances(request).getReservation();
+				List<InstanceSummary> instances = new ArrayList<InstanceSummary>();
+				for (Instance instance : reservation.getInstances())
+					instances.add(InstanceSummary.from(instance, reservation.getReservationId()));
+				result.addLaunched(target, instances);
+				remaining -= instances.size();
+
+				if (launched != null && !instances.isEmpty()) {
+					try {
+						launched.accept(instances);
+					}
+					catch (RuntimeException e) {
+						result.addError(String.format("%d instance(s) in %s: %s", instances.size(), target, e.getMessage()));
+					}
+				}
+				// A partial launch means that the zone is out of capacity.
+				if (remaining > 0)
+					target = next(target);
+			}
+			catch (AmazonServiceException e) {
+				if (!isInsufficientCapacity(e)) {
+					result.addError(String.format("%d instance(s) in %s: %s", remaining, target, e.getMessage()));
+					return;
+				}
+				if (Main.DEBUG)
+					System.out.println(String.format("LaunchPlanner: %s is out of capacity", target));
+				target = next(target);
+			}
+		}
+		if (remaining > 0 && !fallbackToOtherZones)
+			result.addError(String.format("%d instance(s) not launched: %s is out of capacity", remaining, planned));
+		else if (remaining > 0)
+			result.addError(String.format("%d instance(s) not launched: no zone has capacity left", remaining));
+	}
+
+	/*
+	 * Marks the zone of a target as exhausted, and returns the next target in a zone not
+	 * exhausted yet, or null. Without the fallback, there is no next target.
+	 */
+	private Target next(Target current) {
+		exhausted.add(current.getZone());
+		if (!fallbackToOtherZones)
+			return null;
+		for (Target target : targets)
+			if (!exhausted.contains(target.getZone()))
+				return target;
+
+		List<Target> zones;
+		synchronized (exhausted) {
+			if (fallbacks == null)
+				fallbacks = getFallbackTargets();
+			zones = fallbacks;
+		}
+		for (Target target : zones)
+			if (!exhausted.contains(target.getZone()))
+				return target;
+		return null;
+	}
+
+	/*
+	 * Lists the targets tried once the planned ones are exhausted: the available zones when
+	 * no target has a subnet, otherwise the subnets of the same VPC, so that the instances
+	 * never land in another network.
+	 */
+	private List<Target> getFallbackTargets() {
+		Set<String> subnetIds = new HashSet<String>();
+		for (Target target : targets)
+			if (target.getSubnetId() != null)
+				subnetIds.add(target.getSubnetId());
+		if (subnetIds.isEmpty())
+			return getAvailableZones(ec2Client);
+		try {
+			return getVpcSubnets(ec2Client, subnetIds);
+		}
+		catch (AmazonServiceException e) {
+			if (Main.DEBUG)
+				System.out.println(String.format("LaunchPlanner: cannot list the subnets of the VPC: %s", e.getMessage()));
+			return new ArrayList<Target>();
+		}
+	}
+}
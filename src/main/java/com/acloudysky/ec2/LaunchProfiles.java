@@ -0,0 +1,472 @@
+package com.acloudysky.ec2;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Subnet;
+
+/**
+ * Named launch profiles, read from a properties file where each property is
+ * <i>profile</i>.<i>attribute</i>:
+ * <pre>
+ * web.image=ami-7172b611
+ * web.type=t2.small
+ * web.key=DocLabKeys_OR
+ * web.subnet=subnet-06223c5f
+ * web.zone=us-west-2c
+ * web.count=4
+ * web.volume.size=8
+ * web.security.groups=sg-1a2b3c4d,sg-5e6f7a8b
+ * </pre>
+ * The zone * spreads the instances over all the available zones, in their default subnets.
+ * The attributes not set take the value of the profile named default, which the file can
+ * redefine, except that the zone and the subnet are inherited together: a profile setting
+ * one of them does not inherit the other.
+ * <p>
+ * Each profile is compiled once into a RunInstancesRequest template, cloned for each launch.
+ * {@link #validate(AmazonEC2)} checks all the profiles together, once: one DescribeImages,
+ * one DescribeSubnets and one DescribeAvailabilityZones call, whatever the number of
+ * profiles. The available zones are kept for the launches on all the zones.
+ * </p>
+ */
+public class LaunchProfiles {
+
+	/**
+	 * Name of the profile giving the default values.
+	 */
+	public static final String DEFAULT_PROFILE = "default";
+
+	// Attributes of a profile.
+	private static final List<String> ATTRIBUTES = Arrays.asList(
+			"image", "type", "key", "subnet", "zone", "count", "volume.size", "security.groups");
+
+	// Values of the default profile, unless the file redefines it.
+	private static final Map<String, String> BUILT_IN_DEFAULTS = new HashMap<String, String>();
+	static {
+		BUILT_IN_DEFAULTS.put("image", "ami-7172b611");
+		BUILT_IN_DEFAULTS.put("type", "t2.micro");
+		BUILT_IN_DEFAULTS.put("subnet", "subnet-06223c5f");
+		BUILT_IN_DEFAULTS.put("zone", "us-west-2c");
+		BUILT_IN_DEFAULTS.put("count", "1");
+		BUILT_IN_DEFAULTS.put("volume.size", "3");
+	}
+
+	/**
+	 * A launch profile and its request template.
+	 */
+	public static class Profile {
+		private final String name;
+		private final String imageId;
+		private final String instanceType;
+		private final String keyName;
+		private final String subnetId;
+		private final int count;
+		private final int volumeSize;
+		private final List<String> securityGroupIds;
+		private final RunInstancesRequest template;
+		private String zone;
+
+		// Null while valid. Set when the file or the validation rejects the profile.
+		private String error = null;
+
+		private Profile(String name, Map<String, String> values) {
+			this.name = name;
+			imageId = values.get("image");
+			instanceType = values.get("type");
+			keyName = values.get("key");
+			subnetId = values.get("subnet");
+			zone = values.get("zone");
+			count = parse(values, "count", 1);
+			volumeSize = parse(values, "volume.size", 3);
+			securityGroupIds = values.containsKey("security.groups")
+					? Arrays.asList(values.get("security.groups").trim().split("\\s*,\\s*"))
+					: Collections.<String>emptyList();
+			if (imageId == null)
+				reject("no image");
+			else if (instanceType == null)
+				reject("no instance type");
+			else if (zone == null && subnetId == null)
+				reject("no zone nor subnet");
+			template = newTemplate();
+		}
+
+		/**
+		 * Gets the profile name.
+		 * @return The name.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the image.
+		 * @return The image id.
+		 */
+		public String getImageId() {
+			return imageId;
+		}
+
+		/**
+		 * Gets the instance type.
+		 * @return The type, for example t2.micro.
+		 */
+		public String getInstanceType() {
+			return instanceType;
+		}
+
+		/**
+		 * Gets the key pair.
+		 * @return The key pair name, or null if the launch must give it.
+		 */
+		public String getKeyName() {
+			return keyName;
+		}
+
+		/**
+		 * Gets the subnet.
+		 * @return The subnet id, or null for the default subnets.
+		 */
+		public String getSubnetId() {
+			return subnetId;
+		}
+
+		/**
+		 * Gets the availability zone. Once validated, the zone of the subnet if the profile
+		 * only sets the subnet.
+		 * @return The zone, * for all the available zones, or null.
+		 */
+		public synchronized String getZone() {
+			return zone;
+		}
+
+		/**
+		 * Gets the number of instances launched by default.
+		 * @return The count.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the size of the root volume.
+		 * @return The size, in GiB.
+		 */
+		public int getVolumeSize() {
+			return volumeSize;
+		}
+
+		/**
+		 * Gets the security groups.
+		 * @return The group ids, empty for the default group.
+		 */
+		public List<String> getSecurityGroupIds() {
+			return securityGroupIds;
+		}
+
+		/**
+		 * Checks whether the profile can be launched.
+		 * @return False if the file or the validation rejected it.
+		 */
+		public synchronized boolean isValid() {
+			return error == null;
+		}
+
+		/**
+		 * Gets the reason the profile was rejected.
+		 * @return The reason, or null if the profile is valid.
+		 */
+		public synchronized String getError() {
+			return error;
+		}
+
+		/**
+		 * Creates the request of a launch, a copy of the profile's template: image, type, key
+		 * pair, security groups and root volume. The planner sets the counts, the subnet and
+		 * the zone. The copies share the block device mappings, which must not be changed.
+		 * @return The request.
+		 */
+		public RunInstancesRequest newRequest() {
+			return template.clone();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s %s, key %s, subnet %s, zone %s, %d instance(s), %d GiB%s", name,
+					imageId, instanceType, keyName, subnetId, getZone(), count, volumeSize,
+					securityGroupIds.isEmpty() ? "" : ", groups " + String.join(",", securityGroupIds));
+		}
+
+		/*
+		 * Builds the template. The root partition is deleted on termination.
+		 */
+		private RunInstancesRequest newTemplate() {
+			EbsBlockDevice ebs = new EbsBlockDevice()
+					.withDeleteOnTermination(Boolean.TRUE)
+					.withVolumeSize(volumeSize);
+			return new RunInstancesRequest()
+					.withImageId(imageId)
+					.withInstanceType(instanceType)
+					.withKeyName(keyName)
+					.withSecurityGroupIds(securityGroupIds)
+					.withBlockDeviceMappings(new BlockDeviceMapping().withDeviceName("/dev/sda1").withEbs(ebs));
+		}
+
+		private synchronized void reject(String reason) {
+			if (error == null)
+				error = reason;
+		}
+
+		private synchronized void setZone(String zone) {
+			this.zone = zone;
+		}
+
+		private int parse(Map<String, String> values, String attribute, int defaultValue) {
+			String value = values.get(attribute);
+			if (value == null)
+				return defaultValue;
+			try {
+				int parsed = Integer.parseInt(value.trim());
+				if (parsed > 0)
+					return parsed;
+			}
+			catch (NumberFormatException e) {
+				// Rejected below.
+			}
+			reject(String.format("invalid %s %s", attribute, value));
+			return defaultValue;
+		}
+	}
+
+	// Profiles by name, in name order.
+	private final Map<String, Profile> profiles;
+
+	// Set once validated. Guarded by this.
+	private boolean validated = false;
+	private List<LaunchPlanner.Target> availableZones = null;
+
+	/**
+	 * Initializes the profiles.
+	 * @param properties The profile attributes: <i>profile</i>.<i>attribute</i>=<i>value</i>.
+	 * @throws IllegalArgumentException If a property is not a profile attribute.
+	 */
+	public LaunchProfiles(Properties properties) {
+		Map<String, Map<String, String>> values = new TreeMap<String, Map<String, String>>();
+		values.put(DEFAULT_PROFILE, new HashMap<String, String>(BUILT_IN_DEFAULTS));
+		for (String property : properties.stringPropertyNames()) {
+			int dot = property.indexOf('.');
+			String attribute = dot < 0 ? "" : property.substring(dot + 1);
+			if (dot <= 0 || !ATTRIBUTES.contains(attribute))
+				throw new IllegalArgumentException(String.format("Unknown profile attribute %s, allowed: %s",
+						property, ATTRIBUTES));
+			values.computeIfAbsent(property.substring(0, dot), name -> new HashMap<String, String>())
+					.put(attribute, properties.getProperty(property).trim());
+		}
+
+		// The other profiles inherit the attributes of the default profile.
+		Map<String, String> defaults = values.get(DEFAULT_PROFILE);
+		profiles = new LinkedHashMap<String, Profile>();
+		for (Map.Entry<String, Map<String, String>> entry : values.entrySet()) {
+			Map<String, String> merged = new HashMap<String, String>(defaults);
+			if (entry.getValue().containsKey("zone") || entry.getValue().containsKey("subnet")) {
+				merged.remove("zone");
+				merged.remove("subnet");
+			}
+			merged.putAll(entry.getValue());
+			profiles.put(entry.getKey(), new Profile(entry.getKey(), merged));
+		}
+	}
+
+	/**
+	 * Reads the profiles of a file.
+	 * @param file The properties file.
+	 * @return The profiles.
+	 * @throws IOException If the file cannot be read.
+	 * @throws IllegalArgumentException If a property is not a profile attribute.
+	 */
+	public static LaunchProfiles load(Path file) throws IOException {
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		}
+		return new LaunchProfiles(properties);
+	}
+
+	/**
+	 * Reads the profiles of the file set by the system property ec2.launch.profiles, by
+	 * default launch-profiles.properties in the .aws-ec2-client directory of the user's home
+	 * directory. Without the file, or if it cannot be read, only the default profile is
+	 * defined.
+	 * @return The profiles.
+	 */
+	public static LaunchProfiles fromSystemProperties() {
+		String file = System.getProperty("ec2.launch.profiles");
+		Path path = file != null && !file.isEmpty() ? Paths.get(file)
+				: Paths.get(System.getProperty("user.home"), ".aws-ec2-client", "launch-profiles.properties");
+		if (!Files.exists(path)) {
+			if (file != null && !file.isEmpty())
+				System.out.println(String.format("Launch profiles %s not found", path));
+			return new LaunchProfiles(new Properties());
+		}
+		try {
+			return load(path);
+		}
+		catch (IOException | IllegalArgumentException e) {
+			System.out.println(String.format("Cannot read the launch profiles %s: %s", path, e.getMessage()));
+			return new LaunchProfiles(new Properties());
+		}
+	}
+
+	/**
+	 * Gets a profile.
+	 * @param name The profile name.
+	 * @return The profile, or null if not defined.
+	 */
+	public Profile get(String name) {
+		return profiles.get(name);
+	}
+
+	/**
+	 * Gets all the profiles.
+	 * @return The profiles, in name order.
+	 */
+	public Collection<Profile> getProfiles() {
+		return Collections.unmodifiableCollection(profiles.values());
+	}
+
+	/**
+	 * Checks that the images, the subnets and the zones of the profiles exist, and that each
+	 * subnet is in the profile's zone, in one call per resource type. Runs once: the later
+	 * calls return right away. The profiles failing the checks are rejected. If a call fails,
+	 * for example on a network error, no profile is rejected and the next call validates again.
+	 * @param client Authenticated EC2 client.
+	 * @throws AmazonClientException If a call fails.
+	 */
+	public synchronized void validate(AmazonEC2 client) {
+		if (validated)
+			return;
+		if (client == null) {
+			throw new RuntimeException("The Ec2 client is not initialized");
+		}
+
+		// The resources of the profiles not rejected already.
+		Set<String> imageIds = new LinkedHashSet<String>();
+		Set<String> subnetIds = new LinkedHashSet<String>();
+		for (Profile profile : profiles.values()) {
+			if (!profile.isValid())
+				continue;
+			imageIds.add(profile.getImageId());
+			if (profile.getSubnetId() != null && !EC2Operations.ALL_ZONES.equals(profile.getZone()))
+				subnetIds.add(profile.getSubnetId());
+		}
+
+		// Only definitive answers reject a profile: on a failed call, nothing is checked.
+		Map<String, Image> images = new HashMap<String, Image>();
+		Map<String, Subnet> subnets = new HashMap<String, Subnet>();
+		List<LaunchPlanner.Target> zones;
+		try {
+			if (!imageIds.isEmpty())
+				for (Image image : client.describeImages(new DescribeImagesRequest()
+						.withFilters(new Filter("image-id", new ArrayList<String>(imageIds)))).getImages())
+					images.put(image.getImageId(), image);
+
+			if (!subnetIds.isEmpty())
+				for (Subnet subnet : client.describeSubnets(new DescribeSubnetsRequest()
+						.withFilters(new Filter("subnet-id", new ArrayList<String>(subnetIds)))).getSubnets())
+					subnets.put(subnet.getSubnetId(), subnet);
+
+			zones = LaunchPlanner.getAvailableZones(client);
+		}
+		catch (AmazonClientException e) {
+			throw new AmazonClientException("Cannot validate the launch profiles: " + e.getMessage(), e);
+		}
+
+		Set<String> zoneNames = new LinkedHashSet<String>();
+		for (LaunchPlanner.Target zone : zones)
+			zoneNames.add(zone.getZone());
+		for (Profile profile : profiles.values())
+			check(profile, images, subnets, zoneNames);
+		availableZones = zones;
+		validated = true;
+	}
+
+	/**
+	 * Checks whether the profiles are validated.
+	 * @return True once {@link #validate(AmazonEC2)} ran.
+	 */
+	public synchronized boolean isValidated() {
+		return validated;
+	}
+
+	/**
+	 * Gets the available zones found by the validation.
+	 * @return The zones, as targets without subnet, or null if not validated.
+	 */
+	public synchronized List<LaunchPlanner.Target> getAvailableZones() {
+		return availableZones == null ? null : Collections.unmodifiableList(availableZones);
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private static void check(Profile profile, Map<String, Image> images, Map<String, Subnet> subnets,
+			Set<String> zoneNames) {
+		if (!profile.isValid())
+			return;
+		Image image = images.get(profile.getImageId());
+		if (image == null) {
+			profile.reject(String.format("image %s not found", profile.getImageId()));
+			return;
+		}
+		if (image.getState() != null && !"available".equals(image.getState())) {
+			profile.reject(String.format("image %s is %s", profile.getImageId(), image.getState()));
+			return;
+		}
+
+		String zone = profile.getZone();
+		if (EC2Operations.ALL_ZONES.equals(zone))
+			return;
+		if (profile.getSubnetId() != null) {
+			Subnet subnet = subnets.get(profile.getSubnetId());
+			if (subnet == null) {
+				profile.reject(String.format("subnet %s not found", profile.getSubnetId()));
+				return;
+			}
+			// A subnet is in one zone: it sets the zone, or must match it.
+			if (zone == null)
+				profile.setZone(zone = subnet.getAvailabilityZone());
+			else if (!zone.equals(subnet.getAvailabilityZone())) {
+				profile.reject(String.format("subnet %s is in %s, not %s", profile.getSubnetId(),
+						subnet.getAvailabilityZone(), zone));
+				return;
+			}
+		}
+		if (!zoneNames.contains(zone))
+			profile.reject(String.format("zone %s not available", zone));
+	}
+}
@@ -0,0 +1,82 @@
+package com.acloudysky.ec2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * Stands for an EC2 client which is still being created, for example in the background
+ * while the menu is displayed. The first call waits until the client is ready, then all the
+ * calls go to it. If the client could not be created, every call fails with the
+ * AmazonClientException that prevented it.
+ * <pre>
+ * CompletableFuture&lt;AmazonEC2&gt; future = CompletableFuture.supplyAsync(() -&gt; createClient());
+ * AmazonEC2 client = LazyEC2Client.create(future);
+ * </pre>
+ */
+public class LazyEC2Client implements InvocationHandler {
+
+	// The client, once created.
+	private final CompletableFuture<AmazonEC2> future;
+
+	private LazyEC2Client(CompletableFuture<AmazonEC2> future) {
+		this.future = future;
+	}
+
+	/**
+	 * Creates a client waiting for the specified one.
+	 * @param future The future of the client.
+	 * @return The client.
+	 */
+	public static AmazonEC2 create(CompletableFuture<AmazonEC2> future) {
+		return (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(),
+				new Class<?>[] { AmazonEC2.class }, new LazyEC2Client(future));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "LazyEC2Client " + (future.isDone() && !future.isCompletedExceptionally()
+							? future.join() : "(initializing)");
+				default:
+					break;
+			}
+		}
+		try {
+			return method.invoke(get(), args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/*
+	 * Waits for the client.
+	 */
+	private AmazonEC2 get() {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof AmazonClientException)
+				throw (AmazonClientException) e.getCause();
+			throw new AmazonClientException("The Ec2 client could not be initialized", e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting for the Ec2 client", e);
+		}
+	}
+}
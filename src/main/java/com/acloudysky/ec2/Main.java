@@ -1,128 +1,359 @@
-package com.acloudysky.ec2;
-
-
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.ec2.AmazonEC2;
-import com.acloudysky.auth.AuthenticateAwsServiceClient;
-
-
-/**
- * Instantiates the authenticated EC2 service client, initializes the operations and the UI classes.  
- * Before running the code, you need to set up your AWS security credentials. You can do this by creating a 
- * file named "credentials" at ~/.aws/ (C:\Users\USER_NAME\.aws\ for Windows users) and saving the following lines in 
- * the file:
- *<pre>
- *[default]
- *  aws_access_key_id = your access key id
- *  aws_secret_access_key = your secret key
- *</pre>
- *<p>
- * For more information, see <a href="http://docs.aws.amazon.com/AWSSdkDocsJava/latest/DeveloperGuide/credentials.html" target="_blank">Providing AWS Credentials in the AWS SDK for Java</a> 
- * and <a href="https://console.aws.amazon.com/iam/home?#security_credential" target="_blank">Welcome to Identity and Access Management</a>.
- * </p>
- * <b>WARNING</b>: To avoid accidental leakage of your credentials, DO NOT keep the credentials file in your source directory.
- * @author Michael Miele
- */
-public class Main {
-
-	// Debug flag to use for testing purposes.
-	public static boolean DEBUG = false;
-		
-	private static SimpleUI sui;
-	
-	// Authenticated EC2 client.
-	private static AmazonEC2 ec2Client = null;
-	
-	// Selected region. String value such as "us-west-2".
-	private static String region = null;
-	
-	// Selected EC2 region. Enumerated value.
-	private static Regions currentRegion; 
-	
-	/**
-	 * Instantiates the EC2 client and initializes the operation class. 
-	 * Instantiates the SimpleUI class to display the selection menu and process the user's input. 
-	 * @see SimpleUI#SimpleUI(AmazonEC2) 
-	 * @see EC2Operations#InitEC2Operations(AmazonEC2)
-	 * @param args; 
-	 * 		args[0] = The EC2 region, for instance "us-west-2". Notice only US regions are allowed. 
-	 * 
-	 */
-	public static void main(String[] args) {
-		
-		// Display application menu.
-		Utility.displayWelcomeMessage("AWS EC2");
-		
-		// Read input parameters.
-		try {
-				region = args[0];
-				// System.out.println(region);
-		}
-		catch (Exception e) {
-			System.out.println("IO error trying to read application input! Assigning default values.");
-			// Assign default values if none are passed.
-			if (args.length==0) {
-				region = "us-west-2";
-			}
-			else {
-				System.out.println("IO error trying to read application input!");
-				System.exit(1); 
-			}
-		}
-		
-		try {
-				// Instantiate the AuthenticateAwsServiceClient class. 
-				AuthenticateAwsServiceClient authClient = new AuthenticateAwsServiceClient();
-				
-				// Get the region enum value. 
-				currentRegion = Utility.getRegion(region);
-				
-				// Get the authenticated client. 
-				if (currentRegion != null)
-					ec2Client = authClient.getAuthenticatedEC2Client(currentRegion);
-				
-		} 
-        catch (AmazonServiceException ase) {
-	        	StringBuffer err = new StringBuffer();
-	        	
-	        	err.append(("Caught an AmazonServiceException, which means your request made it "
-	                      + "to Amazon EC2, but was rejected with an error response for some reason."));
-	       	   	err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
-	       	   	err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
-	       	   	err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
-	       	   	err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
-	       	   	err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
-	        	
-	       	   	System.out.println(err.toString());
-    	} 
-		catch (AmazonClientException ace) {
-	            System.out.println("Caught an AmazonClientException, which means the client encountered "
-	                    + "a serious internal problem while trying to communicate with EC2 , "
-	                    + "such as not being able to access the network.");
-	            System.out.println("Error Message: " + ace.getMessage());
-		}
-		
-		if (ec2Client != null) {
-			
-			// Initialize the EC2Operations class to handle EC2 REST API calls.
-        	EC2Operations.InitEC2Operations(ec2Client);
-			
-        	if (DEBUG)
-        		System.out.println("Main: Ec2 client " + ec2Client.toString());
-        	
-        	
-			// Instantiate SmpleUI class.
-			sui = new SimpleUI(ec2Client);
-		
-			// Process user's input.
-			sui.processUserInput();
-		}
-		else 
-			String.format("Error %s", "Main: authorized EC2 client object is null.");
-		
-		Utility.displayGoodbyeMessage("AWS EC2");	
-	}
-
-}
+package com.acloudysky.ec2;
+
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+
+/**
+ * Instantiates the authenticated EC2 service client, initializes the operations and the UI classes.  
+ * Before running the code, you need to set up your AWS security credentials. You can do this by creating a 
+ * file named "credentials" at ~/.aws/ (C:\Users\USER_NAME\.aws\ for Windows users) and saving the following lines in 
+ * the file:
+ *<pre>
+ *[default]
+ *  aws_access_key_id = your access key id
+ *  aws_secret_access_key = your secret key
+ *</pre>
+ *<p>
+ * For more information, see <a href="http://docs.aws.amazon.com/AWSSdkDocsJava/latest/DeveloperGuide/credentials.html" target="_blank">Providing AWS Credentials in the AWS SDK for Java</a> 
+ * and <a href="https://console.aws.amazon.com/iam/home?#security_credential" target="_blank">Welcome to Identity and Access Management</a>.
+ * </p>
+ * <b>WARNING</b>: To avoid accidental leakage of your credentials, DO NOT keep the credentials file in your source directory.
+ * @author Michael Miele
+ */
+public class Main {
+
+	// Debug flag to use for testing purposes.
+	public static boolean DEBUG = false;
+		
+	private static SimpleUI sui;
+	
+	// Authenticated EC2 client.
+	private static AmazonEC2 ec2Client = null;
+	
+	// Selected region. String value such as "us-west-2".
+	private static String region = null;
+	
+	// Selected EC2 region. Enumerated value.
+	private static Regions currentRegion; 
+	
+	// Region used for the single region operations in multi-region mode.
+	private static final String DEFAULT_REGION = "us-west-2";
+	
+	// Authenticated EC2 clients for all the regions, keyed by region name. Multi-region mode only.
+	private static Map<String, AmazonEC2> regionClients = null;
+	
+	// Local fake EC2 endpoint, when started with -Dec2.endpoint=local.
+	private static volatile FakeEC2Server fakeServer = null;
+	
+	// Startup phase timing.
+	private static StartupReport startup;
+	
+	// Statistics of the EC2 calls, all regions together.
+	private static final EC2Metrics metrics = new EC2Metrics();
+	
+	/**
+	 * Instantiates the EC2 client and initializes the operation class. 
+	 * Instantiates the SimpleUI class to display the selection menu and process the user's input. 
+	 * @see SimpleUI#SimpleUI(AmazonEC2) 
+	 * @see EC2Operations#InitEC2Operations(AmazonEC2, long, InventorySnapshotStore)
+	 * @param args; 
+	 * 		args[0] = The EC2 region, for instance "us-west-2". Notice only US regions are allowed. 
+	 * 		Use "all" to enable the multi-region mode, which queries all the US regions at once.
+	 * 		args[1], args[2] = Optional "--batch script" to run the commands of a script file 
+	 * 		instead of the menu. Use "-" to read the script from the standard input. 
+	 * 		args[1], args[2] = Optional "--daemon [port]" to serve the operations over a local 
+	 * 		HTTP/JSON API instead of the menu.
+	 * @see BatchUI
+	 * @see EC2Daemon
+	 * 
+	 */
+	public static void main(String[] args) {
+		
+		// Startup timing, displayed with -Dec2.startup.report=true.
+		startup = new StartupReport(Boolean.getBoolean("ec2.startup.report"));
+		long start = System.nanoTime();
+		
+		// Display application menu.
+		Utility.displayWelcomeMessage("AWS EC2");
+		
+		// Read input parameters.
+		try {
+				region = args[0];
+				// System.out.println(region);
+		}
+		catch (Exception e) {
+			System.out.println("IO error trying to read application input! Assigning default values.");
+			// Assign default values if none are passed.
+			if (args.length==0) {
+				region = "us-west-2";
+			}
+			else {
+				System.out.println("IO error trying to read application input!");
+				System.exit(1); 
+			}
+		}
+		
+		// Batch mode: run the commands of a script instead of the menu.
+		String batchScript = null;
+		if (args.length > 2 && "--batch".equals(args[1]))
+			batchScript = args[2];
+		
+		// Daemon mode: serve the operations over HTTP until the process is stopped.
+		Integer daemonPort = null;
+		if (args.length > 1 && "--daemon".equals(args[1])) {
+			try {
+				daemonPort = args.length > 2 ? Integer.parseInt(args[2]) 
+						: Integer.getInteger("ec2.daemon.port", EC2Daemon.DEFAULT_PORT);
+			}
+			catch (NumberFormatException e) {
+				System.out.println(String.format("Invalid daemon port %s", args[2]));
+				System.exit(1);
+			}
+		}
+		
+		// Multi-region mode. The single region operations use the default region.
+		boolean allRegions = "all".equals(region.trim().toLowerCase());
+		if (allRegions)
+			region = DEFAULT_REGION;
+		
+		startup.record("Read arguments", start);
+		
+		// Get the region enum value. 
+		start = System.nanoTime();
+		currentRegion = Utility.getRegion(region);
+		startup.record("Load regions", start);
+		
+		if (currentRegion != null) {
+			
+			// Create the authenticated client(s) in the background, so that the menu is displayed 
+			// right away. The operations wait for the client on their first call.
+			start = System.nanoTime();
+			CompletableFuture<Map<String, AmazonEC2>> clients = createClientsAsync(allRegions);
+			ec2Client = LazyEC2Client.create(clients.thenApply(created -> created.get(region)));
+			
+			// Multi-region mode: a client for each region.
+			if (allRegions) {
+				regionClients = new HashMap<String, AmazonEC2>();
+				for (String name : Utility.ec2Regions.keySet())
+					regionClients.put(name, name.equals(region) ? ec2Client 
+							: LazyEC2Client.create(clients.thenApply(created -> created.get(name))));
+			}
+			startup.record("Start client creation", start);
+		}
+		
+		if (ec2Client != null) {
+			
+			// Initialize the EC2Operations class to handle EC2 REST API calls.
+			// The inventory TTL (milliseconds) can be set with -Dec2.inventory.ttl; 0 disables it.
+			// The inventory saved by the previous run answers until it is reloaded.
+			start = System.nanoTime();
+        	EC2Operations.InitEC2Operations(ec2Client, 
+        			Long.getLong("ec2.inventory.ttl", InstanceInventory.DEFAULT_TTL_MILLIS),
+        			InventorySnapshotStore.fromSystemProperties(region));
+        	
+        	// Enable the multi-region operations.
+        	if (regionClients != null)
+        		EC2Operations.InitMultiRegionOperations(regionClients);
+        	
+        	// Enable the call statistics, written periodically to the file set with -Dec2.metrics.file.
+        	EC2Operations.InitMetrics(metrics);
+        	String metricsFile = System.getProperty("ec2.metrics.file");
+        	if (metricsFile != null && !metricsFile.isEmpty())
+        		metrics.startExport(Paths.get(metricsFile), 
+        				Long.getLong("ec2.metrics.period.millis", EC2Metrics.DEFAULT_EXPORT_PERIOD_MILLIS));
+        	
+        	// Read the launch profiles of the file set with -Dec2.launch.profiles, and validate 
+        	// them in the background.
+        	EC2Operations.InitLaunchProfiles(LaunchProfiles.fromSystemProperties());
+        	startup.record("Initialize operations", start);
+			
+        	if (DEBUG)
+        		System.out.println("Main: Ec2 client " + ec2Client.toString());
+        	
+        	
+        	if (daemonPort != null) {
+        		runDaemon(daemonPort);
+        	}
+        	else if (batchScript != null) {
+        		// Run the script. The number of concurrent commands can be set with -Dec2.batch.parallelism.
+        		new BatchUI(ec2Client, batchScript, 
+        				Integer.getInteger("ec2.batch.parallelism", BatchUI.DEFAULT_PARALLELISM)).processUserInput();
+        	}
+        	else {
+				// Instantiate SmpleUI class.
+        		start = System.nanoTime();
+				sui = new SimpleUI(ec2Client);
+				startup.record("Display menu", start);
+			
+				// Process user's input.
+				sui.processUserInput();
+        	}
+		}
+		else 
+			String.format("Error %s", "Main: authorized EC2 client object is null.");
+		
+		metrics.stopExport();
+		
+		if (fakeServer != null)
+			fakeServer.stop();
+		
+		startup.display();
+		
+		Utility.displayGoodbyeMessage("AWS EC2");	
+	}
+	
+	/*
+	 * Serves the operations over HTTP until the process is stopped.
+	 */
+	private static void runDaemon(int port) {
+		try {
+			EC2Daemon daemon = new EC2Daemon(ec2Client, port);
+			daemon.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop));
+			System.out.println(String.format("Serving the EC2 operations at %s. Stop with Ctrl-C.", daemon.getUrl()));
+			System.out.println(String.format("The bearer token of this run is in %s", daemon.getTokenFile()));
+			startup.display();
+			daemon.await();
+		}
+		catch (IOException e) {
+			System.out.println(String.format("Cannot start the daemon: %s", e.getMessage()));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * Creates the clients on a background thread. Errors are displayed as soon as they occur,
+	 * and thrown again by the first call to a client.
+	 */
+	private static CompletableFuture<Map<String, AmazonEC2>> createClientsAsync(boolean allRegions) {
+		CompletableFuture<Map<String, AmazonEC2>> future = new CompletableFuture<Map<String, AmazonEC2>>();
+		Thread thread = new Thread(() -> {
+			long start = System.nanoTime();
+			try {
+				future.complete(createClients(allRegions));
+				startup.record("Create client(s) in background, total", start);
+			} 
+	        catch (AmazonServiceException ase) {
+		        	StringBuffer err = new StringBuffer();
+		        	
+		        	err.append(("Caught an AmazonServiceException, which means your request made it "
+		                      + "to Amazon EC2, but was rejected with an error response for some reason."));
+		       	   	err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+		       	   	err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+		       	   	err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+		       	   	err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+		       	   	err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+		        	
+		       	   	System.out.println(err.toString());
+		       	   	future.completeExceptionally(ase);
+	    	} 
+			catch (AmazonClientException ace) {
+		            System.out.println("Caught an AmazonClientException, which means the client encountered "
+		                    + "a serious internal problem while trying to communicate with EC2 , "
+		                    + "such as not being able to access the network.");
+		            System.out.println("Error Message: " + ace.getMessage());
+		            future.completeExceptionally(ace);
+			}
+			catch (RuntimeException e) {
+				System.out.println(String.format("Cannot create the Ec2 client: %s", e.getMessage()));
+				future.completeExceptionally(e);
+			}
+		}, "ec2-client-init");
+		thread.setDaemon(true);
+		thread.start();
+		return future;
+	}
+	
+	/*
+	 * Creates the authenticated clients, keyed by region name, points them to another endpoint 
+	 * if requested, and decorates them.
+	 */
+	private static Map<String, AmazonEC2> createClients(boolean allRegions) {
+		String endpoint = System.getProperty("ec2.endpoint");
+		
+		// Select the regions.
+		Map<String, Regions> regions = new HashMap<String, Regions>();
+		if (allRegions) {
+			for (Map.Entry<String, Enum<Regions>> entry : Utility.ec2Regions.entrySet())
+				regions.put(entry.getKey(), (Regions) entry.getValue());
+		}
+		else
+			regions.put(region, currentRegion);
+		
+		long start = System.nanoTime();
+		Map<String, AmazonEC2> clients = new HashMap<String, AmazonEC2>();
+		// The SDK retries are turned off at creation: the retry layer is the only one.
+		if ("local".equals(endpoint)) {
+			// The local endpoint does not check the signatures: no credentials are needed.
+			for (String name : regions.keySet())
+				clients.put(name, EC2ClientFactory.createLocal(RetryingEC2Client.newClientConfiguration()));
+		}
+		else {
+			for (Map.Entry<String, Regions> entry : regions.entrySet())
+				clients.put(entry.getKey(), EC2ClientFactory.create(entry.getValue(), 
+						RetryingEC2Client.newClientConfiguration()));
+		}
+		startup.record("Resolve credentials, create client(s)", start);
+		
+		// Point the clients to another endpoint, if requested.
+		if (endpoint != null && !endpoint.isEmpty()) {
+			start = System.nanoTime();
+			overrideEndpoint(endpoint, clients.values());
+			startup.record("Set endpoint", start);
+		}
+		
+		// Limit the rate and the concurrency of the calls made by all the operations,
+		// retry the calls that fail with transient errors, and record their statistics.
+		metrics.install();
+		for (Map.Entry<String, AmazonEC2> entry : clients.entrySet())
+			entry.setValue(decorate(entry.getValue()));
+		return clients;
+	}
+	
+	/*
+	 * Wraps a client in a rate limiter, then in a retry layer, so that each attempt goes through 
+	 * the limiter, then in the metering layer, so that the call latency includes both. EC2 limits 
+	 * the calls per region, so each region client gets its own limiter. The clients are created 
+	 * without SDK retries: the retry layer is the only one. See RateLimitedEC2Client#wrap and 
+	 * RetryingEC2Client#wrap for the settings.
+	 */
+	private static AmazonEC2 decorate(AmazonEC2 client) {
+		return MeteredEC2Client.wrap(RetryingEC2Client.wrap(RateLimitedEC2Client.wrap(client)), metrics);
+	}
+	
+	/*
+	 * Sets the endpoint of the clients, for example http://localhost:8000 for a FakeEC2Server
+	 * started separately. The value "local" starts a FakeEC2Server in this process, configured
+	 * by the ec2.fake.* system properties.
+	 */
+	private static void overrideEndpoint(String endpoint, Collection<AmazonEC2> clients) {
+		if ("local".equals(endpoint)) {
+			try {
+				fakeServer = FakeEC2Server.fromSystemProperties(region);
+				fakeServer.start();
+				endpoint = fakeServer.getEndpoint();
+			}
+			catch (IOException e) {
+				throw new AmazonClientException("Cannot start the local EC2 endpoint", e);
+			}
+		}
+		System.out.println(String.format("Using EC2 endpoint %s", endpoint));
+		
+		for (AmazonEC2 client : clients)
+			client.setEndpoint(endpoint);
+	}
+
+}
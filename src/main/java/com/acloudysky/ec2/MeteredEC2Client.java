@@ -0,0 +1,77 @@
+package com.acloudysky.ec2;
+
+import java.lang.reflect.Method;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * Records the count, the errors and the latency of each EC2 call in an {@link EC2Metrics}.
+ * Wrap it around the retry layer, so that the latency is the one the operations see, rate
+ * limiting and retries included:
+ * <pre>
+ * AmazonEC2 client = MeteredEC2Client.wrap(
+ *         RetryingEC2Client.wrap(RateLimitedEC2Client.wrap(authenticatedClient)), metrics);
+ * </pre>
+ */
+public class MeteredEC2Client extends EC2ClientDecorator {
+
+	private final EC2Metrics metrics;
+
+	// Metered client.
+	private final AmazonEC2 meteredClient;
+
+	/**
+	 * Wraps a client.
+	 * @param client The EC2 client.
+	 * @param metrics Receives the statistics.
+	 */
+	public MeteredEC2Client(AmazonEC2 client, EC2Metrics metrics) {
+		super(client);
+		this.metrics = metrics;
+		meteredClient = newProxy();
+	}
+
+	/**
+	 * Wraps a client.
+	 * @param client The EC2 client.
+	 * @param metrics Receives the statistics.
+	 * @return The metered client.
+	 */
+	public static AmazonEC2 wrap(AmazonEC2 client, EC2Metrics metrics) {
+		return new MeteredEC2Client(client, metrics).getClient();
+	}
+
+	/**
+	 * Gets the metered client.
+	 * @return The client.
+	 */
+	public AmazonEC2 getClient() {
+		return meteredClient;
+	}
+
+	/**
+	 * Gets the statistics.
+	 * @return The metrics.
+	 */
+	public EC2Metrics getMetrics() {
+		return metrics;
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	@Override
+	protected Object call(Method method, Object[] args) throws Throwable {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Object result = invokeClient(method, args);
+			failed = false;
+			return result;
+		}
+		finally {
+			metrics.recordCall(method.getName(), System.nanoTime() - start, failed);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.AvailabilityZone;
+
+/**
+ * Performs read operations in all the configured regions at once.
+ * It holds one authenticated client per region and sends the calls to all the regions
+ * concurrently, so a fleet wide view takes about as long as the slowest region instead
+ * of the sum of all of them. The results are merged into a single report.
+ * @see IUtility#ec2Regions
+ */
+public class MultiRegionOperations {
+
+	/**
+	 * Availability zones and instance count of a region.
+	 */
+	public static class RegionReport {
+
+		private final String region;
+		private final List<AvailabilityZone> availabilityZones;
+		private final long instanceCount;
+		private final String error;
+
+		RegionReport(String region, List<AvailabilityZone> availabilityZones, long instanceCount, String error) {
+			this.region = region;
+			this.availabilityZones = availabilityZones;
+			this.instanceCount = instanceCount;
+			this.error = error;
+		}
+
+		public String getRegion() {
+			return region;
+		}
+
+		public List<AvailabilityZone> getAvailabilityZones() {
+			return availabilityZones;
+		}
+
+		public long getInstanceCount() {
+			return instanceCount;
+		}
+
+		/**
+		 * Gets the error that prevented the region from being described.
+		 * @return The error message, or null if the region was described.
+		 */
+		public String getError() {
+			return error;
+		}
+	}
+
+	// Authenticated clients, keyed by region name, sorted by region name.
+	private final Map<String, AmazonEC2> clients;
+
+	// One thread per region.
+	private final ExecutorService executor;
+
+	/**
+	 * Initializes the multi-region operations.
+	 * @param regionClients Authenticated EC2 clients keyed by region name, for example "us-west-2".
+	 */
+	public MultiRegionOperations(Map<String, AmazonEC2> regionClients) {
+		clients = Collections.unmodifiableMap(new TreeMap<String, AmazonEC2>(regionClients));
+
+		// The calls are blocking, so use as many threads as the calls sent at the same time.
+		executor = Executors.newFixedThreadPool(Math.max(1, 2 * clients.size()), runnable -> {
+			Thread thread = new Thread(runnable, "ec2-region");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Gets the regions handled by this object.
+	 * @return The region names.
+	 */
+	public List<String> getRegions() {
+		return new ArrayList<String>(clients.keySet());
+	}
+
+	/**
+	 * Describes the availability zones and counts the instances of every region.
+	 * All the calls are sent concurrently.
+	 * @return The report of each region, keyed by region name.
+	 */
+	public Map<String, RegionReport> describeRegions() {
+
+		// Start the zone and instance calls of all regions.
+		Map<String, CompletableFuture<List<AvailabilityZone>>> zones =
+				new LinkedHashMap<String, CompletableFuture<List<AvailabilityZone>>>();
+		Map<String, CompletableFuture<Long>> counts = new LinkedHashMap<String, CompletableFuture<Long>>();
+		for (Map.Entry<String, AmazonEC2> entry : clients.entrySet()) {
+			AmazonEC2 client = entry.getValue();
+			zones.put(entry.getKey(), CompletableFuture.supplyAsync(
+					() -> client.describeAvailabilityZones().getAvailabilityZones(), executor));
+			counts.put(entry.getKey(), CompletableFuture.supplyAsync(
+					() -> new InstancePager(client).stream().count(), executor));
+		}
+
+		// Merge the results.
+		Map<String, RegionReport> reports = new LinkedHashMap<String, RegionReport>();
+		for (String region : clients.keySet()) {
+			try {
+				reports.put(region, new RegionReport(region, zones.get(region).join(), counts.get(region).join(), null));
+			}
+			catch (CompletionException e) {
+				reports.put(region, new RegionReport(region,
+						Collections.<AvailabilityZone>emptyList(), 0, e.getCause().getMessage()));
+			}
+		}
+		return reports;
+	}
+
+	/**
+	 * Lists the availability zones of all regions, and the instances running in them.
+	 */
+	public void getAvailabilityZones() {
+		StringBuffer buffer = new StringBuffer();
+
+		Map<String, RegionReport> reports = describeRegions();
+
+		int zoneCount = 0;
+		long instanceCount = 0;
+		for (RegionReport report : reports.values()) {
+			if (report.getError() != null) {
+				buffer.append(String.format("%nRegion %s: %s%n", report.getRegion(), report.getError()));
+				continue;
+			}
+			buffer.append(String.format("%nRegion %s, %d availability zones, %d instance(s):%n",
+					report.getRegion(), report.getAvailabilityZones().size(), report.getInstanceCount()));
+			for (AvailabilityZone zone : report.getAvailabilityZones())
+				buffer.append(String.format(" - %s (%s) %n", zone.getZoneName(), zone.getState()));
+
+			zoneCount += report.getAvailabilityZones().size();
+			instanceCount += report.getInstanceCount();
+		}
+		buffer.append(String.format("%nYou have access to %d availability zones in %d regions.", zoneCount, reports.size()));
+		buffer.append(String.format("%nYou have %d Amazon EC2 instance(s) in all regions.", instanceCount));
+
+		System.out.println(buffer.toString());
+	}
+
+	/**
+	 * Stops the region threads.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,264 @@
+package com.acloudysky.ec2;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+
+/**
+ * Limits the rate and the concurrency of the calls made through an EC2 client, so that the
+ * application stays below the EC2 request limits instead of being throttled. Every call made
+ * through the wrapped client goes through two stages:
+ * <ul>
+ * <li>A token bucket per class of actions, as EC2 does: one for the non mutating actions
+ * (Describe*, Get*), one for the mutating actions (RunInstances, CreateTags,
+ * TerminateInstances, ...). A call waits for a token of its bucket.</li>
+ * <li>An adaptive (AIMD) concurrency limit: each successful call raises the limit by
+ * 1/limit, so roughly by one per round of calls; a throttled call halves it and empties
+ * the buckets, so that all the callers back off at once. The limit is halved at most once
+ * per round trip: the calls sent before the last decrease were sent at the old limit, so
+ * their throttling errors do not decrease it again.</li>
+ * </ul>
+ * The wrapper is shared by all the threads using the client: the operations, the inventory,
+ * the state waiter and the terminator all draw from the same buckets.
+ * <pre>
+ * AmazonEC2 client = new RateLimitedEC2Client(authenticatedClient, 20, 5, 32).getClient();
+ * </pre>
+ */
+public class RateLimitedEC2Client extends EC2ClientDecorator {
+
+	/**
+	 * Default rate of the non mutating actions, in calls per second.
+	 */
+	public static final double DEFAULT_DESCRIBE_RATE = 20;
+
+	/**
+	 * Default rate of the mutating actions, in calls per second.
+	 */
+	public static final double DEFAULT_MUTATE_RATE = 5;
+
+	/**
+	 * Default maximum number of concurrent calls.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENCY = 32;
+
+	// Bucket capacities, in seconds of calls at the refill rate.
+	private static final double DESCRIBE_BURST_SECONDS = 5;
+	private static final double MUTATE_BURST_SECONDS = 10;
+
+	// Error codes returned by EC2 and the AWS services when a call is throttled.
+	private static final Set<String> THROTTLING_CODES = new HashSet<String>(Arrays.asList(
+			"RequestLimitExceeded", "Throttling", "ThrottlingException", "RequestThrottled",
+			"RequestThrottledException", "TooManyRequestsException", "SlowDown"));
+
+	/*
+	 * Token bucket. A caller reserves a token, possibly making the balance negative, then
+	 * sleeps until its token is due, so that the callers are served in order.
+	 */
+	private static class TokenBucket {
+		private final double ratePerNano;
+		private final double capacity;
+		private double tokens;
+		private long refilledAt = System.nanoTime();
+
+		TokenBucket(double ratePerSecond, double burstSeconds) {
+			ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+			capacity = Math.max(1, ratePerSecond * burstSeconds);
+			tokens = capacity;
+		}
+
+		void acquire() throws InterruptedException {
+			long wait;
+			synchronized (this) {
+				refill();
+				tokens -= 1;
+				wait = tokens >= 0 ? 0 : (long) (-tokens / ratePerNano);
+			}
+			if (wait > 0)
+				TimeUnit.NANOSECONDS.sleep(wait);
+		}
+
+		synchronized void drain() {
+			refill();
+			tokens = Math.min(tokens, 0);
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+			refilledAt = now;
+		}
+	}
+
+	/*
+	 * Additive increase, multiplicative decrease concurrency limit.
+	 */
+	private static class ConcurrencyLimit {
+		private final int max;
+		private double limit;
+		private int inFlight = 0;
+
+		// Time of the last decrease, in nanoseconds.
+		private long decreasedAt = System.nanoTime();
+
+		ConcurrencyLimit(int max) {
+			this.max = Math.max(1, max);
+			limit = Math.max(1, this.max / 4);
+		}
+
+		// Returns the time the call starts, in nanoseconds.
+		synchronized long acquire() throws InterruptedException {
+			while (inFlight >= (int) limit)
+				wait();
+			inFlight++;
+			return System.nanoTime();
+		}
+
+		synchronized void release(boolean throttled, long startedAt) {
+			inFlight--;
+			if (throttled) {
+				if (startedAt - decreasedAt > 0) {
+					limit = Math.max(1, limit / 2);
+					decreasedAt = System.nanoTime();
+				}
+			}
+			else
+				limit = Math.min(max, limit + 1 / limit);
+			notifyAll();
+		}
+
+		synchronized double get() {
+			return limit;
+		}
+	}
+
+	// Rate limited client.
+	private final AmazonEC2 limitedClient;
+
+	// Buckets of the non mutating and mutating actions. Null when not limited.
+	private final TokenBucket describeBucket;
+	private final TokenBucket mutateBucket;
+
+	private final ConcurrencyLimit concurrency;
+
+	private final AtomicLong throttledCount = new AtomicLong();
+
+	/**
+	 * Wraps a client.
+	 * @param client Authenticated EC2 client.
+	 * @param describeRate Rate of the non mutating actions, in calls per second. 0 for no limit.
+	 * @param mutateRate Rate of the mutating actions, in calls per second. 0 for no limit.
+	 * @param maxConcurrency Maximum number of concurrent calls.
+	 */
+	public RateLimitedEC2Client(AmazonEC2 client, double describeRate, double mutateRate, int maxConcurrency) {
+		super(client);
+		describeBucket = describeRate > 0 ? new TokenBucket(describeRate, DESCRIBE_BURST_SECONDS) : null;
+		mutateBucket = mutateRate > 0 ? new TokenBucket(mutateRate, MUTATE_BURST_SECONDS) : null;
+		concurrency = new ConcurrencyLimit(maxConcurrency);
+
+		limitedClient = newProxy();
+	}
+
+	/**
+	 * Wraps a client with the limits set by the system properties ec2.rate.describe,
+	 * ec2.rate.mutate (calls per second, 0 for no limit) and ec2.concurrency.max.
+	 * @param client Authenticated EC2 client.
+	 * @return The rate limited client.
+	 */
+	public static AmazonEC2 wrap(AmazonEC2 client) {
+		return new RateLimitedEC2Client(client,
+				Double.parseDouble(System.getProperty("ec2.rate.describe", Double.toString(DEFAULT_DESCRIBE_RATE))),
+				Double.parseDouble(System.getProperty("ec2.rate.mutate", Double.toString(DEFAULT_MUTATE_RATE))),
+				Integer.getInteger("ec2.concurrency.max", DEFAULT_MAX_CONCURRENCY)).getClient();
+	}
+
+	/**
+	 * Gets the rate limited client.
+	 * @return The client.
+	 */
+	public AmazonEC2 getClient() {
+		return limitedClient;
+	}
+
+	/**
+	 * Gets the current concurrency limit.
+	 * @return The maximum number of concurrent calls allowed now.
+	 */
+	public double getConcurrencyLimit() {
+		return concurrency.get();
+	}
+
+	/**
+	 * Gets the number of calls throttled by EC2.
+	 * @return The number of throttled calls.
+	 */
+	public long getThrottledCount() {
+		return throttledCount.get();
+	}
+
+	/**
+	 * Checks whether an error is a throttling error.
+	 * @param e The error.
+	 * @return True if the call was throttled.
+	 */
+	public static boolean isThrottling(AmazonServiceException e) {
+		return isThrottlingCode(e.getErrorCode()) || e.getStatusCode() == 429;
+	}
+
+	/**
+	 * Checks whether an error code is a throttling error code.
+	 * @param errorCode The error code, for example RequestLimitExceeded.
+	 * @return True if the code means that the call was throttled.
+	 */
+	public static boolean isThrottlingCode(String errorCode) {
+		return THROTTLING_CODES.contains(errorCode);
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	@Override
+	protected Object call(Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		TokenBucket bucket = isNonMutating(name) ? describeBucket : mutateBucket;
+		long startedAt;
+		try {
+			if (bucket != null)
+				bucket.acquire();
+			startedAt = concurrency.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Interrupted while waiting to call " + name, e);
+		}
+
+		boolean throttled = false;
+		try {
+			return invokeClient(method, args);
+		}
+		catch (AmazonServiceException e) {
+			throttled = isThrottling(e);
+			if (throttled) {
+				throttledCount.incrementAndGet();
+				if (describeBucket != null)
+					describeBucket.drain();
+				if (mutateBucket != null)
+					mutateBucket.drain();
+				if (Main.DEBUG)
+					System.out.println(String.format("RateLimitedEC2Client: %s throttled, concurrency limit %.1f",
+							name, concurrency.get()));
+			}
+			throw e;
+		}
+		finally {
+			concurrency.release(throttled, startedAt);
+		}
+	}
+}
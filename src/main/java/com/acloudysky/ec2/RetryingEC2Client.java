@@ -0,0 +1,210 @@
+package com.acloudysky.ec2;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+/**
+ * Retries the EC2 calls that fail with a transient error: throttling, server errors (5xx)
+ * and I/O errors such as timeouts and reset connections. The delay between attempts uses
+ * decorrelated jitter: each delay is a random value between the base delay and three times
+ * the previous delay, capped, so that clients that failed together do not retry together.
+ * A call gives up when the next attempt would exceed the time budget or the maximum number
+ * of attempts.
+ * <p>
+ * Only the calls that can safely be repeated are retried: the non mutating actions, the
+ * idempotent mutating actions (CreateTags, TerminateInstances, ...) and RunInstances when
+ * the request has a client token. EC2 launches the instances of a client token only once,
+ * so a launch retried after a timeout returns the instances of the first attempt instead of
+ * launching new ones.
+ * </p>
+ * <pre>
+ * AmazonEC2 client = RetryingEC2Client.wrap(RateLimitedEC2Client.wrap(authenticatedClient));
+ * </pre>
+ * Wrap the rate limiter, not the reverse, so that each attempt goes through the limiter.
+ * Create the SDK client without retries of its own ({@link #newClientConfiguration()}): the
+ * SDK would otherwise send up to 4 requests per attempt, past the limiter, and absorb the
+ * throttling errors the limiter adapts to.
+ */
+public class RetryingEC2Client extends EC2ClientDecorator {
+
+	/**
+	 * Default base delay between attempts, in milliseconds.
+	 */
+	public static final long DEFAULT_BASE_DELAY_MILLIS = 100;
+
+	/**
+	 * Default maximum delay between attempts, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 20000;
+
+	/**
+	 * Default time budget of a call, retries included, in milliseconds.
+	 */
+	public static final long DEFAULT_TIME_BUDGET_MILLIS = 60000;
+
+	/**
+	 * Default maximum number of attempts of a call.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+	// Error codes of transient service errors.
+	private static final Set<String> TRANSIENT_CODES = new HashSet<String>(Arrays.asList(
+			"InternalError", "InternalFailure", "ServiceUnavailable", "Unavailable", "RequestTimeout",
+			"RequestTimeoutException"));
+
+	// Mutating actions which have the same effect when repeated.
+	private static final Set<String> IDEMPOTENT_ACTIONS = new HashSet<String>(Arrays.asList(
+			"createTags", "deleteTags", "terminateInstances", "stopInstances", "startInstances",
+			"rebootInstances", "monitorInstances", "unmonitorInstances"));
+
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final long timeBudgetMillis;
+	private final int maxAttempts;
+
+	// Retrying client.
+	private final AmazonEC2 retryingClient;
+
+	private final AtomicLong retryCount = new AtomicLong();
+
+	/**
+	 * Wraps a client.
+	 * @param client The EC2 client.
+	 * @param baseDelay Base delay between attempts, in milliseconds.
+	 * @param maxDelay Maximum delay between attempts, in milliseconds.
+	 * @param timeBudget Time budget of a call, retries included, in milliseconds.
+	 * @param attempts Maximum number of attempts of a call.
+	 */
+	public RetryingEC2Client(AmazonEC2 client, long baseDelay, long maxDelay, long timeBudget, int attempts) {
+		super(client);
+		baseDelayMillis = Math.max(1, baseDelay);
+		maxDelayMillis = Math.max(baseDelayMillis, maxDelay);
+		timeBudgetMillis = timeBudget;
+		maxAttempts = Math.max(1, attempts);
+		retryingClient = newProxy();
+	}
+
+	/**
+	 * Wraps a client with the time budget and the attempts set by the system properties
+	 * ec2.retry.budget.millis and ec2.retry.max.attempts (1 disables the retries).
+	 * @param client The EC2 client.
+	 * @return The retrying client.
+	 */
+	public static AmazonEC2 wrap(AmazonEC2 client) {
+		return new RetryingEC2Client(client, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+				Long.getLong("ec2.retry.budget.millis", DEFAULT_TIME_BUDGET_MILLIS),
+				Integer.getInteger("ec2.retry.max.attempts", DEFAULT_MAX_ATTEMPTS)).getClient();
+	}
+
+	/**
+	 * Creates the configuration of an SDK client without retries of its own. Pass it to the
+	 * client when it is created.
+	 * @return The configuration.
+	 * @see EC2ClientFactory
+	 */
+	public static ClientConfiguration newClientConfiguration() {
+		return new ClientConfiguration()
+				.withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY)
+				.withMaxErrorRetry(0);
+	}
+
+	/**
+	 * Gets the retrying client.
+	 * @return The client.
+	 */
+	public AmazonEC2 getClient() {
+		return retryingClient;
+	}
+
+	/**
+	 * Gets the number of attempts made after a failure.
+	 * @return The number of retries.
+	 */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * Checks whether an error is transient, that is whether the same call may succeed later.
+	 * A zone out of capacity is not: the launch is better moved to another zone.
+	 * @param e The error.
+	 * @return True for throttling, server and I/O errors.
+	 * @see LaunchPlanner#isInsufficientCapacity(AmazonServiceException)
+	 */
+	public static boolean isTransient(AmazonClientException e) {
+		if (e instanceof AmazonServiceException) {
+			AmazonServiceException ase = (AmazonServiceException) e;
+			if (LaunchPlanner.isInsufficientCapacity(ase))
+				return false;
+			return RateLimitedEC2Client.isThrottling(ase) || ase.getStatusCode() >= 500
+					|| TRANSIENT_CODES.contains(ase.getErrorCode());
+		}
+		return e.getCause() instanceof IOException;
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	@Override
+	protected Object call(Method method, Object[] args) throws Throwable {
+		if (!isRepeatable(method.getName(), args))
+			return invokeClient(method, args);
+
+		long start = System.currentTimeMillis();
+		long delay = baseDelayMillis;
+		for (int attempt = 1;; attempt++) {
+			try {
+				return invokeClient(method, args);
+			}
+			catch (AmazonClientException e) {
+				if (!isTransient(e) || attempt >= maxAttempts)
+					throw e;
+
+				// Decorrelated jitter.
+				long bound = Math.max(baseDelayMillis + 1, delay * 3);
+				delay = Math.min(maxDelayMillis, ThreadLocalRandom.current().nextLong(baseDelayMillis, bound));
+				if (System.currentTimeMillis() - start + delay > timeBudgetMillis)
+					throw e;
+
+				retryCount.incrementAndGet();
+				if (Main.DEBUG)
+					System.out.println(String.format("RetryingEC2Client: %s attempt %d failed (%s), retrying in %d ms",
+							method.getName(), attempt, e.getMessage(), delay));
+				try {
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Checks whether a call has the same effect when repeated.
+	 */
+	private static boolean isRepeatable(String methodName, Object[] args) {
+		if (isNonMutating(methodName) || IDEMPOTENT_ACTIONS.contains(methodName))
+			return true;
+		if ("runInstances".equals(methodName) && args != null && args.length > 0
+				&& args[0] instanceof RunInstancesRequest) {
+			String token = ((RunInstancesRequest) args[0]).getClientToken();
+			return token != null && !token.isEmpty();
+		}
+		return false;
+	}
+}
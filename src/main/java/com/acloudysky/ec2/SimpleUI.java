@@ -3,9 +3,13 @@ package com.acloudysky.ec2;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import com.acloudysky.ec2.Utility;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.Tag;
 
 /**
 * Displays the menu of choices for the user. 
@@ -27,6 +31,9 @@ public class SimpleUI extends UserInterface {
 	private String instanceName; 
 	private String instanceOwner;
 	
+	// Maximum time to wait for instances to reach a state.
+	static final long WAIT_TIMEOUT_MILLIS = 10 * 60 * 1000;
+	
 	/**
 	 * Initializes the SimpleUI class along with its superclass.
 	 * @param client Authenticated AWS client.  
@@ -68,6 +75,24 @@ public class SimpleUI extends UserInterface {
 
 	}
 	
+	/**
+	 * Read user input, showing the value used when the input is empty.
+	 */
+	private static String readUserInputOrDefault(String msg, String defaultValue) {
+		String value = readUserInput(String.format("%s [%s]: ", msg, defaultValue)).trim();
+		return value.isEmpty() ? defaultValue : value;
+	}
+	
+	/**
+	 * Asks the user to confirm a change by typing yes.
+	 */
+	private static boolean confirm(String question) {
+		boolean confirmed = "yes".equalsIgnoreCase(readUserInput(question + " Type yes to confirm: ").trim());
+		if (!confirmed)
+			System.out.println("Nothing changed");
+		return confirmed;
+	}
+	
 	
 	/**
 	 * Executes the selected operation.
@@ -84,9 +109,17 @@ public class SimpleUI extends UserInterface {
 						// Obtain key pair name, for example DocLabKeys_OR
 						keyName = readUserInput("EC2 key pair name: ");	
 					} while(keyName.isEmpty());
+					// The default launch profile gives the default values.
+					LaunchProfiles.Profile defaults = EC2Operations.getLaunchProfile(LaunchProfiles.DEFAULT_PROFILE);
+					String count = readUserInputOrDefault("Number of instances", "1");
+					String imageId = readUserInputOrDefault("Image Id", defaults.getImageId());
+					String instanceType = readUserInputOrDefault("Instance type", defaults.getInstanceType());
+					String subnetId = readUserInputOrDefault("Subnet Id", defaults.getSubnetId());
+					String zone = readUserInputOrDefault("Availability zone (* for all zones)", defaults.getZone());
+					String wait = readUserInputOrDefault("Seconds to wait for running (0 for no wait)", "0");
 					EC2Operations.createInstances(ec2Client, 
-							"ami-7172b611", "t2.micro", 1, keyName, 
-							"subnet-06223c5f", "us-west-2c");
+							imageId, instanceType, Integer.valueOf(count), keyName, 
+							subnetId, zone, Long.parseLong(wait) * 1000);
 					
 				}
 				catch (Exception e){
@@ -98,18 +131,52 @@ public class SimpleUI extends UserInterface {
 				try{
 					// Terminate EC2 instance(s).
 					do {
-						instanceId = readUserInput("Instance Id: ");
-					} while(instanceId.isEmpty());
-					Boolean terminated = EC2Operations.terminateInstances(instanceId);
-					if (terminated) {
-						System.out.println(String.format("%s", "Instances terminated"));
+						instanceId = readUserInput("Instance Id(s), separated by blanks or commas: ");
+					} while(instanceId.trim().isEmpty());
+					List<String> instanceIds = Arrays.asList(instanceId.trim().split("[\\s,]+"));
+					Map<String, InstanceTerminator.Result> results = EC2Operations.terminateInstances(instanceIds);
+					int terminated = 0;
+					for (InstanceTerminator.Result result : results.values()) {
+						System.out.println(result.toString());
+						if (result.isTerminated())
+							terminated++;
 					}
+					System.out.println(String.format("%d of %d instances terminated", terminated, results.size()));
 				}
 				catch (Exception e){
 					System.out.println(String.format("%s", e.getMessage()));
 				}
 				break;
 		
+			case "wi":
+				try{
+					// Wait for EC2 instance(s) to reach a state.
+					do {
+						instanceId = readUserInput("Instance Id(s), separated by blanks or commas: ");
+					} while(instanceId.trim().isEmpty());
+					String state = readUserInput("State (running, stopped, terminated) [running]: ").trim();
+					if (state.isEmpty())
+						state = "running";
+					List<String> instanceIds = Arrays.asList(instanceId.trim().split("[\\s,]+"));
+					int reached = EC2Operations.waitForInstances(instanceIds, state, WAIT_TIMEOUT_MILLIS);
+					System.out.println(String.format("%d of %d instances are %s", reached, instanceIds.size(), state));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+		
+			case "rf":
+				try{
+					// Set the format of the instance reports.
+					String format = readUserInput("Report format (text, csv, json): ").trim().toUpperCase();
+					EC2Operations.setReportFormat(InstanceReportRenderer.Format.valueOf(format));
+				}
+				catch (IllegalArgumentException e){
+					System.out.println(String.format("Allowed formats: %s", Arrays.toString(InstanceReportRenderer.Format.values())));
+				}
+				break;
+		
 			case "az":
 				// Operation 3
 				try{
@@ -121,6 +188,16 @@ public class SimpleUI extends UserInterface {
 				}
 				break;
 				
+			case "ra":
+				try{
+					// List the availability zones and instances of all the regions.
+					EC2Operations.getAllRegionsAvailabilityZones();
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+				
 			case "ik": {
 				try{
 					// Get info for the instances with specified key pair.
@@ -166,6 +243,130 @@ public class SimpleUI extends UserInterface {
 				break;
 			}
 			
+			case "wa": {
+				try{
+					// Watch instances and display their changes.
+					keyName = readUserInput("EC2 key pair name (empty for all instances): ").trim();
+					String interval = readUserInputOrDefault("Interval in seconds", 
+							String.valueOf(InstanceWatcher.DEFAULT_INTERVAL_MILLIS / 1000));
+					String duration = readUserInputOrDefault("Duration in seconds", "300");
+					EC2Operations.watchInstances(keyName.isEmpty() ? null : keyName, 
+							Long.parseLong(interval) * 1000, Long.parseLong(duration) * 1000);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "fa":
+				try{
+					// Count the instances by attribute.
+					String top = readUserInputOrDefault("Values displayed per attribute", "10");
+					EC2Operations.getFleetAggregation(Integer.parseInt(top));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			
+			case "st":
+				// Display the EC2 call statistics.
+				EC2Operations.getCallStatistics();
+				break;
+			
+			case "tq":
+				try{
+					// Get the instances matching a tag expression.
+					String expression;
+					do {
+						expression = readUserInput("Tag expression, for example env=prod AND owner!=ci: ");
+					} while(expression.trim().isEmpty());
+					EC2Operations.getInstancesByTags(expression);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			
+			case "ta":
+				try{
+					// Set a tag on the instances matching a tag expression.
+					String expression;
+					do {
+						expression = readUserInput("Tag expression, for example env=prod AND owner!=ci: ");
+					} while(expression.trim().isEmpty());
+					TagQuery query = TagQuery.parse(expression);
+					String key;
+					do {
+						key = readUserInput("Tag key: ").trim();
+					} while(key.isEmpty());
+					String value = readUserInput("Tag value: ").trim();
+					List<String> ids = EC2Operations.previewInstancesByTags(query);
+					if (ids.isEmpty() || !confirm(String.format("Tag these %d instance(s) %s=%s?", ids.size(), key, value)))
+						break;
+					int tagged = EC2Operations.setInstanceTags(query, ids, new Tag(key, value));
+					System.out.println(String.format("%d instance(s) tagged %s=%s", tagged, key, value));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			
+			case "tt":
+				try{
+					// Terminate the instances matching a tag expression.
+					String expression;
+					do {
+						expression = readUserInput("Tag expression, for example env=test AND owner=ci: ");
+					} while(expression.trim().isEmpty());
+					TagQuery query = TagQuery.parse(expression);
+					List<String> ids = EC2Operations.previewInstancesByTags(query);
+					if (ids.isEmpty() || !confirm(String.format("Terminate these %d instance(s)?", ids.size())))
+						break;
+					Map<String, InstanceTerminator.Result> results = EC2Operations.terminateInstances(query, ids);
+					int terminated = 0;
+					for (InstanceTerminator.Result result : results.values()) {
+						System.out.println(result.toString());
+						if (result.isTerminated())
+							terminated++;
+					}
+					System.out.println(String.format("%d of %d instances terminated", terminated, results.size()));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			
+			case "lp":
+				// List the launch profiles.
+				EC2Operations.getLaunchProfiles();
+				break;
+			
+			case "cp":
+				try{
+					// Create EC2 instance(s) from a launch profile.
+					String name = readUserInputOrDefault("Launch profile", LaunchProfiles.DEFAULT_PROFILE);
+					LaunchProfiles.Profile profile = EC2Operations.getLaunchProfile(name);
+					if (profile == null) {
+						System.out.println(String.format("Unknown launch profile %s", name));
+						break;
+					}
+					String key = profile.getKeyName();
+					if (key == null) {
+						do {
+							key = readUserInput("EC2 key pair name: ");	
+						} while(key.isEmpty());
+					}
+					String count = readUserInputOrDefault("Number of instances", String.valueOf(profile.getCount()));
+					String wait = readUserInputOrDefault("Seconds to wait for running (0 for no wait)", "0");
+					EC2Operations.createInstances(name, key, Integer.valueOf(count), Long.parseLong(wait) * 1000);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			
 			default:
 				// Enter allowed value
 				System.out.println(String.format("Select one of the allowed values from the menu"));
@@ -0,0 +1,82 @@
+package com.acloudysky.ec2;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Shares the result of a call between the callers asking for the same key at the same
+ * time: the first caller makes the call, the callers arriving while it runs wait for its
+ * result instead of making their own. Nothing is cached: a caller arriving after the call
+ * completed makes a new one.
+ * <pre>
+ * SingleFlight&lt;InstanceQuery, List&lt;InstanceSummary&gt;&gt; lookups = new SingleFlight&lt;&gt;();
+ * List&lt;InstanceSummary&gt; instances = lookups.execute(query,
+ *         () -&gt; query.summaries(client).collect(Collectors.toList()));
+ * </pre>
+ * The keys must implement equals and hashCode, and must not change while in flight. The
+ * callers share the result object: it should not be modified.
+ * @param <K> The key type.
+ * @param <V> The result type.
+ */
+public class SingleFlight<K, V> {
+
+	// Calls in flight, by key.
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+	/**
+	 * Makes the call, or waits for the call in flight with the same key.
+	 * @param key The key identifying the call.
+	 * @param call The call, made on the calling thread if no call with the same key is in flight.
+	 * @return The result of the call.
+	 * @throws RuntimeException The exception thrown by the call, to all the waiting callers.
+	 */
+	public V execute(K key, Supplier<V> call) {
+		CompletableFuture<V> future = new CompletableFuture<V>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			if (Main.DEBUG)
+				System.out.println(String.format("SingleFlight: joining the call in flight for %s", key));
+			return join(existing);
+		}
+
+		try {
+			V result = call.get();
+			future.complete(result);
+			return result;
+		}
+		catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	/**
+	 * Gets the number of calls in flight.
+	 * @return The number of distinct keys being called.
+	 */
+	public int size() {
+		return inFlight.size();
+	}
+
+	/*
+	 * Waits for a result, throwing the exception of the call as is.
+	 */
+	static <V> V join(CompletableFuture<V> future) {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw e;
+		}
+	}
+}
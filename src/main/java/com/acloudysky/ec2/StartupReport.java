@@ -0,0 +1,103 @@
+package com.acloudysky.ec2;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each startup phase takes, on whatever thread it runs, and displays the
+ * phases in the order they ended. Enabled with -Dec2.startup.report=true; when disabled the
+ * recording costs nothing, and the management classes needed to read the JVM start time are
+ * not loaded.
+ * <pre>
+ * long start = System.nanoTime();
+ * createClient();
+ * startup.record("Create client", start);
+ * </pre>
+ */
+public class StartupReport {
+
+	/*
+	 * A completed phase.
+	 */
+	private static class Phase {
+		final String name;
+		final String thread;
+		final long startNanos;
+		final long endNanos;
+
+		Phase(String name, String thread, long startNanos, long endNanos) {
+			this.name = name;
+			this.thread = thread;
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
+		}
+	}
+
+	private final boolean enabled;
+
+	// Time origin: entry in main.
+	private final long originNanos;
+
+	// Time from the JVM start to main, in milliseconds. Negative if unknown.
+	private final long jvmStartMillis;
+
+	// Completed phases. Guarded by this.
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	/**
+	 * Starts the report. Create it first thing in main.
+	 * @param enabled False to record nothing.
+	 */
+	public StartupReport(boolean enabled) {
+		this.enabled = enabled;
+		originNanos = System.nanoTime();
+		jvmStartMillis = enabled
+				? System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime() : -1;
+	}
+
+	/**
+	 * Checks whether the report is enabled.
+	 * @return True if the phases are recorded.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Records a phase which ends now.
+	 * @param name The phase name.
+	 * @param startNanos The phase start, from System.nanoTime().
+	 */
+	public void record(String name, long startNanos) {
+		if (!enabled)
+			return;
+		Phase phase = new Phase(name, Thread.currentThread().getName(), startNanos, System.nanoTime());
+		synchronized (this) {
+			phases.add(phase);
+		}
+	}
+
+	/**
+	 * Displays the phases: start and end since main was entered, and duration, in milliseconds.
+	 */
+	public synchronized void display() {
+		if (!enabled)
+			return;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%nStartup phases (ms since main)%n"));
+		report.append(String.format("%-44s %8s %8s %8s  %s%n", "Phase", "Start", "End", "Time", "Thread"));
+		if (jvmStartMillis >= 0)
+			report.append(String.format("%-44s %8d %8d %8d  %s%n", "JVM start to main", -jvmStartMillis, 0, jvmStartMillis, "-"));
+		for (Phase phase : phases)
+			report.append(String.format("%-44s %8d %8d %8d  %s%n", phase.name,
+					millis(phase.startNanos - originNanos), millis(phase.endNanos - originNanos),
+					millis(phase.endNanos - phase.startNanos), phase.thread));
+		System.out.print(report.toString());
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
@@ -0,0 +1,332 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index of the instance tags: tag key, then tag value, then the set of instances
+ * with that tag. Each instance gets a small integer slot, reused after its removal, so that
+ * the sets are bitmaps and a {@link TagQuery} is evaluated with word-wide AND, OR and AND
+ * NOT operations instead of a scan of the instances.
+ * <pre>
+ * TagIndex index = new TagIndex();
+ * instances.forEach(index::add);
+ * List&lt;String&gt; ids = index.select(TagQuery.parse("env=prod AND owner!=ci"));
+ * </pre>
+ * A set is kept as a sorted array of slots while it is sparse, for example the instances of
+ * one Name value, and as a bitmap once the bitmap is smaller, as in compressed bitmaps. The
+ * values of each key are sorted, so a prefix value (web-*) reads only the values with the
+ * prefix. The index is thread safe: queries share a read lock, changes take the write lock.
+ */
+public class TagIndex {
+
+	/*
+	 * Instances with one tag value: a sorted array of slots while sparse, then a bitmap.
+	 */
+	private static class Postings {
+		private int[] slots = new int[2];
+		private int size = 0;
+		private BitSet bits = null;
+
+		void add(int slot, int slotCount) {
+			if (bits != null) {
+				bits.set(slot);
+				return;
+			}
+			int position = Arrays.binarySearch(slots, 0, size, slot);
+			if (position >= 0)
+				return;
+			position = -position - 1;
+			// An array slot costs 32 bits, a bitmap 1 bit per instance.
+			if ((size + 1) * 32L > slotCount && slotCount >= 64) {
+				bits = new BitSet(slotCount);
+				for (int i = 0; i < size; i++)
+					bits.set(slots[i]);
+				bits.set(slot);
+				slots = null;
+				return;
+			}
+			if (size == slots.length)
+				slots = Arrays.copyOf(slots, size * 2);
+			System.arraycopy(slots, position, slots, position + 1, size - position);
+			slots[position] = slot;
+			size++;
+		}
+
+		void remove(int slot) {
+			if (bits != null) {
+				bits.clear(slot);
+				return;
+			}
+			int position = Arrays.binarySearch(slots, 0, size, slot);
+			if (position < 0)
+				return;
+			System.arraycopy(slots, position + 1, slots, position, size - position - 1);
+			size--;
+		}
+
+		boolean isEmpty() {
+			return bits != null ? bits.isEmpty() : size == 0;
+		}
+
+		void addTo(BitSet result) {
+			if (bits != null)
+				result.or(bits);
+			else
+				for (int i = 0; i < size; i++)
+					result.set(slots[i]);
+		}
+	}
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Slot of each instance id, and id of each slot. Guarded by lock.
+	private final Map<String, Integer> slotById = new HashMap<String, Integer>();
+	private String[] idBySlot = new String[64];
+	private int slotCount = 0;
+
+	// Slots in use, and slots free for reuse. Guarded by lock.
+	private final BitSet live = new BitSet();
+	private final BitSet free = new BitSet();
+
+	// Instances by tag key and tag value, both case sensitive as in EC2. Guarded by lock.
+	private final Map<String, NavigableMap<String, Postings>> postings = new HashMap<String, NavigableMap<String, Postings>>();
+
+	/**
+	 * Indexes the tags of an instance. An instance already indexed must be removed first.
+	 * @param instance The instance.
+	 */
+	public void add(InstanceSummary instance) {
+		lock.writeLock().lock();
+		try {
+			String id = instance.getInstanceId();
+			Integer existing = slotById.get(id);
+			int slot = existing != null ? existing : allocate(id);
+			for (int i = 0; i < instance.getTagCount(); i++)
+				postings.computeIfAbsent(instance.getTagKey(i), key -> new TreeMap<String, Postings>())
+						.computeIfAbsent(valueOf(instance.getTagValue(i)), value -> new Postings())
+						.add(slot, slotCount);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the tags an instance is indexed with, in one change, so that a concurrent
+	 * query sees either the old tags or the new ones.
+	 * @param old The instance as added, or null if it is not indexed yet.
+	 * @param instance The instance with its new tags.
+	 */
+	public void replace(InstanceSummary old, InstanceSummary instance) {
+		lock.writeLock().lock();
+		try {
+			Integer slot = old == null ? null : slotById.get(old.getInstanceId());
+			if (slot != null)
+				unpost(old, slot);
+			add(instance);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes an instance, with the tags it was indexed with.
+	 * @param instance The instance as added.
+	 */
+	public void remove(InstanceSummary instance) {
+		lock.writeLock().lock();
+		try {
+			Integer slot = slotById.remove(instance.getInstanceId());
+			if (slot == null)
+				return;
+			unpost(instance, slot);
+			idBySlot[slot] = null;
+			live.clear(slot);
+			free.set(slot);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Selects the instances matching a query.
+	 * @param query The query.
+	 * @return The ids of the matching instances.
+	 */
+	public List<String> select(TagQuery query) {
+		lock.readLock().lock();
+		try {
+			BitSet matching = query.evaluate(this);
+			List<String> ids = new ArrayList<String>(matching.cardinality());
+			for (int slot = matching.nextSetBit(0); slot >= 0; slot = matching.nextSetBit(slot + 1))
+				ids.add(idBySlot[slot]);
+			return ids;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Counts the instances matching a query.
+	 * @param query The query.
+	 * @return The number of matching instances.
+	 */
+	public int count(TagQuery query) {
+		lock.readLock().lock();
+		try {
+			return query.evaluate(this).cardinality();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of indexed instances.
+	 * @return The number of instances.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return slotById.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Evaluation, called by TagQuery with the read lock held *
+	 */
+
+	/*
+	 * Slots of all the instances.
+	 */
+	BitSet allSlots() {
+		return (BitSet) live.clone();
+	}
+
+	/*
+	 * Slots of the instances with the tag, the value taken literally.
+	 */
+	BitSet matchingValue(String key, String value) {
+		BitSet result = new BitSet(slotCount);
+		NavigableMap<String, Postings> values = postings.get(key);
+		Postings instances = values == null ? null : values.get(value);
+		if (instances != null)
+			instances.addTo(result);
+		return result;
+	}
+
+	/*
+	 * Slots of the instances with the tag, the value a pattern with * and ? wildcards.
+	 */
+	BitSet matchingPattern(String key, String pattern) {
+		int wildcard = indexOfWildcard(pattern);
+		if (wildcard < 0)
+			return matchingValue(key, pattern);
+
+		BitSet result = new BitSet(slotCount);
+		NavigableMap<String, Postings> values = postings.get(key);
+		if (values == null)
+			return result;
+
+		// Only the values starting with the literal prefix can match.
+		String prefix = pattern.substring(0, wildcard);
+		NavigableMap<String, Postings> candidates = prefix.isEmpty() ? values : values.tailMap(prefix, true);
+		boolean prefixOnly = wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '*';
+		Pattern regex = prefixOnly ? null : toRegex(pattern);
+		for (Map.Entry<String, Postings> entry : candidates.entrySet()) {
+			if (!entry.getKey().startsWith(prefix))
+				break;
+			if (regex == null || regex.matcher(entry.getKey()).matches())
+				entry.getValue().addTo(result);
+		}
+		return result;
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	/*
+	 * Removes the slot from the postings of the instance's tags. Called with the write lock.
+	 */
+	private void unpost(InstanceSummary instance, int slot) {
+		for (int i = 0; i < instance.getTagCount(); i++) {
+			String key = instance.getTagKey(i);
+			NavigableMap<String, Postings> values = postings.get(key);
+			if (values == null)
+				continue;
+			String value = valueOf(instance.getTagValue(i));
+			Postings instances = values.get(value);
+			if (instances == null)
+				continue;
+			instances.remove(slot);
+			if (instances.isEmpty()) {
+				values.remove(value);
+				if (values.isEmpty())
+					postings.remove(key);
+			}
+		}
+	}
+
+	private int allocate(String id) {
+		int slot = free.nextSetBit(0);
+		if (slot >= 0)
+			free.clear(slot);
+		else {
+			slot = slotCount++;
+			if (slot == idBySlot.length)
+				idBySlot = Arrays.copyOf(idBySlot, slot * 2);
+		}
+		idBySlot[slot] = id;
+		slotById.put(id, slot);
+		live.set(slot);
+		return slot;
+	}
+
+	private static int indexOfWildcard(String pattern) {
+		for (int i = 0; i < pattern.length(); i++)
+			if (pattern.charAt(i) == '*' || pattern.charAt(i) == '?')
+				return i;
+		return -1;
+	}
+
+	/*
+	 * Translates a wildcard pattern to a regular expression, the other characters quoted.
+	 */
+	static Pattern toRegex(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		int literal = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c != '*' && c != '?')
+				continue;
+			if (i > literal)
+				regex.append(Pattern.quote(pattern.substring(literal, i)));
+			regex.append(c == '*' ? ".*" : ".");
+			literal = i + 1;
+		}
+		if (literal < pattern.length())
+			regex.append(Pattern.quote(pattern.substring(literal)));
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	private static String valueOf(String value) {
+		return value == null ? "" : value;
+	}
+}
@@ -0,0 +1,289 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Boolean expression over the instance tags, evaluated on a {@link TagIndex}:
+ * <pre>
+ * env=prod AND owner!=ci
+ * (Name=web-* OR Name=api-?) AND NOT stage="load test"
+ * team=*
+ * </pre>
+ * A term key=value selects the instances with that tag; the value may contain the * and ?
+ * wildcards, and key=* selects the instances having the key. key!=value selects the other
+ * instances, those without the key included. NOT binds tighter than AND, which binds tighter
+ * than OR; the keywords are not case sensitive. Quote the keys and values containing blanks,
+ * =, ( or ), with \" and \\ for a quote and a backslash; a quoted value is literal, wildcards
+ * included. Keys and values are case sensitive, as in EC2: Env=prod and env=prod are two
+ * different tags.
+ */
+public class TagQuery {
+
+	private final Node root;
+	private final String text;
+
+	private TagQuery(Node root, String text) {
+		this.root = root;
+		this.text = text;
+	}
+
+	/**
+	 * Parses an expression.
+	 * @param expression The expression, for example env=prod AND owner!=ci.
+	 * @return The query.
+	 * @throws IllegalArgumentException If the expression is not valid.
+	 */
+	public static TagQuery parse(String expression) {
+		Parser parser = new Parser(expression);
+		Node root = parser.parseOr();
+		if (parser.peek() != null)
+			throw parser.error("unexpected " + parser.peek().text);
+		return new TagQuery(root, expression.trim());
+	}
+
+	/**
+	 * Creates the query selecting the instances with a tag, the value taken literally.
+	 * @param key The tag key.
+	 * @param value The tag value, wildcards included.
+	 * @return The query.
+	 */
+	public static TagQuery equal(String key, String value) {
+		return new TagQuery(new Term(key, value, false, true), key + "=" + value);
+	}
+
+	/**
+	 * Selects the matching instances.
+	 * @param index The index, read locked by the caller.
+	 * @return The slots of the matching instances, a new set.
+	 */
+	BitSet evaluate(TagIndex index) {
+		return root.evaluate(index);
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private interface Node {
+		BitSet evaluate(TagIndex index);
+	}
+
+	private static class Term implements Node {
+		final String key;
+		final String value;
+		final boolean negated;
+		final boolean literal;
+
+		Term(String key, String value, boolean negated, boolean literal) {
+			this.key = key;
+			this.value = value;
+			this.negated = negated;
+			this.literal = literal;
+		}
+
+		@Override
+		public BitSet evaluate(TagIndex index) {
+			BitSet matching = literal ? index.matchingValue(key, value) : index.matchingPattern(key, value);
+			if (!negated)
+				return matching;
+			BitSet others = index.allSlots();
+			others.andNot(matching);
+			return others;
+		}
+	}
+
+	private static class Not implements Node {
+		final Node operand;
+
+		Not(Node operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public BitSet evaluate(TagIndex index) {
+			BitSet others = index.allSlots();
+			others.andNot(operand.evaluate(index));
+			return others;
+		}
+	}
+
+	private static class And implements Node {
+		final List<Node> operands;
+
+		And(List<Node> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public BitSet evaluate(TagIndex index) {
+			BitSet result = operands.get(0).evaluate(index);
+			for (int i = 1; i < operands.size() && !result.isEmpty(); i++)
+				result.and(operands.get(i).evaluate(index));
+			return result;
+		}
+	}
+
+	private static class Or implements Node {
+		final List<Node> operands;
+
+		Or(List<Node> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public BitSet evaluate(TagIndex index) {
+			BitSet result = operands.get(0).evaluate(index);
+			for (int i = 1; i < operands.size(); i++)
+				result.or(operands.get(i).evaluate(index));
+			return result;
+		}
+	}
+
+	/*
+	 * Token: a word, a quoted string or an operator, with its position for the messages.
+	 */
+	private static class Token {
+		final String text;
+		final boolean quoted;
+		final int position;
+
+		Token(String text, boolean quoted, int position) {
+			this.text = text;
+			this.quoted = quoted;
+			this.position = position;
+		}
+
+		boolean is(String operator) {
+			return !quoted && text.equals(operator);
+		}
+
+		boolean isKeyword(String keyword) {
+			return !quoted && text.equalsIgnoreCase(keyword);
+		}
+	}
+
+	/*
+	 * Recursive descent parser: or = and {OR and}, and = unary {AND unary},
+	 * unary = NOT unary | ( or ) | key (= | !=) value.
+	 */
+	private static class Parser {
+		private final String expression;
+		private final List<Token> tokens = new ArrayList<Token>();
+		private int next = 0;
+
+		Parser(String expression) {
+			this.expression = expression;
+			tokenize();
+		}
+
+		Token peek() {
+			return next < tokens.size() ? tokens.get(next) : null;
+		}
+
+		IllegalArgumentException error(String message) {
+			Token token = peek();
+			int position = token == null ? expression.length() : token.position;
+			return new IllegalArgumentException(String.format("Invalid tag expression at %d: %s", position + 1, message));
+		}
+
+		Node parseOr() {
+			List<Node> operands = new ArrayList<Node>();
+			operands.add(parseAnd());
+			while (peek() != null && peek().isKeyword("OR")) {
+				next++;
+				operands.add(parseAnd());
+			}
+			return operands.size() == 1 ? operands.get(0) : new Or(operands);
+		}
+
+		Node parseAnd() {
+			List<Node> operands = new ArrayList<Node>();
+			operands.add(parseUnary());
+			while (peek() != null && peek().isKeyword("AND")) {
+				next++;
+				operands.add(parseUnary());
+			}
+			return operands.size() == 1 ? operands.get(0) : new And(operands);
+		}
+
+		Node parseUnary() {
+			Token token = peek();
+			if (token == null)
+				throw error("expression expected");
+			if (token.isKeyword("NOT")) {
+				next++;
+				return new Not(parseUnary());
+			}
+			if (token.is("(")) {
+				next++;
+				Node node = parseOr();
+				if (peek() == null || !peek().is(")"))
+					throw error(") expected");
+				next++;
+				return node;
+			}
+			if (token.is(")") || token.is("=") || token.is("!=") || token.isKeyword("AND") || token.isKeyword("OR"))
+				throw error("tag key expected");
+
+			String key = token.text;
+			next++;
+			Token operator = peek();
+			if (operator == null || !(operator.is("=") || operator.is("!=")))
+				throw error("= or != expected after " + key);
+			next++;
+			Token value = peek();
+			if (value == null || (!value.quoted && (value.is("(") || value.is(")") || value.is("=") || value.is("!="))))
+				throw error("tag value expected after " + key + operator.text);
+			next++;
+			// A quoted value is literal, wildcards included.
+			return new Term(key, value.text, operator.is("!="), value.quoted);
+		}
+
+		private void tokenize() {
+			int i = 0;
+			while (i < expression.length()) {
+				char c = expression.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				}
+				else if (c == '(' || c == ')' || c == '=') {
+					tokens.add(new Token(String.valueOf(c), false, i));
+					i++;
+				}
+				else if (c == '!' && i + 1 < expression.length() && expression.charAt(i + 1) == '=') {
+					tokens.add(new Token("!=", false, i));
+					i += 2;
+				}
+				else if (c == '"') {
+					StringBuilder text = new StringBuilder();
+					int start = i++;
+					while (i < expression.length() && expression.charAt(i) != '"') {
+						if (expression.charAt(i) == '\\' && i + 1 < expression.length())
+							i++;
+						text.append(expression.charAt(i++));
+					}
+					if (i == expression.length())
+						throw new IllegalArgumentException(String.format(
+								"Invalid tag expression at %d: unterminated quote", start + 1));
+					i++;
+					tokens.add(new Token(text.toString(), true, start));
+				}
+				else {
+					int start = i;
+					while (i < expression.length() && !Character.isWhitespace(expression.charAt(i))
+							&& "()=\"".indexOf(expression.charAt(i)) < 0
+							&& !expression.startsWith("!=", i))
+						i++;
+					tokens.add(new Token(expression.substring(start, i), false, start));
+				}
+			}
+		}
+	}
+}
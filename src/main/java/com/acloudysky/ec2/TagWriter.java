@@ -0,0 +1,142 @@
+package com.acloudysky.ec2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Collects the tags to assign to EC2 resources and writes them with as few CreateTags
+ * calls as possible. A CreateTags call assigns all its tags to all its resources, so each
+ * tag (key and value) is written once for all the resources that get it, in chunks of at
+ * most {@link #MAX_RESOURCES_PER_CALL} resources, and the tags that go to exactly the same
+ * resources share their calls. Tagging 5000 instances with owner=Michael and a Name of
+ * their own takes 5 calls for the owner and one call per Name.
+ * <pre>
+ * TagWriter writer = new TagWriter(ec2Client);
+ * writer.addTags(instanceIds, new Tag("owner", "Michael"));
+ * writer.flush();
+ * </pre>
+ * For more information, see <a href="http://docs.aws.amazon.com/AWSEC2/latest/APIReference/API_CreateTags.html" target="_blank">CreateTags</a>.
+ */
+public class TagWriter {
+
+	/**
+	 * Maximum number of resources in a single CreateTags call.
+	 */
+	public static final int MAX_RESOURCES_PER_CALL = 1000;
+
+	// Authenticated EC2 client.
+	private final AmazonEC2 ec2Client;
+
+	// Tags to write, keyed by resource id. The tags of a resource are sorted by key.
+	private final Map<String, Map<String, String>> pending = new LinkedHashMap<String, Map<String, String>>();
+
+	// Number of CreateTags calls issued by this writer.
+	private int callCount = 0;
+
+	/**
+	 * Initializes the writer.
+	 * @param client Authenticated EC2 client.
+	 */
+	public TagWriter(AmazonEC2 client) {
+		ec2Client = client;
+	}
+
+	/**
+	 * Adds tags to a resource. A tag with the same key as a previous one replaces it.
+	 * @param resourceId The resource id, for example an instance id.
+	 * @param tags The tags.
+	 * @return This writer.
+	 */
+	public TagWriter addTags(String resourceId, Tag... tags) {
+		Map<String, String> resourceTags = pending.get(resourceId);
+		if (resourceTags == null) {
+			resourceTags = new TreeMap<String, String>();
+			pending.put(resourceId, resourceTags);
+		}
+		for (Tag tag : tags)
+			resourceTags.put(tag.getKey(), tag.getValue());
+		return this;
+	}
+
+	/**
+	 * Adds the same tags to several resources.
+	 * @param resourceIds The resource ids.
+	 * @param tags The tags.
+	 * @return This writer.
+	 */
+	public TagWriter addTags(Collection<String> resourceIds, Tag... tags) {
+		for (String resourceId : resourceIds)
+			addTags(resourceId, tags);
+		return this;
+	}
+
+	/**
+	 * Gets the number of resources waiting to be tagged.
+	 * @return The number of resources.
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Gets the number of CreateTags calls issued so far.
+	 * @return The number of calls.
+	 */
+	public int getCallCount() {
+		return callCount;
+	}
+
+	/**
+	 * Groups the pending resources by tag, then the tags by identical resource list, and
+	 * writes each group. The pending tags are cleared, also when a call fails.
+	 * @return The ids of the tagged resources.
+	 */
+	public List<String> flush() {
+
+		// The resources of each tag, in the order they were added.
+		Map<Tag, List<String>> byTag = new LinkedHashMap<Tag, List<String>>();
+		for (Map.Entry<String, Map<String, String>> entry : pending.entrySet())
+			for (Map.Entry<String, String> tag : entry.getValue().entrySet())
+				byTag.computeIfAbsent(new Tag(tag.getKey(), tag.getValue()), key -> new ArrayList<String>())
+						.add(entry.getKey());
+		pending.clear();
+
+		// The tags going to the same resources are written together.
+		Map<List<String>, List<Tag>> groups = new LinkedHashMap<List<String>, List<Tag>>();
+		for (Map.Entry<Tag, List<String>> entry : byTag.entrySet())
+			groups.computeIfAbsent(entry.getValue(), resources -> new ArrayList<Tag>()).add(entry.getKey());
+
+		Set<String> tagged = new LinkedHashSet<String>();
+		for (Map.Entry<List<String>, List<Tag>> group : groups.entrySet()) {
+
+			List<Tag> tags = group.getValue();
+			List<String> resources = group.getKey();
+			for (int from = 0; from < resources.size(); from += MAX_RESOURCES_PER_CALL) {
+				List<String> chunk = resources.subList(from, Math.min(resources.size(), from + MAX_RESOURCES_PER_CALL));
+
+				CreateTagsRequest createTagsRequest = new CreateTagsRequest()
+						.withResources(new ArrayList<String>(chunk))
+						.withTags(tags);
+				ec2Client.createTags(createTagsRequest);
+				callCount++;
+
+				tagged.addAll(chunk);
+			}
+		}
+
+		if (Main.DEBUG)
+			System.out.println(String.format("TagWriter: %d resources tagged, %d calls", tagged.size(), callCount));
+
+		return new ArrayList<String>(tagged);
+	}
+}
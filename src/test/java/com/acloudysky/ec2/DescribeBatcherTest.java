@@ -0,0 +1,150 @@
+package com.acloudysky.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * Runs concurrent lookups through a {@link DescribeBatcher} on a client that records its
+ * DescribeInstances calls.
+ */
+public class DescribeBatcherTest {
+
+	private static final int LOOKUPS = 8;
+
+	// Calls made, and the error thrown by the next calls, if any.
+	private final AtomicInteger calls = new AtomicInteger();
+	private volatile Throwable failure = null;
+
+	private AmazonEC2 client;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		client = (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { AmazonEC2.class }, (proxy, method, args) -> {
+					if (!"describeInstances".equals(method.getName()))
+						throw new UnsupportedOperationException(method.getName());
+					calls.incrementAndGet();
+					// Hold the call a little, so that the lookups of the same instance join it.
+					Thread.sleep(100);
+					if (failure != null)
+						throw failure;
+					// Answer the instance-id filter; i-missing does not exist.
+					Reservation reservation = new Reservation().withReservationId("r-1");
+					for (String id : ((DescribeInstancesRequest) args[0]).getFilters().get(0).getValues())
+						if (!"i-missing".equals(id))
+							reservation.withInstances(new Instance().withInstanceId(id));
+					return new DescribeInstancesResult().withReservations(reservation);
+				});
+		// Daemon threads: a lookup left waiting must not keep the test run alive.
+		executor = Executors.newFixedThreadPool(LOOKUPS, runnable -> {
+			Thread thread = new Thread(runnable, "lookup");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentLookupsShareOneCall() throws Exception {
+		DescribeBatcher batcher = new DescribeBatcher(client, 500);
+		List<Future<InstanceSummary>> lookups = lookUp(batcher, "i-", false);
+
+		for (int i = 0; i < LOOKUPS; i++)
+			assertEquals("i-" + i, lookups.get(i).get(5, TimeUnit.SECONDS).getInstanceId());
+		assertEquals(1, calls.get());
+		assertEquals(1, batcher.getCallCount());
+	}
+
+	@Test
+	public void lookupsOfTheSameInstanceShareOneCall() throws Exception {
+		DescribeBatcher batcher = new DescribeBatcher(client, 0);
+		List<Future<InstanceSummary>> lookups = lookUp(batcher, "i-1", true);
+
+		for (Future<InstanceSummary> lookup : lookups)
+			assertEquals("i-1", lookup.get(5, TimeUnit.SECONDS).getInstanceId());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void unknownInstanceIsNull() {
+		DescribeBatcher batcher = new DescribeBatcher(client, 0);
+		assertNull(batcher.get("i-missing"));
+	}
+
+	@Test
+	public void failureReachesEveryLookup() throws Exception {
+		failure = new IllegalStateException("Service unavailable");
+		assertEveryLookupFails(IllegalStateException.class);
+	}
+
+	@Test
+	public void errorReachesEveryLookup() throws Exception {
+		failure = new StackOverflowError();
+		assertEveryLookupFails(StackOverflowError.class);
+	}
+
+	/*
+	 * Looks the ids up together, and checks that each lookup ends with the error of the call.
+	 */
+	private void assertEveryLookupFails(Class<? extends Throwable> error) throws Exception {
+		DescribeBatcher batcher = new DescribeBatcher(client, 500);
+		List<Future<InstanceSummary>> lookups = lookUp(batcher, "i-", false);
+
+		for (Future<InstanceSummary> lookup : lookups) {
+			try {
+				lookup.get(5, TimeUnit.SECONDS);
+				fail("The lookup did not fail");
+			}
+			catch (ExecutionException e) {
+				assertTrue(e.getCause().toString(), error.isInstance(e.getCause()));
+			}
+		}
+		assertEquals(1, calls.get());
+	}
+
+	/*
+	 * Starts the lookups at the same time: of the same id, or of numbered ids.
+	 */
+	private List<Future<InstanceSummary>> lookUp(DescribeBatcher batcher, String id, boolean same)
+			throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<InstanceSummary>> lookups = new ArrayList<Future<InstanceSummary>>();
+		for (int i = 0; i < LOOKUPS; i++) {
+			String instanceId = same ? id : id + i;
+			lookups.add(executor.submit(() -> {
+				start.await();
+				return batcher.get(instanceId);
+			}));
+		}
+		start.countDown();
+		return lookups;
+	}
+}
@@ -0,0 +1,72 @@
+package com.acloudysky.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+
+/**
+ * Runs the background refresh of an {@link InstanceInventory} on a client whose calls fail
+ * on demand.
+ */
+public class InstanceInventoryTest {
+
+	private static final String REFRESH_THREAD = "ec2-inventory-refresh";
+
+	// Calls made by the refresh thread, and how many of them fail.
+	private final AtomicInteger refreshCalls = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private InstanceInventory inventory;
+
+	@Before
+	public void setUp() {
+		AmazonEC2 client = (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { AmazonEC2.class }, (proxy, method, args) -> {
+					if (!"describeInstances".equals(method.getName()))
+						throw new UnsupportedOperationException(method.getName());
+					if (REFRESH_THREAD.equals(Thread.currentThread().getName())) {
+						refreshCalls.incrementAndGet();
+						if (failures.getAndDecrement() > 0)
+							throw new IllegalArgumentException("Unexpected response");
+					}
+					return new DescribeInstancesResult().withReservations(new Reservation()
+							.withReservationId("r-1")
+							.withInstances(new Instance().withInstanceId("i-1")
+									.withState(new InstanceState().withName("running").withCode(16))));
+				});
+		inventory = new InstanceInventory(client, 200);
+	}
+
+	@After
+	public void tearDown() {
+		inventory.stopBackgroundRefresh();
+	}
+
+	@Test
+	public void failingRefreshDoesNotStopTheNextTicks() throws InterruptedException {
+		assertEquals(1, inventory.size());
+		failures.set(2);
+		inventory.startBackgroundRefresh(50);
+
+		// Keep looking the inventory up, so that the refresh does not idle.
+		long end = System.currentTimeMillis() + 10000;
+		while (refreshCalls.get() < 4 && System.currentTimeMillis() < end) {
+			assertEquals(1, inventory.size());
+			Thread.sleep(20);
+		}
+		assertTrue("refresh calls " + refreshCalls.get(), refreshCalls.get() >= 4);
+		assertTrue(failures.get() < 0);
+	}
+}
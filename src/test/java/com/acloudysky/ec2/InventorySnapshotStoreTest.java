@@ -0,0 +1,129 @@
+package com.acloudysky.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Saves instances to a snapshot file and loads them back, whole, truncated or corrupted.
+ */
+public class InventorySnapshotStoreTest {
+
+	private Path directory;
+	private InventorySnapshotStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("inventory-snapshot");
+		store = new InventorySnapshotStore(directory, "us-west-2");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.delete();
+		Files.deleteIfExists(directory.resolve("inventory-us-west-2.snapshot.tmp"));
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	public void loadsWhatWasSaved() throws IOException {
+		long before = System.currentTimeMillis();
+		store.save(fleet());
+		List<InstanceSummary> loaded = new ArrayList<InstanceSummary>();
+		long savedAt = store.load(loaded::add);
+
+		assertTrue(savedAt >= before);
+		assertEquals(2, loaded.size());
+		InstanceSummary web = loaded.get(0);
+		assertEquals("i-0a1", web.getInstanceId());
+		assertEquals("r-1", web.getReservationId());
+		assertEquals("ami-7172b611", web.getImageId());
+		assertEquals("t2.micro", web.getInstanceType());
+		assertEquals("DocLabKeys_OR", web.getKeyName());
+		assertEquals(InstanceSummary.State.RUNNING, web.getState());
+		assertEquals("us-west-2c", web.getAvailabilityZone());
+		assertEquals(1445000000000L, web.getLaunchTime());
+		assertTrue(web.hasSameTags(fleet().get(0)));
+		assertEquals("web-\u00e9t\u00e9", web.getName());
+
+		InstanceSummary bare = loaded.get(1);
+		assertNull(bare.getReservationId());
+		assertNull(bare.getKeyName());
+		assertEquals(InstanceSummary.State.STOPPED, bare.getState());
+		assertEquals(-1L, bare.getLaunchTime());
+		assertEquals(0, bare.getTagCount());
+	}
+
+	@Test
+	public void replacesThePreviousSnapshot() throws IOException {
+		store.save(fleet());
+		store.save(fleet().subList(1, 2));
+		List<InstanceSummary> loaded = new ArrayList<InstanceSummary>();
+		store.load(loaded::add);
+
+		assertEquals(1, loaded.size());
+		assertEquals("i-0a2", loaded.get(0).getInstanceId());
+		assertTrue(!Files.exists(directory.resolve("inventory-us-west-2.snapshot.tmp")));
+	}
+
+	@Test
+	public void ignoresATruncatedFile() throws IOException {
+		store.save(fleet());
+		byte[] bytes = Files.readAllBytes(store.getFile());
+		for (int length = 0; length < bytes.length; length++) {
+			Files.write(store.getFile(), Arrays.copyOf(bytes, length));
+			List<InstanceSummary> loaded = new ArrayList<InstanceSummary>();
+			assertEquals("truncated to " + length, -1L, store.load(loaded::add));
+			assertEquals("truncated to " + length, 0, loaded.size());
+		}
+	}
+
+	@Test
+	public void ignoresACorruptedCount() throws IOException {
+		store.save(fleet());
+		byte[] bytes = Files.readAllBytes(store.getFile());
+		// The string count follows the magic, the version, the time and the region.
+		int offset = 4 + 4 + 8 + 4 + "us-west-2".length();
+		bytes[offset] = 0x7f;
+		Files.write(store.getFile(), bytes);
+
+		List<InstanceSummary> loaded = new ArrayList<InstanceSummary>();
+		assertEquals(-1L, store.load(loaded::add));
+		assertEquals(0, loaded.size());
+	}
+
+	@Test
+	public void ignoresAnotherRegionOrNoFile() throws IOException {
+		List<InstanceSummary> loaded = new ArrayList<InstanceSummary>();
+		assertEquals(-1L, store.load(loaded::add));
+
+		new InventorySnapshotStore(directory, "us-east-1").save(fleet());
+		Files.move(directory.resolve("inventory-us-east-1.snapshot"), store.getFile());
+		assertEquals(-1L, store.load(loaded::add));
+		assertEquals(0, loaded.size());
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private static List<InstanceSummary> fleet() {
+		return Arrays.asList(
+				new InstanceSummary("i-0a1", "r-1", "ami-7172b611", null, "t2.micro", "DocLabKeys_OR", "x86_64",
+						"xen", InstanceSummary.State.RUNNING, "us-west-2c", "subnet-06223c5f", 1445000000000L,
+						new String[] { "Name", "web-\u00e9t\u00e9", "owner", "Michael", "empty", null }),
+				new InstanceSummary("i-0a2", null, "ami-7172b611", null, "t2.small", null, "x86_64",
+						"xen", InstanceSummary.State.STOPPED, "us-west-2a", null, -1, new String[0]));
+	}
+}
@@ -0,0 +1,124 @@
+package com.acloudysky.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+/**
+ * Launches instances through a {@link LaunchPlanner} in a {@link FakeFleet} whose zones
+ * have a limited capacity.
+ */
+public class LaunchPlannerTest {
+
+	private static final String ZONE_A = "us-west-2a";
+	private static final String ZONE_B = "us-west-2b";
+	private static final String ZONE_C = "us-west-2c";
+
+	private FakeFleet fleet;
+	private AmazonEC2 client;
+	private final RunInstancesRequest template = new RunInstancesRequest()
+			.withImageId("ami-7172b611")
+			.withInstanceType("t2.micro");
+
+	@Before
+	public void setUp() {
+		fleet = new FakeFleet("us-west-2", 0, 4, 5, 0, 42);
+		// Send the client calls to the methods of the fleet with the same signature.
+		client = (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { AmazonEC2.class }, (proxy, method, args) -> {
+					try {
+						return FakeFleet.class.getMethod(method.getName(), method.getParameterTypes()).invoke(fleet, args);
+					}
+					catch (NoSuchMethodException e) {
+						throw new UnsupportedOperationException(method.getName());
+					}
+					catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+
+	@Test
+	public void zoneWithoutCapacityIsSkipped() {
+		fleet.setCapacity(ZONE_A, 0);
+		LaunchPlanner.Result result = planner(true).launch(template, 30, null);
+
+		Map<String, Integer> launched = result.getLaunchedByZone();
+		assertEquals(30, result.getLaunched());
+		assertNull(launched.get(ZONE_A));
+		assertEquals(20, (int) launched.get(ZONE_B));
+		assertEquals(10, (int) launched.get(ZONE_C));
+		assertEquals(0, result.getErrors().size());
+		assertEquals(30, fleet.size());
+	}
+
+	@Test
+	public void remainingCountGoesToTheNextZone() {
+		fleet.setCapacity(ZONE_A, 4);
+		LaunchPlanner planner = planner(true);
+		planner.setPartialLaunch(true);
+		LaunchPlanner.Result result = planner.launch(template, 30, null);
+
+		Map<String, Integer> launched = result.getLaunchedByZone();
+		assertEquals(30, result.getLaunched());
+		assertEquals(4, (int) launched.get(ZONE_A));
+		assertEquals(16, (int) launched.get(ZONE_B));
+		assertEquals(10, (int) launched.get(ZONE_C));
+		assertEquals(0, result.getErrors().size());
+	}
+
+	@Test
+	public void wholeCallMovesWithoutPartialLaunch() {
+		fleet.setCapacity(ZONE_A, 4);
+		LaunchPlanner.Result result = planner(true).launch(template, 30, null);
+
+		// MinCount is the count of the call: the 4 instances left in the zone are not enough.
+		Map<String, Integer> launched = result.getLaunchedByZone();
+		assertEquals(30, result.getLaunched());
+		assertNull(launched.get(ZONE_A));
+		assertEquals(20, (int) launched.get(ZONE_B));
+	}
+
+	@Test
+	public void errorWhenEveryZoneFails() {
+		fleet.setCapacity(ZONE_A, 0);
+		fleet.setCapacity(ZONE_B, 0);
+		fleet.setCapacity(ZONE_C, 0);
+		LaunchPlanner.Result result = planner(true).launch(template, 30, null);
+
+		List<String> errors = result.getErrors();
+		assertEquals(0, result.getLaunched());
+		assertEquals(3, errors.size());
+		for (String error : errors)
+			assertEquals("10 instance(s) not launched: no zone has capacity left", error);
+		assertEquals(0, fleet.size());
+	}
+
+	@Test
+	public void errorWithoutFallback() {
+		fleet.setCapacity(ZONE_A, 0);
+		LaunchPlanner.Result result = planner(false).launch(template, 30, null);
+
+		assertEquals(20, result.getLaunched());
+		assertNull(result.getLaunchedByZone().get(ZONE_A));
+		assertEquals(1, result.getErrors().size());
+		assertEquals("10 instance(s) not launched: us-west-2a is out of capacity", result.getErrors().get(0));
+	}
+
+	/*
+	 * Spreads the launches over the three zones of the fleet, one call per zone.
+	 */
+	private LaunchPlanner planner(boolean fallbackToOtherZones) {
+		return new LaunchPlanner(client, LaunchPlanner.getAvailableZones(client), fallbackToOtherZones);
+	}
+}
@@ -0,0 +1,174 @@
+package com.acloudysky.ec2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Parses tag expressions and evaluates them on a small {@link TagIndex}.
+ */
+public class TagQueryTest {
+
+	private TagIndex index;
+
+	@Before
+	public void setUp() {
+		index = new TagIndex();
+		add("i-1", "env", "prod", "Name", "web-1", "owner", "ci");
+		add("i-2", "env", "prod", "Name", "web-2", "owner", "alice");
+		add("i-3", "env", "test", "Name", "api-1", "owner", "ci");
+		add("i-4", "Env", "prod", "Name", "a.b-1");
+		add("i-5", "stage", "load test", "Name", "a*b");
+		add("i-6", "note", "say \"hi\" \\ \\E.*", "Name", "axb-1");
+		add("i-7");
+	}
+
+	@Test
+	public void selectsAnExactTag() {
+		assertSelects("env=prod", "i-1", "i-2");
+		assertSelects("Name=web-1", "i-1");
+		assertSelects("env=staging");
+	}
+
+	@Test
+	public void keysAreCaseSensitive() {
+		assertSelects("Env=prod", "i-4");
+		assertSelects("ENV=prod");
+		assertSelects("env=PROD");
+	}
+
+	@Test
+	public void notEqualIncludesTheInstancesWithoutTheKey() {
+		assertSelects("env!=prod", "i-3", "i-4", "i-5", "i-6", "i-7");
+		assertSelects("NOT env=prod", "i-3", "i-4", "i-5", "i-6", "i-7");
+	}
+
+	@Test
+	public void andBindsTighterThanOr() {
+		assertSelects("owner=alice OR env=test AND owner=ci", "i-2", "i-3");
+		assertSelects("env=test AND owner=ci OR owner=alice", "i-2", "i-3");
+		assertSelects("(owner=alice OR env=test) AND owner=ci", "i-3");
+	}
+
+	@Test
+	public void notBindsTighterThanAnd() {
+		assertSelects("NOT env=test AND owner=ci", "i-1");
+		assertSelects("NOT (env=test AND owner=ci) AND owner=*", "i-1", "i-2");
+		assertSelects("NOT NOT env=test", "i-3");
+	}
+
+	@Test
+	public void keywordsAreNotCaseSensitive() {
+		assertSelects("env=prod and not owner=ci", "i-2");
+		assertSelects("env=test Or owner=alice", "i-2", "i-3");
+	}
+
+	@Test
+	public void wildcardsMatchAnyCharacters() {
+		assertSelects("Name=web-*", "i-1", "i-2");
+		assertSelects("Name=*-1", "i-1", "i-3", "i-4", "i-6");
+		assertSelects("Name=web-?", "i-1", "i-2");
+		assertSelects("Name=a?i-*", "i-3");
+		assertSelects("owner=*", "i-1", "i-2", "i-3");
+	}
+
+	@Test
+	public void wildcardPatternsQuoteTheOtherCharacters() {
+		// The dot is a literal dot, not any character.
+		assertSelects("Name=a.b-*", "i-4");
+		assertSelects("Name=a.?-1", "i-4");
+		// Regular expression quoting in the value does not end the quoted text.
+		assertSelects("note=*\\E.?", "i-6");
+		assertSelects("note=*\\Q*");
+	}
+
+	@Test
+	public void quotedValuesAreLiteral() {
+		assertSelects("stage=\"load test\"", "i-5");
+		assertSelects("Name=\"a*b\"", "i-5");
+		assertSelects("Name=\"a*\"");
+		assertSelects("Name=a*b", "i-5");
+		assertSelects("Name=a*b*", "i-4", "i-5", "i-6");
+		assertSelects("note=\"say \\\"hi\\\" \\\\ \\\\E.*\"", "i-6");
+		assertSelects("\"stage\"=\"load test\" AND NOT \"Name\"=\"x\"", "i-5");
+	}
+
+	@Test
+	public void equalTakesTheValueLiterally() {
+		assertEquals(Collections.singletonList("i-5"), index.select(TagQuery.equal("Name", "a*b")));
+		assertEquals(Collections.emptyList(), index.select(TagQuery.equal("Name", "web-*")));
+	}
+
+	@Test
+	public void removedInstancesAreNotSelected() {
+		index.remove(instance("i-1", "env", "prod", "Name", "web-1", "owner", "ci"));
+		assertSelects("env=prod", "i-2");
+		assertSelects("NOT env=prod", "i-3", "i-4", "i-5", "i-6", "i-7");
+		add("i-8", "env", "prod");
+		assertSelects("env=prod", "i-8", "i-2");
+	}
+
+	@Test
+	public void replacedInstancesAreSelectedByTheirNewTags() {
+		index.replace(instance("i-1", "env", "prod", "Name", "web-1", "owner", "ci"), instance("i-1", "env", "test"));
+		assertSelects("env=prod", "i-2");
+		assertSelects("env=test", "i-1", "i-3");
+		assertSelects("owner=ci", "i-3");
+		index.replace(null, instance("i-8", "env", "test"));
+		assertSelects("env=test", "i-1", "i-3", "i-8");
+	}
+
+	@Test
+	public void rejectsInvalidExpressions() {
+		assertInvalid("", "at 1: expression expected");
+		assertInvalid("env", "at 4: = or != expected after env");
+		assertInvalid("env=", "at 5: tag value expected after env=");
+		assertInvalid("env=prod AND", "at 13: expression expected");
+		assertInvalid("(env=prod", "at 10: ) expected");
+		assertInvalid("env=prod)", "at 9: unexpected )");
+		assertInvalid("env=prod owner=ci", "at 10: unexpected owner");
+		assertInvalid("AND env=prod", "at 1: tag key expected");
+		assertInvalid("stage=\"load test", "at 7: unterminated quote");
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private void add(String id, String... tags) {
+		index.add(instance(id, tags));
+	}
+
+	private static InstanceSummary instance(String id, String... tags) {
+		Instance instance = new Instance().withInstanceId(id);
+		for (int i = 0; i < tags.length; i += 2)
+			instance.withTags(new Tag(tags[i], tags[i + 1]));
+		return InstanceSummary.from(instance);
+	}
+
+	private void assertSelects(String expression, String... ids) {
+		List<String> selected = index.select(TagQuery.parse(expression));
+		assertEquals(expression, Arrays.asList(ids), selected);
+		assertEquals(expression, ids.length, index.count(TagQuery.parse(expression)));
+	}
+
+	private static void assertInvalid(String expression, String message) {
+		try {
+			TagQuery.parse(expression);
+			fail("Parsed " + expression);
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith(message));
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.acloudysky.ec2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Counts the CreateTags calls of a {@link TagWriter} on a client recording its requests.
+ */
+public class TagWriterTest {
+
+	private final List<CreateTagsRequest> calls = new ArrayList<CreateTagsRequest>();
+	private TagWriter writer;
+
+	@Before
+	public void setUp() {
+		AmazonEC2 client = (AmazonEC2) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { AmazonEC2.class }, (proxy, method, args) -> {
+					if (!"createTags".equals(method.getName()))
+						throw new UnsupportedOperationException(method.getName());
+					calls.add((CreateTagsRequest) args[0]);
+					return null;
+				});
+		writer = new TagWriter(client);
+	}
+
+	@Test
+	public void sharedTagTakesOneCallPerChunk() {
+		for (int i = 0; i < 2500; i++)
+			writer.addTags(ids(i), new Tag("Name", "web-" + i), new Tag("owner", "Michael"));
+		List<String> tagged = writer.flush();
+
+		assertEquals(2500, tagged.size());
+		assertEquals(2503, writer.getCallCount());
+		int owner = 0;
+		for (CreateTagsRequest call : calls)
+			if (call.getTags().contains(new Tag("owner", "Michael"))) {
+				assertEquals(Arrays.asList(new Tag("owner", "Michael")), call.getTags());
+				owner += call.getResources().size();
+			}
+		assertEquals(2500, owner);
+	}
+
+	@Test
+	public void tagsOfTheSameResourcesShareTheirCalls() {
+		for (int i = 0; i < 1500; i++)
+			writer.addTags(ids(i), new Tag("env", "prod"), new Tag("owner", "Michael"));
+		writer.flush();
+
+		assertEquals(2, writer.getCallCount());
+		assertEquals(1000, calls.get(0).getResources().size());
+		assertEquals(500, calls.get(1).getResources().size());
+		assertEquals(2, calls.get(0).getTags().size());
+	}
+
+	@Test
+	public void laterTagReplacesTheSameKey() {
+		writer.addTags("i-1", new Tag("env", "test"));
+		writer.addTags("i-1", new Tag("env", "prod"));
+		writer.addTags("i-2", new Tag("env", "prod"));
+		writer.flush();
+
+		assertEquals(1, writer.getCallCount());
+		assertEquals(Arrays.asList("i-1", "i-2"), calls.get(0).getResources());
+		assertEquals(0, writer.size());
+	}
+
+	/*
+	 * Internal utilities *
+	 */
+
+	private static List<String> ids(int i) {
+		return Arrays.asList(String.format("i-%08x", i));
+	}
+}